@@ -3,4 +3,28 @@ package com.afa.devicesfiletransfer;
 public class ConfigProperties {
     public static final int DISCOVERY_SERVICE_PORT = 5000;
     public static final int TRANSFER_SERVICE_PORT = 5001;
+    //Devices not heard of in a few heartbeats are taken as gone
+    public static final long DISCOVERY_HEARTBEAT_INTERVAL = 30000;
+    public static final long DISCOVERY_DEVICE_TIME_TO_LIVE = 100000;
+    //Discovery packets sent per second to each network swept, for networks that filter broadcasts
+    public static final int DISCOVERY_SWEEP_RATE = 200;
+    //Discovery packets are sent to multicast groups instead of broadcast, which also reaches IPv6 networks
+    public static final boolean DISCOVERY_MULTICAST_ENABLED = true;
+    //Devices of older versions only listen for broadcasts, so IPv4 networks are still reached by broadcast until
+    //those versions are gone
+    public static final boolean DISCOVERY_BROADCAST_ENABLED = true;
+    //Devices of older versions only decode JSON packets, so every packet is sent in both formats meanwhile
+    public static final boolean DISCOVERY_LEGACY_PACKETS_ENABLED = true;
+    //Files are checked once received. Unverified files are sent without reading them, straight from the disk
+    public static final boolean TRANSFER_VERIFICATION_ENABLED = true;
+    public static final int MAX_CONCURRENT_FILES_PER_DEVICE = 3;
+    public static final int MIN_CONCURRENT_SENDING_FILES = 3;
+    public static final int MAX_CONCURRENT_SENDING_FILES = 12;
+    public static final int MAX_RECEIVING_SESSIONS = 10;
+    public static final long MAX_RECEIVING_IN_FLIGHT_BYTES = 4L * 1024 * 1024 * 1024;
+    public static final int MAX_DISK_WRITERS = 4;
+    //Relays forward files to devices the sender chose, so they are only taken when turned on
+    public static final boolean RELAY_ENABLED = false;
+    //Devices every relay forwards the files to, each one relaying them again to its own share of the rest
+    public static final int RELAY_BRANCHES = 2;
 }
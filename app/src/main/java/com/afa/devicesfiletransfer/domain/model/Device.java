@@ -8,6 +8,8 @@ public class Device implements Serializable {
     private String name;
     private String os;
     private InetAddress address;
+    //Devices of older versions do not speak the transfer protocol of this one
+    private boolean legacy;
 
     public Device() {
         address = InetAddress.getLoopbackAddress();
@@ -43,6 +45,14 @@ public class Device implements Serializable {
         return address;
     }
 
+    public void setLegacy(boolean legacy) {
+        this.legacy = legacy;
+    }
+
+    public boolean isLegacy() {
+        return legacy;
+    }
+
     public String getIpAddress() {
         return address.getHostAddress();
     }
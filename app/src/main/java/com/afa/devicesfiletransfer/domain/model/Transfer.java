@@ -1,6 +1,5 @@
 package com.afa.devicesfiletransfer.domain.model;
 
-import java.io.File;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.Objects;
@@ -12,6 +11,11 @@ public class Transfer implements Serializable {
     private Date date;
     private boolean incoming;
     private TransferStatus status;
+    private long transferredBytes;
+    private long wireBytes;
+    private long transferTime;
+    //Changed while the transfer is in progress, from another thread
+    private volatile long maxBytesPerSecond;
 
     public Transfer() {
         date = new Date();
@@ -50,12 +54,12 @@ public class Transfer implements Serializable {
         return file;
     }
 
-    //Method necessary to allow mapping with persistence entity
+    //Used to map the transfer from its persistence entity, the file is not looked up until it is needed
     public void setFilePath(String filePath) {
-        file = TransferFileFactory.getFromFile(new File(filePath));
+        file = TransferFileFactory.getFromPath(filePath);
     }
 
-    //Method necessary to allow mapping with persistence entity
+    //Used to map the transfer to its persistence entity
     public String getFilePath() {
         return file.getPath();
     }
@@ -92,6 +96,48 @@ public class Transfer implements Serializable {
         return status.value;
     }
 
+    public void setTransferredBytes(long transferredBytes) {
+        this.transferredBytes = transferredBytes;
+    }
+
+    //Bytes of the file moved in this transfer, excluding any part resumed from a previous one
+    public long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    public void setWireBytes(long wireBytes) {
+        this.wireBytes = wireBytes;
+    }
+
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    public void setTransferTime(long transferTime) {
+        this.transferTime = transferTime;
+    }
+
+    //Milliseconds spent moving the file data
+    public long getTransferTime() {
+        return transferTime;
+    }
+
+    //0 when the transfer is only limited by the global and device limits
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    //Effective throughput in bytes per second
+    public long getThroughput() {
+        if (transferTime <= 0) return transferredBytes;
+
+        return transferredBytes * 1000 / transferTime;
+    }
+
     public boolean isIncoming() {
         return incoming;
     }
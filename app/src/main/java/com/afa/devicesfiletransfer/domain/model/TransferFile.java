@@ -1,7 +1,9 @@
 package com.afa.devicesfiletransfer.domain.model;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 public interface TransferFile {
     boolean exists();
@@ -12,5 +14,10 @@ public interface TransferFile {
 
     long length();
 
+    long lastModified();
+
     InputStream getInputStream() throws FileNotFoundException;
+
+    //Returns null when the source is not seekable and can only be read as a stream
+    FileChannel getChannel() throws IOException;
 }
@@ -11,6 +11,10 @@ public class TransferFileFactory {
         return new TransferFileLocal(file);
     }
 
+    public static TransferFile getFromPath(String path) {
+        return new TransferFilePath(path);
+    }
+
     public static TransferFile getFromUri(Uri uri) {
         return new TransferFileUri(uri);
     }
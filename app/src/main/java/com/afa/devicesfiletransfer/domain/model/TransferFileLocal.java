@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 public class TransferFileLocal implements TransferFile {
     private final File file;
@@ -32,8 +33,18 @@ public class TransferFileLocal implements TransferFile {
         return file.length();
     }
 
+    @Override
+    public long lastModified() {
+        return file.lastModified();
+    }
+
     @Override
     public InputStream getInputStream() throws FileNotFoundException {
         return new FileInputStream(file);
     }
+
+    @Override
+    public FileChannel getChannel() throws FileNotFoundException {
+        return new FileInputStream(file).getChannel();
+    }
 }
@@ -0,0 +1,60 @@
+package com.afa.devicesfiletransfer.domain.model;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+//A file known by its path only, as the ones of the transfers saved. The file is only looked up when more than its
+//name or path is needed, so listing many transfers does not touch any file
+public class TransferFilePath implements TransferFile {
+    private final String path;
+    private TransferFileLocal file;
+
+    public TransferFilePath(String path) {
+        this.path = path;
+    }
+
+    private TransferFileLocal getFile() {
+        if (file == null) {
+            file = new TransferFileLocal(new File(path));
+        }
+        return file;
+    }
+
+    @Override
+    public boolean exists() {
+        return getFile().exists();
+    }
+
+    @Override
+    public String getName() {
+        return path.substring(path.lastIndexOf(File.separatorChar) + 1);
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public long length() {
+        return getFile().length();
+    }
+
+    @Override
+    public long lastModified() {
+        return getFile().lastModified();
+    }
+
+    @Override
+    public InputStream getInputStream() throws FileNotFoundException {
+        return getFile().getInputStream();
+    }
+
+    @Override
+    public FileChannel getChannel() throws IOException {
+        return getFile().getChannel();
+    }
+}
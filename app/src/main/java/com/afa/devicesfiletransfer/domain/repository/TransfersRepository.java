@@ -11,6 +11,9 @@ public interface TransfersRepository {
 
     void saveTransfer(Transfer transfer, AddTransferCallback callback);
 
+    //Saved all together, or none of them
+    void saveTransfers(List<Transfer> transfers, AddTransferCallback callback);
+
     interface GetTransfersCallback {
         void onSuccess(List<Transfer> transfers);
 
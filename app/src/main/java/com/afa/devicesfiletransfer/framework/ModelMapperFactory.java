@@ -1,13 +0,0 @@
-package com.afa.devicesfiletransfer.framework;
-
-import org.modelmapper.ModelMapper;
-import org.modelmapper.convention.MatchingStrategies;
-
-public class ModelMapperFactory {
-    public static ModelMapper getInstance() {
-        ModelMapper modelMapper = new ModelMapper();
-        modelMapper.getConfiguration().setMatchingStrategy(MatchingStrategies.STRICT);
-
-        return modelMapper;
-    }
-}
@@ -2,13 +2,16 @@ package com.afa.devicesfiletransfer.framework;
 
 import android.net.Uri;
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 
 import com.afa.devicesfiletransfer.DftApplication;
 import com.afa.devicesfiletransfer.domain.model.TransferFile;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 public class TransferFileUri implements TransferFile, Parcelable {
     private UriWrapper uriWrapper;
@@ -39,6 +42,11 @@ public class TransferFileUri implements TransferFile, Parcelable {
         return uriWrapper.getLength();
     }
 
+    @Override
+    public long lastModified() {
+        return uriWrapper.getLastModified();
+    }
+
     @Override
     public InputStream getInputStream() throws FileNotFoundException {
         try {
@@ -49,6 +57,26 @@ public class TransferFileUri implements TransferFile, Parcelable {
         }
     }
 
+    @Override
+    public FileChannel getChannel() throws IOException {
+        ParcelFileDescriptor fileDescriptor;
+        try {
+            fileDescriptor = DftApplication.getContext().getContentResolver()
+                    .openFileDescriptor(uriWrapper.getUri(), "r");
+        } catch (SecurityException e) {
+            throw new FileNotFoundException("The file " + getName() + " doesn´t exists");
+        }
+        if (fileDescriptor == null) {
+            return null;
+        }
+        if (fileDescriptor.getStatSize() < 0) {
+            fileDescriptor.close();
+            return null;
+        }
+
+        return new ParcelFileDescriptor.AutoCloseInputStream(fileDescriptor).getChannel();
+    }
+
     public Uri getUri() {
         return uri;
     }
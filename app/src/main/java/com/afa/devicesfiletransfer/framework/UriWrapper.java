@@ -7,6 +7,7 @@ import android.net.Uri;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
+import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
 import android.webkit.MimeTypeMap;
@@ -18,6 +19,7 @@ public class UriWrapper implements Parcelable {
     private final Uri uri;
     private String fileName;
     private long length;
+    private long lastModified;
     private String realPath;
 
     public UriWrapper(Context context, Uri uri) {
@@ -43,6 +45,13 @@ public class UriWrapper implements Parcelable {
         return length;
     }
 
+    public long getLastModified() {
+        if (lastModified < 1)
+            setUpLastModified();
+
+        return lastModified;
+    }
+
     public String getRealPath() {
         if (realPath == null)
             setUpRealPath();
@@ -71,6 +80,31 @@ public class UriWrapper implements Parcelable {
         }
     }
 
+    private void setUpLastModified() {
+        lastModified = 0;
+        if (uri.getScheme() != null && uri.getScheme().equals("file")) {
+            lastModified = new File(uri.getPath()).lastModified();
+            return;
+        }
+
+        try (Cursor cursor = context.getContentResolver()
+                .query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int columnIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (columnIndex != -1 && !cursor.isNull(columnIndex)) {
+                    lastModified = cursor.getLong(columnIndex);
+                    return;
+                }
+                columnIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+                if (columnIndex != -1 && !cursor.isNull(columnIndex)) {
+                    lastModified = cursor.getLong(columnIndex) * 1000;
+                }
+            }
+        } catch (Exception e) {
+            lastModified = 0;
+        }
+    }
+
     private void setUpFileName() {
         String result = null;
         if (uri.getScheme() != null && uri.getScheme().equals("content")) {
@@ -164,6 +198,7 @@ public class UriWrapper implements Parcelable {
         dest.writeParcelable(uri, flags);
         dest.writeString(fileName);
         dest.writeLong(length);
+        dest.writeLong(lastModified);
         dest.writeString(realPath);
     }
 
@@ -171,6 +206,7 @@ public class UriWrapper implements Parcelable {
         uri = in.readParcelable(Uri.class.getClassLoader());
         fileName = in.readString();
         length = in.readLong();
+        lastModified = in.readLong();
         realPath = in.readString();
     }
 
@@ -18,4 +18,8 @@ public interface TransferDao {
 
     @Insert
     void addTransfer(TransferEntity transfer);
+
+    //Inserted in a single transaction
+    @Insert
+    void addTransfers(List<TransferEntity> transfers);
 }
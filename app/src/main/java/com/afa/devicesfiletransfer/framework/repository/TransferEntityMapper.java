@@ -0,0 +1,76 @@
+package com.afa.devicesfiletransfer.framework.repository;
+
+import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+import com.afa.devicesfiletransfer.framework.database.entities.DeviceEntity;
+import com.afa.devicesfiletransfer.framework.database.entities.TransferEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//Maps the transfers to the entities they are saved as and back, field by field
+public class TransferEntityMapper {
+    private static final Transfer.TransferStatus[] STATUSES = Transfer.TransferStatus.values();
+
+    private TransferEntityMapper() {
+    }
+
+    public static TransferEntity toEntity(Transfer transfer) {
+        TransferEntity transferEntity = new TransferEntity();
+        transferEntity.setDevice(toEntity(transfer.getDevice()));
+        transferEntity.setFilePath(transfer.getFilePath());
+        transferEntity.setProgress(transfer.getProgress());
+        transferEntity.setDate(transfer.getDate());
+        transferEntity.setStatus(transfer.getStatus().name());
+        transferEntity.setIncoming(transfer.isIncoming());
+        return transferEntity;
+    }
+
+    public static List<TransferEntity> toEntities(List<Transfer> transfers) {
+        List<TransferEntity> transferEntities = new ArrayList<>(transfers.size());
+        for (Transfer transfer : transfers) {
+            transferEntities.add(toEntity(transfer));
+        }
+        return transferEntities;
+    }
+
+    public static DeviceEntity toEntity(Device device) {
+        return new DeviceEntity(device.getName() != null ? device.getName() : "",
+                device.getOs() != null ? device.getOs() : "");
+    }
+
+    public static Transfer toTransfer(TransferEntity transferEntity) {
+        Transfer transfer = new Transfer();
+        transfer.setDevice(toDevice(transferEntity.getDevice()));
+        transfer.setFilePath(transferEntity.getFilePath());
+        transfer.setProgress(transferEntity.getProgress());
+        transfer.setDate(transferEntity.getDate());
+        transfer.setStatus(toStatus(transferEntity.getStatus()));
+        transfer.setIncoming(transferEntity.isIncoming());
+        return transfer;
+    }
+
+    public static List<Transfer> toTransfers(List<TransferEntity> transferEntities) {
+        List<Transfer> transfers = new ArrayList<>(transferEntities.size());
+        for (TransferEntity transferEntity : transferEntities) {
+            transfers.add(toTransfer(transferEntity));
+        }
+        return transfers;
+    }
+
+    //The address of a device is not saved, the device keeps the default one
+    public static Device toDevice(DeviceEntity deviceEntity) {
+        Device device = new Device();
+        device.setName(deviceEntity.getName());
+        device.setOs(deviceEntity.getOs());
+        return device;
+    }
+
+    //Statuses are saved by their name. A status no longer known is shown as failed
+    private static Transfer.TransferStatus toStatus(String status) {
+        for (Transfer.TransferStatus transferStatus : STATUSES) {
+            if (transferStatus.name().equals(status)) return transferStatus;
+        }
+        return Transfer.TransferStatus.FAILED;
+    }
+}
@@ -4,26 +4,19 @@ import android.content.Context;
 
 import com.afa.devicesfiletransfer.domain.model.Transfer;
 import com.afa.devicesfiletransfer.domain.repository.TransfersRepository;
-import com.afa.devicesfiletransfer.framework.ModelMapperFactory;
 import com.afa.devicesfiletransfer.framework.database.TransferDatabase;
 import com.afa.devicesfiletransfer.framework.database.dao.TransferDao;
 import com.afa.devicesfiletransfer.framework.database.entities.TransferEntity;
 
-import org.modelmapper.ModelMapper;
-
-import java.util.ArrayList;
 import java.util.List;
 
 import androidx.room.Room;
 
 public class TransfersRoomDatabaseRepository implements TransfersRepository {
     private final static String TRANSFER_DATABASE_NAME = "transfer";
-    private final ModelMapper modelMapper;
     private final TransferDao transferDao;
 
     public TransfersRoomDatabaseRepository(Context context) {
-        modelMapper = ModelMapperFactory.getInstance();
-
         Context applicationContext = context.getApplicationContext();
         TransferDatabase database = Room.databaseBuilder(
                 applicationContext, TransferDatabase.class, TRANSFER_DATABASE_NAME)
@@ -35,7 +28,7 @@ public class TransfersRoomDatabaseRepository implements TransfersRepository {
     public void getTransfers(GetTransfersCallback callback) {
         try {
             List<TransferEntity> transferEntities = transferDao.getTransfers();
-            List<Transfer> transfers = convertTransferEntityList(transferEntities);
+            List<Transfer> transfers = TransferEntityMapper.toTransfers(transferEntities);
             callback.onSuccess(transfers);
         } catch (Exception e) {
             callback.onError(e);
@@ -46,7 +39,7 @@ public class TransfersRoomDatabaseRepository implements TransfersRepository {
     public void getLastTransfers(int max, GetTransfersCallback callback) {
         try {
             List<TransferEntity> transferEntities = transferDao.getLastTransfers(max);
-            List<Transfer> transfers = convertTransferEntityList(transferEntities);
+            List<Transfer> transfers = TransferEntityMapper.toTransfers(transferEntities);
             callback.onSuccess(transfers);
         } catch (Exception e) {
             callback.onError(e);
@@ -55,7 +48,7 @@ public class TransfersRoomDatabaseRepository implements TransfersRepository {
 
     @Override
     public void saveTransfer(Transfer transfer, AddTransferCallback callback) {
-        TransferEntity transferEntity = modelMapper.map(transfer, TransferEntity.class);
+        TransferEntity transferEntity = TransferEntityMapper.toEntity(transfer);
         try {
             transferDao.addTransfer(transferEntity);
             callback.onSuccess();
@@ -64,14 +57,14 @@ public class TransfersRoomDatabaseRepository implements TransfersRepository {
         }
     }
 
-    private List<Transfer> convertTransferEntityList(List<TransferEntity> transferEntities) {
-        final List<Transfer> transfers = new ArrayList<>();
-
-        for (TransferEntity transferEntity : transferEntities) {
-            Transfer transfer = modelMapper.map(transferEntity, Transfer.class);
-            transfers.add(transfer);
+    @Override
+    public void saveTransfers(List<Transfer> transfers, AddTransferCallback callback) {
+        List<TransferEntity> transferEntities = TransferEntityMapper.toEntities(transfers);
+        try {
+            transferDao.addTransfers(transferEntities);
+            callback.onSuccess();
+        } catch (Exception e) {
+            callback.onError(e);
         }
-
-        return transfers;
     }
 }
@@ -0,0 +1,169 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import com.afa.devicesfiletransfer.domain.model.Device;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+//Devices found in the network by their address. Devices may leave without noticing it, so a device that is not
+//heard of within the time to live is removed. Listeners are told of every device added, updated or removed, a
+//device heard of again without changes is only refreshed
+public class DeviceRegistry {
+    private static final int MAX_EXPIRATION_CHECKS = 6;
+    private final ConcurrentMap<InetAddress, Entry> entries;
+    private final List<Listener> listeners;
+    private final long timeToLive;
+    private Timer expirationTimer;
+
+    public DeviceRegistry(long timeToLive) {
+        this.timeToLive = timeToLive;
+        entries = new ConcurrentHashMap<>();
+        listeners = new CopyOnWriteArrayList<>();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    //Expired devices are looked for several times within the time to live, so none outlives it by much
+    public synchronized void start() {
+        if (expirationTimer != null) return;
+
+        long checkInterval = Math.max(1, timeToLive / MAX_EXPIRATION_CHECKS);
+        expirationTimer = new Timer(true);
+        expirationTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, checkInterval, checkInterval);
+    }
+
+    public synchronized void stop() {
+        if (expirationTimer != null) {
+            expirationTimer.cancel();
+            expirationTimer = null;
+        }
+    }
+
+    public void seen(Device device) {
+        put(device, false);
+    }
+
+    //Devices added by hand do not expire, they may be out of reach of the heartbeats
+    public void add(Device device) {
+        put(device, true);
+    }
+
+    private void put(Device device, boolean pinned) {
+        long now = now();
+        while (true) {
+            Entry entry = entries.get(device.getAddress());
+            if (entry == null) {
+                if (entries.putIfAbsent(device.getAddress(), new Entry(device, now, pinned)) == null) {
+                    notifyAdded(device);
+                    return;
+                }
+            } else if (entry.isSameDevice(device)) {
+                entry.lastSeen = now;
+                entry.pinned |= pinned;
+                return;
+            } else if (entries.replace(device.getAddress(), entry, new Entry(device, now, pinned || entry.pinned))) {
+                notifyUpdated(device);
+                return;
+            }
+        }
+    }
+
+    public void remove(Device device) {
+        Entry entry = entries.remove(device.getAddress());
+        if (entry != null) {
+            notifyRemoved(entry.device);
+        }
+    }
+
+    //A device heard of while it is being removed is added again the next time it is heard of
+    public void expire() {
+        long expiredBefore = now() - timeToLive;
+        for (Entry entry : entries.values()) {
+            if (!entry.pinned && entry.lastSeen < expiredBefore
+                    && entries.remove(entry.device.getAddress(), entry)) {
+                notifyRemoved(entry.device);
+            }
+        }
+    }
+
+    public List<Device> getDevices() {
+        List<Device> devices = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            devices.add(entry.device);
+        }
+        return devices;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void notifyAdded(Device device) {
+        for (Listener listener : listeners) {
+            listener.onDeviceAdded(device);
+        }
+    }
+
+    private void notifyUpdated(Device device) {
+        for (Listener listener : listeners) {
+            listener.onDeviceUpdated(device);
+        }
+    }
+
+    private void notifyRemoved(Device device) {
+        for (Listener listener : listeners) {
+            listener.onDeviceRemoved(device);
+        }
+    }
+
+    private static class Entry {
+        private final Device device;
+        private volatile long lastSeen;
+        private volatile boolean pinned;
+
+        private Entry(Device device, long lastSeen, boolean pinned) {
+            this.device = device;
+            this.lastSeen = lastSeen;
+            this.pinned = pinned;
+        }
+
+        private boolean isSameDevice(Device other) {
+            return equalOrNull(device.getName(), other.getName()) && equalOrNull(device.getOs(), other.getOs())
+                    && device.isLegacy() == other.isLegacy();
+        }
+
+        private static boolean equalOrNull(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    public interface Listener {
+        void onDeviceAdded(Device device);
+
+        void onDeviceUpdated(Device device);
+
+        void onDeviceRemoved(Device device);
+    }
+}
@@ -0,0 +1,200 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import com.afa.devicesfiletransfer.domain.model.DeviceProperties;
+import com.afa.devicesfiletransfer.domain.model.DiscoveryOperation;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+//Discovery packets are a header followed by the name and the OS of the device, each one prefixed by its length.
+//Packets decoded from a device already known reuse the strings decoded before, so a packet repeated by the same
+//device is decoded without allocating. The JSON packets sent by older versions are still decoded, the ones sent by
+//this version along with a binary one are marked so they are only decoded by older versions
+public class DiscoveryCodec {
+    //"DFTD", first bytes of every binary packet
+    public static final int MAGIC = 0x44465444;
+    public static final byte VERSION = 1;
+    public static final int MAX_PACKET_SIZE = 1024;
+    public static final byte OPERATION_DISCOVERY = 1;
+    public static final byte OPERATION_RESPONSE = 2;
+    public static final byte OPERATION_DISCONNECT = 3;
+    private static final int HEADER_LENGTH = 6;
+    private static final int MAX_KNOWN_DEVICES = 256;
+    //Ignored by older versions, as any unknown field
+    private static final String BINARY_VERSION_FIELD = "binaryVersion";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final Gson gson = new Gson();
+    private final Map<InetAddress, KnownDevice> knownDevices;
+    private byte operation;
+    private boolean legacy;
+    private String name;
+    private String os;
+
+    //Decoding is not thread safe, each listener needs its own codec
+    public DiscoveryCodec() {
+        knownDevices = new HashMap<>();
+    }
+
+    public static byte[] encode(byte operation, DeviceProperties deviceProperties) {
+        byte[] name = toBytes(deviceProperties.getName());
+        byte[] os = toBytes(deviceProperties.getOs());
+        byte[] packet = new byte[HEADER_LENGTH + 2 + name.length + 2 + os.length];
+        int position = writeInt(packet, 0, MAGIC);
+        packet[position++] = VERSION;
+        packet[position++] = operation;
+        position = writeBytes(packet, position, name);
+        writeBytes(packet, position, os);
+        return packet;
+    }
+
+    //For devices of older versions, which only decode JSON
+    public static byte[] encodeLegacy(byte operation, DeviceProperties deviceProperties) {
+        String operationName = operation == OPERATION_DISCOVERY ? "discovery"
+                : operation == OPERATION_RESPONSE ? "response" : "disconnect";
+        JsonObject json = gson.toJsonTree(new DiscoveryOperation(operationName, deviceProperties)).getAsJsonObject();
+        json.addProperty(BINARY_VERSION_FIELD, VERSION);
+        return gson.toJson(json).getBytes(CHARSET);
+    }
+
+    //The strings of both must fit in a packet along with the header, a missing one is sent empty
+    private static byte[] toBytes(String value) {
+        if (value == null) return new byte[0];
+
+        return truncate(value.getBytes(CHARSET));
+    }
+
+    private static byte[] truncate(byte[] value) {
+        int maxLength = (MAX_PACKET_SIZE - HEADER_LENGTH) / 2 - 2;
+        if (value.length <= maxLength) return value;
+
+        byte[] truncated = new byte[maxLength];
+        System.arraycopy(value, 0, truncated, 0, maxLength);
+        return truncated;
+    }
+
+    private static int writeInt(byte[] packet, int position, int value) {
+        packet[position] = (byte) (value >>> 24);
+        packet[position + 1] = (byte) (value >>> 16);
+        packet[position + 2] = (byte) (value >>> 8);
+        packet[position + 3] = (byte) value;
+        return position + 4;
+    }
+
+    private static int writeBytes(byte[] packet, int position, byte[] value) {
+        packet[position] = (byte) (value.length >>> 8);
+        packet[position + 1] = (byte) value.length;
+        System.arraycopy(value, 0, packet, position + 2, value.length);
+        return position + 2 + value.length;
+    }
+
+    //Returns false when the packet is not a discovery packet
+    public boolean decode(InetAddress senderAddress, byte[] data, int offset, int length) {
+        if (length > 0 && data[offset] == '{') {
+            return decodeLegacy(new String(data, offset, length, CHARSET));
+        }
+        if (length < HEADER_LENGTH + 4 || readInt(data, offset) != MAGIC || data[offset + 4] != VERSION) return false;
+
+        byte packetOperation = data[offset + 5];
+        if (packetOperation < OPERATION_DISCOVERY || packetOperation > OPERATION_DISCONNECT) return false;
+
+        int end = offset + length;
+        int nameStart = offset + HEADER_LENGTH + 2;
+        int nameLength = readUnsignedShort(data, nameStart - 2);
+        int osStart = nameStart + nameLength + 2;
+        if (osStart > end) return false;
+        int osLength = readUnsignedShort(data, osStart - 2);
+        if (osStart + osLength > end) return false;
+
+        KnownDevice knownDevice = knownDevices.get(senderAddress);
+        if (knownDevice == null || !knownDevice.matches(data, nameStart, end - nameStart)) {
+            if (knownDevices.size() >= MAX_KNOWN_DEVICES) {
+                knownDevices.clear();
+            }
+            knownDevice = new KnownDevice(data, nameStart, end - nameStart,
+                    new String(data, nameStart, nameLength, CHARSET), new String(data, osStart, osLength, CHARSET));
+            knownDevices.put(senderAddress, knownDevice);
+        }
+
+        operation = packetOperation;
+        legacy = false;
+        name = knownDevice.name;
+        os = knownDevice.os;
+        return true;
+    }
+
+    //A marked packet is a copy of a binary one, which is decoded instead
+    private boolean decodeLegacy(String message) {
+        DiscoveryOperation discoveryOperation;
+        try {
+            JsonObject json = gson.fromJson(message, JsonObject.class);
+            if (json == null || json.has(BINARY_VERSION_FIELD)) return false;
+
+            discoveryOperation = gson.fromJson(json, DiscoveryOperation.class);
+        } catch (Exception e) {
+            return false;
+        }
+        if (discoveryOperation == null || discoveryOperation.getName() == null
+                || discoveryOperation.getDeviceProperties() == null) return false;
+
+        String operationName = discoveryOperation.getName();
+        operation = operationName.equals("discovery") ? OPERATION_DISCOVERY
+                : operationName.equals("response") ? OPERATION_RESPONSE : OPERATION_DISCONNECT;
+        legacy = true;
+        name = discoveryOperation.getDeviceProperties().getName();
+        os = discoveryOperation.getDeviceProperties().getOs();
+        return true;
+    }
+
+    private static int readInt(byte[] data, int position) {
+        return (data[position] & 0xff) << 24 | (data[position + 1] & 0xff) << 16
+                | (data[position + 2] & 0xff) << 8 | (data[position + 3] & 0xff);
+    }
+
+    private static int readUnsignedShort(byte[] data, int position) {
+        return (data[position] & 0xff) << 8 | (data[position + 1] & 0xff);
+    }
+
+    public byte getOperation() {
+        return operation;
+    }
+
+    //Whether the last packet decoded was sent by a device of an older version
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOs() {
+        return os;
+    }
+
+    //The bytes the strings of a device were decoded from
+    private static class KnownDevice {
+        private final byte[] encoded;
+        private final String name;
+        private final String os;
+
+        private KnownDevice(byte[] data, int offset, int length, String name, String os) {
+            encoded = new byte[length];
+            System.arraycopy(data, offset, encoded, 0, length);
+            this.name = name;
+            this.os = os;
+        }
+
+        private boolean matches(byte[] data, int offset, int length) {
+            if (length != encoded.length) return false;
+
+            for (int i = 0; i < length; i++) {
+                if (data[offset + i] != encoded[i]) return false;
+            }
+            return true;
+        }
+    }
+}
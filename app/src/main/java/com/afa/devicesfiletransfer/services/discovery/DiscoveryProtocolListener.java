@@ -3,28 +3,35 @@ package com.afa.devicesfiletransfer.services.discovery;
 import com.afa.devicesfiletransfer.domain.model.Device;
 import com.afa.devicesfiletransfer.domain.model.DeviceFactory;
 import com.afa.devicesfiletransfer.domain.model.DeviceProperties;
-import com.afa.devicesfiletransfer.domain.model.DiscoveryOperation;
-import com.google.gson.Gson;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DiscoveryProtocolListener {
-    private final NetworkDataProvider networkDataProvider;
-    private final int port;
+    protected final NetworkDataProvider networkDataProvider;
+    protected final int port;
     private Callback callback;
     private DatagramSocket serverSocket;
     private AtomicBoolean listening;
+    //Packets are received in the same buffer and decoded by the same codec, only used by the listening thread
+    private final DatagramPacket receivePacket;
+    private final DiscoveryCodec codec;
+    //Responses are encoded again only when the properties of the device change
+    private DeviceProperties responseProperties;
+    private byte[] response;
+    private byte[] legacyResponse;
 
     public DiscoveryProtocolListener(NetworkDataProvider networkDataProvider,
                                      int port) {
         this.networkDataProvider = networkDataProvider;
         this.port = port;
         this.listening = new AtomicBoolean(false);
+        byte[] receiveData = new byte[DiscoveryCodec.MAX_PACKET_SIZE];
+        receivePacket = new DatagramPacket(receiveData, receiveData.length);
+        codec = new DiscoveryCodec();
     }
 
     public DiscoveryProtocolListener(NetworkDataProvider networkDataProvider,
@@ -39,8 +46,8 @@ public class DiscoveryProtocolListener {
         }
 
         try {
-            serverSocket = new DatagramSocket(port);
-        } catch (SocketException e) {
+            serverSocket = openSocket();
+        } catch (IOException e) {
             if (callback != null) {
                 callback.initializationFailure(e);
             }
@@ -61,41 +68,40 @@ public class DiscoveryProtocolListener {
         serverSocket.close();
     }
 
+    protected DatagramSocket openSocket() throws IOException {
+        return new DatagramSocket(port);
+    }
+
+    //Called when the networks of the device change
+    public void onNetworksChanged() {
+    }
+
     private void listen() {
         while (listening.get()) {
             try {
-                DatagramPacket receivePacket = receiveRequest();
+                receiveRequest();
                 InetAddress senderAddress = receivePacket.getAddress();
-                String receivedMessage = new String(receivePacket.getData(),
-                        receivePacket.getOffset(),
-                        receivePacket.getLength());
-
                 if (networkDataProvider.isCurrentDeviceAddress(senderAddress)) {
                     continue;
                 }
-
-                DiscoveryOperation discoveryOperation;
-                try {
-                    discoveryOperation = new Gson()
-                            .fromJson(receivedMessage, DiscoveryOperation.class);
-                } catch (Exception e) {
+                if (!codec.decode(senderAddress, receivePacket.getData(), receivePacket.getOffset(),
+                        receivePacket.getLength())) {
                     continue;
                 }
 
-                String operation = discoveryOperation.getName();
-                DeviceProperties deviceProperties = discoveryOperation.getDeviceProperties();
-                if (operation.equals("discovery")) {
+                byte operation = codec.getOperation();
+                if (operation == DiscoveryCodec.OPERATION_DISCOVERY) {
                     if (callback != null) {
-                        notifyDiscoveryRequest(senderAddress, deviceProperties);
+                        notifyDiscoveryRequest(createDevice(senderAddress));
                     }
-                    sendResponse(senderAddress);
-                } else if (operation.equals("response")) {
+                    sendResponse(senderAddress, codec.isLegacy());
+                } else if (operation == DiscoveryCodec.OPERATION_RESPONSE) {
                     if (callback != null) {
-                        notifyDiscoveryResponse(senderAddress, deviceProperties);
+                        notifyDiscoveryResponse(createDevice(senderAddress));
                     }
                 } else {
                     if (callback != null) {
-                        notifyDiscoveryDisconnect(senderAddress, deviceProperties);
+                        notifyDiscoveryDisconnect(createDevice(senderAddress));
                     }
                 }
             } catch (IOException ignored) {
@@ -103,39 +109,46 @@ public class DiscoveryProtocolListener {
         }
     }
 
-    private DatagramPacket receiveRequest() throws IOException {
-        byte[] receiveData = new byte[1024];
-        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+    private void receiveRequest() throws IOException {
+        //The length of the packet is shrunk to the one of every packet received
+        receivePacket.setLength(receivePacket.getData().length);
         serverSocket.receive(receivePacket);
-        return receivePacket;
     }
 
-    private void sendResponse(InetAddress senderAddress) throws IOException {
-        DiscoveryOperation discoveryOperation =
-                new DiscoveryOperation("response", DeviceFactory.getCurrentDeviceProperties());
-        byte[] sendData = new Gson().toJson(discoveryOperation).getBytes();
+    //Devices of older versions are answered in the format they sent
+    private void sendResponse(InetAddress senderAddress, boolean legacy) throws IOException {
+        DeviceProperties deviceProperties = DeviceFactory.getCurrentDeviceProperties();
+        if (responseProperties == null || !equalOrNull(responseProperties.getName(), deviceProperties.getName())
+                || !equalOrNull(responseProperties.getOs(), deviceProperties.getOs())) {
+            response = DiscoveryCodec.encode(DiscoveryCodec.OPERATION_RESPONSE, deviceProperties);
+            legacyResponse = DiscoveryCodec.encodeLegacy(DiscoveryCodec.OPERATION_RESPONSE, deviceProperties);
+            responseProperties = deviceProperties;
+        }
+        byte[] sendData = legacy ? legacyResponse : response;
         DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, senderAddress, port);
         serverSocket.send(sendPacket);
     }
 
-    private void notifyDiscoveryRequest(InetAddress senderAddress, DeviceProperties deviceProperties) {
-        String name = deviceProperties.getName();
-        String os = deviceProperties.getOs();
-        Device device = new Device(name, os, senderAddress);
+    private static boolean equalOrNull(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    //Devices of older versions are still listed, but flagged as they cannot receive files from this version
+    private Device createDevice(InetAddress senderAddress) {
+        Device device = new Device(codec.getName(), codec.getOs(), senderAddress);
+        device.setLegacy(codec.isLegacy());
+        return device;
+    }
+
+    private void notifyDiscoveryRequest(Device device) {
         callback.discoveryRequestReceived(device);
     }
 
-    private void notifyDiscoveryResponse(InetAddress senderAddress, DeviceProperties deviceProperties) {
-        String name = deviceProperties.getName();
-        String os = deviceProperties.getOs();
-        Device device = new Device(name, os, senderAddress);
+    private void notifyDiscoveryResponse(Device device) {
         callback.discoveryResponseReceived(device);
     }
 
-    private void notifyDiscoveryDisconnect(InetAddress senderAddress, DeviceProperties deviceProperties) {
-        String name = deviceProperties.getName();
-        String os = deviceProperties.getOs();
-        Device device = new Device(name, os, senderAddress);
+    private void notifyDiscoveryDisconnect(Device device) {
         callback.discoveryDisconnect(device);
     }
 
@@ -1,11 +1,21 @@
 package com.afa.devicesfiletransfer.services.discovery;
 
+import com.afa.devicesfiletransfer.ConfigProperties;
+
 public class DiscoveryProtocolListenerFactory {
     public static DiscoveryProtocolListener getDefault(int port) {
-        return new DiscoveryProtocolListener(new NetworkDataProvider(), port);
+        return getDefault(port, null);
     }
 
     public static DiscoveryProtocolListener getDefault(int port, DiscoveryProtocolListener.Callback callback) {
+        return ConfigProperties.DISCOVERY_MULTICAST_ENABLED ? getMulticast(port, callback) : getBroadcast(port, callback);
+    }
+
+    public static DiscoveryProtocolListener getBroadcast(int port, DiscoveryProtocolListener.Callback callback) {
         return new DiscoveryProtocolListener(new NetworkDataProvider(), port, callback);
     }
+
+    public static DiscoveryProtocolListener getMulticast(int port, DiscoveryProtocolListener.Callback callback) {
+        return new MulticastDiscoveryProtocolListener(new NetworkDataProvider(), port, callback);
+    }
 }
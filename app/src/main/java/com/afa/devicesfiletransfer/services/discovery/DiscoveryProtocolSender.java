@@ -1,81 +1,191 @@
 package com.afa.devicesfiletransfer.services.discovery;
 
 import com.afa.devicesfiletransfer.domain.model.DeviceFactory;
-import com.afa.devicesfiletransfer.domain.model.DiscoveryOperation;
-import com.google.gson.Gson;
+import com.afa.devicesfiletransfer.domain.model.DeviceProperties;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+//Every packet is sent from the same socket by the same thread. Discoveries asked for while another one is still
+//recent are sent along with it, and discoveries are sent again a few times, further apart every time, so a few
+//packets lost do not hide any device. Delays are jittered so devices asked at once do not answer at once
 public class DiscoveryProtocolSender {
-    private NetworkDataProvider network;
-    private int port;
+    private static final long COALESCING_WINDOW = 1000;
+    private static final int DISCOVERY_RETRANSMISSIONS = 2;
+    private static final long FIRST_RETRANSMISSION_DELAY = 300;
+    private static final long DISCONNECT_RETRANSMISSION_DELAY = 100;
+    protected final NetworkDataProvider network;
+    protected final int port;
+    private final Random random;
+    private final List<ScheduledFuture<?>> discoveryRetransmissions;
+    private ScheduledExecutorService executor;
     private DatagramSocket socket;
+    private ScheduledFuture<?> announcements;
+    private long lastDiscoveryTime;
+    private boolean closed;
+    private volatile boolean legacyPacketsEnabled;
 
     public DiscoveryProtocolSender(NetworkDataProvider network, int port) {
         this.network = network;
         this.port = port;
+        random = new Random();
+        discoveryRetransmissions = new ArrayList<>();
+        lastDiscoveryTime = -COALESCING_WINDOW;
     }
 
-    public void discover() throws SocketException {
-        socket = new DatagramSocket();
-        new Thread(new Runnable() {
+    //Every packet is followed by a JSON copy, for devices of older versions
+    public void setLegacyPacketsEnabled(boolean legacyPacketsEnabled) {
+        this.legacyPacketsEnabled = legacyPacketsEnabled;
+    }
+
+    public synchronized void discover() throws SocketException {
+        open();
+        long now = now();
+        if (now - lastDiscoveryTime < COALESCING_WINDOW) return;
+
+        lastDiscoveryTime = now;
+        cancelDiscoveryRetransmissions();
+        send(DiscoveryCodec.OPERATION_DISCOVERY, 0);
+        long delay = 0;
+        for (int i = 0; i < DISCOVERY_RETRANSMISSIONS; i++) {
+            delay += FIRST_RETRANSMISSION_DELAY << i;
+            discoveryRetransmissions.add(send(DiscoveryCodec.OPERATION_DISCOVERY, jitter(delay)));
+        }
+    }
+
+    public synchronized void noticeDisconnect() throws SocketException {
+        open();
+        cancelDiscoveryRetransmissions();
+        stopAnnouncing();
+        send(DiscoveryCodec.OPERATION_DISCONNECT, 0);
+        send(DiscoveryCodec.OPERATION_DISCONNECT, DISCONNECT_RETRANSMISSION_DELAY);
+    }
+
+    //Tells the devices in the network that this device is still there, without asking them to answer
+    public synchronized void announce() throws SocketException {
+        open();
+        send(DiscoveryCodec.OPERATION_RESPONSE, 0);
+    }
+
+    //Announces the device every interval, starting at a random time, so a network of many devices is not flooded
+    //at once
+    public synchronized void startAnnouncing(long interval) throws SocketException {
+        open();
+        stopAnnouncing();
+        announcements = executor.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
-                broadcastDiscovery();
-                socket.close();
+                sendToAll(DiscoveryCodec.OPERATION_RESPONSE);
             }
-        }).start();
+        }, (long) (random.nextDouble() * interval), interval, TimeUnit.MILLISECONDS);
     }
 
-    public void noticeDisconnect() throws SocketException {
-        socket = new DatagramSocket();
-        new Thread(new Runnable() {
+    public synchronized void stopAnnouncing() {
+        if (announcements != null) {
+            announcements.cancel(false);
+            announcements = null;
+        }
+    }
+
+    //The packets already due are still sent, a disconnection included, before the socket is closed
+    public synchronized void close() {
+        if (closed) return;
+
+        closed = true;
+        if (executor == null) return;
+
+        cancelDiscoveryRetransmissions();
+        stopAnnouncing();
+        executor.schedule(new Runnable() {
             @Override
             public void run() {
-                broadcastDisconnect();
                 socket.close();
             }
-        }).start();
+        }, DISCONNECT_RETRANSMISSION_DELAY, TimeUnit.MILLISECONDS);
+        executor.shutdown();
     }
 
-    private void broadcastDiscovery() {
-        Set<InetAddress> addresses = network.getBroadcastAddresses();
-        for (InetAddress a : addresses) {
-            try {
-                sendDiscovery(a);
-            } catch (IOException ignored) {
-            }
+    //The socket is opened again if it was closed, as when its network went away
+    private void open() throws SocketException {
+        if (closed) throw new SocketException("The discovery sender is closed");
+
+        if (socket == null || socket.isClosed()) {
+            socket = openSocket();
+        }
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DiscoverySender");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
     }
 
-    private void broadcastDisconnect() {
-        Set<InetAddress> addresses = network.getBroadcastAddresses();
-        for (InetAddress a : addresses) {
-            try {
-                sendDisconnect(a);
-            } catch (IOException ignored) {
+    private ScheduledFuture<?> send(final byte operation, long delay) {
+        return executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendToAll(operation);
             }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelDiscoveryRetransmissions() {
+        for (ScheduledFuture<?> retransmission : discoveryRetransmissions) {
+            retransmission.cancel(false);
         }
+        discoveryRetransmissions.clear();
     }
 
-    private void sendDiscovery(InetAddress address) throws IOException {
-        sendOperation("discovery", address);
+    //Between three quarters and five quarters of the delay
+    private long jitter(long delay) {
+        return (long) (delay * (0.75 + random.nextDouble() * 0.5));
     }
 
-    private void sendDisconnect(InetAddress address) throws IOException {
-        sendOperation("disconnect", address);
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
     }
 
-    private void sendOperation(String operation, InetAddress address) throws IOException {
-        DiscoveryOperation discoveryOperation =
-                new DiscoveryOperation(operation, DeviceFactory.getCurrentDeviceProperties());
-        byte[] sendData = new Gson().toJson(discoveryOperation).getBytes();
-        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, address, port);
-        socket.send(sendPacket);
+    //Only called from the thread of the executor. The properties are read when sending, as they may have changed
+    private void sendToAll(byte operation) {
+        DatagramSocket currentSocket;
+        synchronized (this) {
+            currentSocket = socket;
+        }
+        DeviceProperties deviceProperties = DeviceFactory.getCurrentDeviceProperties();
+        sendToAll(currentSocket, DiscoveryCodec.encode(operation, deviceProperties));
+        if (legacyPacketsEnabled) {
+            sendToAll(currentSocket, DiscoveryCodec.encodeLegacy(operation, deviceProperties));
+        }
+    }
+
+    protected DatagramSocket openSocket() throws SocketException {
+        return new DatagramSocket();
+    }
+
+    //Sends the packet to every device in the networks of this device
+    protected void sendToAll(DatagramSocket socket, byte[] sendData) {
+        Set<InetAddress> addresses = network.getBroadcastAddresses();
+        for (InetAddress a : addresses) {
+            try {
+                socket.send(new DatagramPacket(sendData, sendData.length, a, port));
+            } catch (IOException ignored) {
+            }
+        }
     }
 }
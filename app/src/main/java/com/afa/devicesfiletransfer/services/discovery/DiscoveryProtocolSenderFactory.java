@@ -1,7 +1,22 @@
 package com.afa.devicesfiletransfer.services.discovery;
 
+import com.afa.devicesfiletransfer.ConfigProperties;
+
 public class DiscoveryProtocolSenderFactory {
     public static DiscoveryProtocolSender getDefault(int port) {
-        return new DiscoveryProtocolSender(new NetworkDataProvider(), port);
+        return ConfigProperties.DISCOVERY_MULTICAST_ENABLED ? getMulticast(port) : getBroadcast(port);
+    }
+
+    public static DiscoveryProtocolSender getBroadcast(int port) {
+        DiscoveryProtocolSender sender = new DiscoveryProtocolSender(new NetworkDataProvider(), port);
+        sender.setLegacyPacketsEnabled(ConfigProperties.DISCOVERY_LEGACY_PACKETS_ENABLED);
+        return sender;
+    }
+
+    public static DiscoveryProtocolSender getMulticast(int port) {
+        MulticastDiscoveryProtocolSender sender = new MulticastDiscoveryProtocolSender(new NetworkDataProvider(), port);
+        sender.setBroadcastEnabled(ConfigProperties.DISCOVERY_BROADCAST_ENABLED);
+        sender.setLegacyPacketsEnabled(ConfigProperties.DISCOVERY_LEGACY_PACKETS_ENABLED);
+        return sender;
     }
 }
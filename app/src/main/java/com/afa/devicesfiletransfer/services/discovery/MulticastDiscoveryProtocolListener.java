@@ -0,0 +1,63 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.util.HashSet;
+import java.util.Set;
+
+//Listens for the discovery packets sent to the multicast groups of every interface, joining the groups of the
+//interfaces that come up while listening. Broadcasts, as sent by devices of older versions, are still received
+public class MulticastDiscoveryProtocolListener extends DiscoveryProtocolListener {
+    private MulticastSocket multicastSocket;
+    //As the interface and the group joined in it
+    private final Set<String> joinedGroups;
+
+    public MulticastDiscoveryProtocolListener(NetworkDataProvider networkDataProvider, int port) {
+        super(networkDataProvider, port);
+        joinedGroups = new HashSet<>();
+    }
+
+    public MulticastDiscoveryProtocolListener(NetworkDataProvider networkDataProvider, int port, Callback callback) {
+        super(networkDataProvider, port, callback);
+        joinedGroups = new HashSet<>();
+    }
+
+    @Override
+    protected synchronized DatagramSocket openSocket() throws IOException {
+        multicastSocket = new MulticastSocket(port);
+        joinedGroups.clear();
+        joinGroups();
+        return multicastSocket;
+    }
+
+    @Override
+    public synchronized void onNetworksChanged() {
+        if (multicastSocket != null && !multicastSocket.isClosed()) {
+            joinGroups();
+        }
+    }
+
+    //The groups of the interfaces that went away are left by the system along with them
+    private void joinGroups() {
+        Set<String> currentGroups = new HashSet<>();
+        for (NetworkInterface networkInterface : networkDataProvider.getMulticastInterfaces()) {
+            for (InetAddress group : MulticastGroups.getGroups(networkInterface)) {
+                String key = networkInterface.getName() + "/" + group.getHostAddress();
+                if (!joinedGroups.contains(key)) {
+                    try {
+                        multicastSocket.joinGroup(new InetSocketAddress(group, port), networkInterface);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                }
+                currentGroups.add(key);
+            }
+        }
+        joinedGroups.clear();
+        joinedGroups.addAll(currentGroups);
+    }
+}
@@ -0,0 +1,63 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+
+//Sends the discovery packets to the multicast groups of every interface instead of broadcasting them. Devices of
+//older versions do not listen for them, so while broadcast is enabled the networks that have it are still reached
+//by broadcast, and only the others by multicast
+public class MulticastDiscoveryProtocolSender extends DiscoveryProtocolSender {
+    //Discovery packets are not routed out of the network of the device
+    private static final int TIME_TO_LIVE = 1;
+    private volatile boolean broadcastEnabled;
+
+    public MulticastDiscoveryProtocolSender(NetworkDataProvider network, int port) {
+        super(network, port);
+    }
+
+    public void setBroadcastEnabled(boolean broadcastEnabled) {
+        this.broadcastEnabled = broadcastEnabled;
+    }
+
+    @Override
+    protected DatagramSocket openSocket() throws SocketException {
+        MulticastSocket socket = null;
+        try {
+            socket = new MulticastSocket();
+            socket.setTimeToLive(TIME_TO_LIVE);
+            return socket;
+        } catch (IOException e) {
+            if (socket != null) {
+                socket.close();
+            }
+            SocketException socketException = new SocketException(e.getMessage());
+            socketException.initCause(e);
+            throw socketException;
+        }
+    }
+
+    @Override
+    protected void sendToAll(DatagramSocket socket, byte[] sendData) {
+        boolean broadcast = broadcastEnabled;
+        if (broadcast) {
+            super.sendToAll(socket, sendData);
+        }
+        MulticastSocket multicastSocket = (MulticastSocket) socket;
+        for (NetworkInterface networkInterface : network.getMulticastInterfaces()) {
+            InetAddress group = MulticastGroups.getSendGroup(networkInterface);
+            //The devices reached by the broadcast would answer twice
+            if (group == null || broadcast && MulticastGroups.hasBroadcast(networkInterface)) continue;
+
+            try {
+                multicastSocket.setNetworkInterface(networkInterface);
+                multicastSocket.send(new DatagramPacket(sendData, sendData.length, group, port));
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
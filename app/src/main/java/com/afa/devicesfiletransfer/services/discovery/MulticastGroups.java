@@ -0,0 +1,63 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+//The groups discovery packets are sent to instead of broadcast, so only the devices listening for them handle them.
+//IPv4 networks use an organization-local group, IPv6 networks, which have no broadcast, a link-local group that is
+//reached through every interface on its own
+class MulticastGroups {
+    private static final byte[] IPV4_GROUP = {(byte) 239, (byte) 255, 68, 70};
+    //ff02::4446:5444, the last bytes being "DFTD" as the magic of the packets
+    private static final byte[] IPV6_GROUP = {(byte) 0xff, 0x02, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x44, 0x46, 0x54, 0x44};
+
+    private MulticastGroups() {
+    }
+
+    //Whether the devices on the networks of the interface are reached by broadcast as well
+    static boolean hasBroadcast(NetworkInterface networkInterface) {
+        for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+            if (interfaceAddress.getBroadcast() != null) return true;
+        }
+        return false;
+    }
+
+    //The group packets are sent to through the interface. Devices on networks of both families are only reached by
+    //IPv4, otherwise they would be found twice, once by each of their addresses
+    static InetAddress getSendGroup(NetworkInterface networkInterface) {
+        List<InetAddress> groups = getGroups(networkInterface);
+        return groups.isEmpty() ? null : groups.get(0);
+    }
+
+    //The groups the interface reaches, one for each of its address families, IPv4 first
+    static List<InetAddress> getGroups(NetworkInterface networkInterface) {
+        boolean ipv4 = false;
+        boolean ipv6 = false;
+        Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+        while (addresses.hasMoreElements()) {
+            InetAddress address = addresses.nextElement();
+            ipv4 |= address instanceof Inet4Address;
+            ipv6 |= address instanceof Inet6Address;
+        }
+
+        List<InetAddress> groups = new ArrayList<>(2);
+        try {
+            if (ipv4) {
+                groups.add(InetAddress.getByAddress(IPV4_GROUP));
+            }
+            if (ipv6) {
+                groups.add(Inet6Address.getByAddress(null, IPV6_GROUP, networkInterface));
+            }
+        } catch (UnknownHostException ignored) {
+            //Only thrown for addresses of an invalid length
+        }
+        return groups;
+    }
+}
@@ -2,26 +2,32 @@ package com.afa.devicesfiletransfer.services.discovery;
 
 import java.io.IOException;
 import java.net.DatagramSocket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+//The interfaces and addresses of the device are read into a snapshot shared by every provider, which is taken
+//again once it expires or once the connectivity changes, so a lookup per packet received is a hash lookup
 public class NetworkDataProvider {
+    private static final long SNAPSHOT_TTL = 10000;
+    private static final Object snapshotLock = new Object();
+    private static volatile Snapshot snapshot;
+
+    //Called when the connectivity changes, the next lookup reads the interfaces again
+    public static void invalidate() {
+        snapshot = null;
+    }
 
     public boolean isCurrentDeviceAddress(InetAddress address) {
-        Set<InetAddress> currentDeviceAddresses = getDeviceAddresses();
-        String receivedIp = address.getHostAddress();
-        for (InetAddress a : currentDeviceAddresses) {
-            String currentDeviceIp = a.getHostAddress();
-            if (receivedIp.equals(currentDeviceIp)) {
-                return true;
-            }
-        }
-        return false;
+        return getSnapshot().deviceAddresses.contains(address);
     }
 
     public InetAddress getOutgoingDeviceIp() throws IOException {
@@ -34,69 +40,94 @@ public class NetworkDataProvider {
     }
 
     public Set<InetAddress> getDeviceAddresses() {
-        Set<InetAddress> addresses = new HashSet<>();
+        return getSnapshot().deviceAddresses;
+    }
 
-        try {
-            addresses = getDeviceAddressesInternal();
-        } catch (SocketException ignored) {
-        }
+    public Set<InetAddress> getBroadcastAddresses() {
+        return getSnapshot().broadcastAddresses;
+    }
 
-        return addresses;
+    public Set<Subnet> getSubnets() {
+        return getSnapshot().subnets;
     }
 
-    private Set<InetAddress> getDeviceAddressesInternal() throws SocketException {
-        Set<InetAddress> addresses = new HashSet<>();
+    //The interfaces that are up and can send and receive multicast packets, loopback aside
+    public List<NetworkInterface> getMulticastInterfaces() {
+        return getSnapshot().multicastInterfaces;
+    }
 
-        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-        while (interfaces.hasMoreElements()) {
-            NetworkInterface networkInterface = interfaces.nextElement();
-            try {
-                if (networkInterface.isLoopback() || !networkInterface.isUp())
-                    continue;
-            } catch (SocketException ignored) {
-            }
+    private Snapshot getSnapshot() {
+        Snapshot currentSnapshot = snapshot;
+        if (currentSnapshot != null && !currentSnapshot.isExpired()) return currentSnapshot;
 
-            Enumeration<InetAddress> inetAddresses = networkInterface.getInetAddresses();
-            while (inetAddresses.hasMoreElements()) {
-                InetAddress address = inetAddresses.nextElement();
-                addresses.add(address);
+        synchronized (snapshotLock) {
+            currentSnapshot = snapshot;
+            if (currentSnapshot == null || currentSnapshot.isExpired()) {
+                currentSnapshot = takeSnapshot();
+                snapshot = currentSnapshot;
             }
+            return currentSnapshot;
         }
-
-        return addresses;
     }
 
-    public Set<InetAddress> getBroadcastAddresses() {
-        Set<InetAddress> addresses = new HashSet<>();
-
+    private Snapshot takeSnapshot() {
+        Set<InetAddress> deviceAddresses = new HashSet<>();
+        Set<InetAddress> broadcastAddresses = new HashSet<>();
+        Set<Subnet> subnets = new HashSet<>();
+        List<NetworkInterface> multicastInterfaces = new ArrayList<>();
         try {
-            addresses = getBroadcastAddressesInternal();
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = interfaces.nextElement();
+                try {
+                    if (networkInterface.isLoopback() || !networkInterface.isUp())
+                        continue;
+                    if (networkInterface.supportsMulticast()) {
+                        multicastInterfaces.add(networkInterface);
+                    }
+                } catch (SocketException ignored) {
+                }
+
+                Enumeration<InetAddress> inetAddresses = networkInterface.getInetAddresses();
+                while (inetAddresses.hasMoreElements()) {
+                    deviceAddresses.add(inetAddresses.nextElement());
+                }
+                for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                    if (interfaceAddress.getAddress() instanceof Inet4Address) {
+                        subnets.add(new Subnet((Inet4Address) interfaceAddress.getAddress(),
+                                interfaceAddress.getNetworkPrefixLength()));
+                    }
+                    InetAddress broadcast = interfaceAddress.getBroadcast();
+                    if (broadcast == null)
+                        continue;
+
+                    broadcastAddresses.add(broadcast);
+                }
+            }
         } catch (SocketException ignored) {
         }
 
-        return addresses;
+        return new Snapshot(deviceAddresses, broadcastAddresses, subnets, multicastInterfaces);
     }
 
-    private Set<InetAddress> getBroadcastAddressesInternal() throws SocketException {
-        Set<InetAddress> addresses = new HashSet<>();
-
-        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-        while (interfaces.hasMoreElements()) {
-            NetworkInterface networkInterface = interfaces.nextElement();
-            try {
-                if (networkInterface.isLoopback() || !networkInterface.isUp())
-                    continue;
-            } catch (SocketException ignored) {
-            }
-            for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
-                InetAddress broadcast = interfaceAddress.getBroadcast();
-                if (broadcast == null)
-                    continue;
-
-                addresses.add(broadcast);
-            }
+    private static class Snapshot {
+        private final Set<InetAddress> deviceAddresses;
+        private final Set<InetAddress> broadcastAddresses;
+        private final Set<Subnet> subnets;
+        private final List<NetworkInterface> multicastInterfaces;
+        private final long expirationTime;
+
+        private Snapshot(Set<InetAddress> deviceAddresses, Set<InetAddress> broadcastAddresses, Set<Subnet> subnets,
+                         List<NetworkInterface> multicastInterfaces) {
+            this.deviceAddresses = Collections.unmodifiableSet(deviceAddresses);
+            this.broadcastAddresses = Collections.unmodifiableSet(broadcastAddresses);
+            this.subnets = Collections.unmodifiableSet(subnets);
+            this.multicastInterfaces = Collections.unmodifiableList(multicastInterfaces);
+            expirationTime = System.currentTimeMillis() + SNAPSHOT_TTL;
         }
 
-        return addresses;
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expirationTime;
+        }
     }
 }
@@ -0,0 +1,90 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+//The addresses of the devices seen lately, kept in a file so they can be asked first when the app starts again.
+//Only the most recently seen ones are kept
+public class PeerCache {
+    private static final int MAX_PEERS = 64;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private final File file;
+    //In the order they were last seen, the most recent last
+    private final Set<InetAddress> peers;
+    private boolean loaded;
+    private boolean changed;
+
+    public PeerCache(File file) {
+        this.file = file;
+        peers = new LinkedHashSet<>();
+    }
+
+    public synchronized void seen(InetAddress address) {
+        load();
+        peers.remove(address);
+        peers.add(address);
+        if (peers.size() > MAX_PEERS) {
+            peers.remove(peers.iterator().next());
+        }
+        changed = true;
+    }
+
+    //The most recently seen first
+    public synchronized List<InetAddress> getPeers() {
+        load();
+        List<InetAddress> recentPeers = new ArrayList<>(peers);
+        Collections.reverse(recentPeers);
+        return recentPeers;
+    }
+
+    //A cache that cannot be read is started again empty
+    private void load() {
+        if (loaded) return;
+
+        loaded = true;
+        if (!file.exists()) return;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET))) {
+            String line;
+            while ((line = reader.readLine()) != null && peers.size() < MAX_PEERS) {
+                //Numeric addresses are parsed without any lookup
+                if (!line.isEmpty()) {
+                    peers.add(InetAddress.getByName(line));
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    //Written to a temporary file first, so a cache is never left half written
+    public synchronized void save() {
+        if (!changed) return;
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporaryFile),
+                CHARSET))) {
+            for (InetAddress peer : peers) {
+                writer.write(peer.getHostAddress());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            return;
+        }
+        if (temporaryFile.renameTo(file)) {
+            changed = false;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+//An IPv4 network of the device, as the address of the device in it and the length of the network prefix
+public class Subnet {
+    private final Inet4Address address;
+    private final int prefixLength;
+
+    public Subnet(Inet4Address address, int prefixLength) {
+        this.address = address;
+        this.prefixLength = prefixLength;
+    }
+
+    public Inet4Address getAddress() {
+        return address;
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    //The addresses of the other hosts of the network, the nearest to the device first, as addresses given by the
+    //same router tend to be close to each other. Large networks are only swept near the device
+    public List<InetAddress> getNearestHosts(int maxHosts) {
+        List<InetAddress> hosts = new ArrayList<>();
+        if (prefixLength < 0 || prefixLength > 30) return hosts;
+
+        int self = toInt(address);
+        long size = 1L << (32 - prefixLength);
+        long network = (self & 0xffffffffL) & ~(size - 1);
+        long firstHost = network + 1;
+        long lastHost = network + size - 2;
+        long position = self & 0xffffffffL;
+        for (long distance = 1; hosts.size() < maxHosts; distance++) {
+            boolean above = position + distance <= lastHost;
+            boolean below = position - distance >= firstHost;
+            if (!above && !below) break;
+
+            if (above) {
+                hosts.add(toAddress(position + distance));
+            }
+            if (below && hosts.size() < maxHosts) {
+                hosts.add(toAddress(position - distance));
+            }
+        }
+        return hosts;
+    }
+
+    //Whether the address is one of the hosts of the network, which leaves out its network and broadcast addresses
+    public boolean containsHost(InetAddress host) {
+        if (!(host instanceof Inet4Address) || prefixLength < 0 || prefixLength > 30) return false;
+
+        long size = 1L << (32 - prefixLength);
+        long network = (toInt(address) & 0xffffffffL) & ~(size - 1);
+        long position = toInt(host) & 0xffffffffL;
+        return position > network && position < network + size - 1;
+    }
+
+    private static int toInt(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+    }
+
+    private static InetAddress toAddress(long value) {
+        byte[] bytes = {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            //Only thrown for addresses of an invalid length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Subnet subnet = (Subnet) o;
+        return prefixLength == subnet.prefixLength && address.equals(subnet.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * address.hashCode() + prefixLength;
+    }
+}
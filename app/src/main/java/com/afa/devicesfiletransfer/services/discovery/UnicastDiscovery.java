@@ -0,0 +1,259 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import com.afa.devicesfiletransfer.domain.model.DeviceFactory;
+import com.afa.devicesfiletransfer.domain.model.DeviceProperties;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+//Finds the devices on networks that filter broadcasts. The devices seen lately are asked first, as they are likely
+//still there, then the addresses near the device in each of its networks, every network swept in its own thread at
+//a limited rate. Devices answer to the listener as the discovery packets reach them, so they are found one by one
+//while the sweep goes on
+public class UnicastDiscovery {
+    private static final int MAX_SWEPT_HOSTS = 1022;
+    private static final long COALESCING_WINDOW = 1000;
+    private final NetworkDataProvider networkDataProvider;
+    private final PeerCache peerCache;
+    private final int port;
+    private final int packetsPerSecond;
+    private volatile boolean legacyPacketsEnabled;
+    private ExecutorService executor;
+    private Sweep sweep;
+
+    public UnicastDiscovery(NetworkDataProvider networkDataProvider, PeerCache peerCache, int port,
+                            int packetsPerSecond) {
+        this.networkDataProvider = networkDataProvider;
+        this.peerCache = peerCache;
+        this.port = port;
+        this.packetsPerSecond = packetsPerSecond;
+    }
+
+    //Every host is also sent a JSON copy of the packet, for devices of older versions
+    public void setLegacyPacketsEnabled(boolean legacyPacketsEnabled) {
+        this.legacyPacketsEnabled = legacyPacketsEnabled;
+    }
+
+    //A sweep of the same networks still going on, or finished less than a second ago, is left alone. A sweep of
+    //other networks is stopped and started again on the current ones
+    public void discover() {
+        discover(networkDataProvider.getSubnets());
+    }
+
+    public synchronized void discover(Collection<Subnet> subnets) {
+        List<Subnet> sweptSubnets = new ArrayList<>(subnets);
+        if (sweep != null && new HashSet<>(sweep.subnets).equals(new HashSet<>(sweptSubnets))
+                && (!sweep.finished || now() - sweep.finishTime < COALESCING_WINDOW)) return;
+
+        if (sweep != null) {
+            sweep.cancel();
+        }
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "UnicastDiscovery");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        sweep = new Sweep(sweptSubnets);
+        sweep.start(executor);
+    }
+
+    public synchronized void stop() {
+        if (sweep != null) {
+            sweep.cancel();
+            sweep = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        peerCache.save();
+    }
+
+    //Called with every device heard of, whether found by this discovery or not
+    public void deviceFound(InetAddress address) {
+        peerCache.seen(address);
+        Sweep currentSweep;
+        synchronized (this) {
+            currentSweep = sweep;
+        }
+        if (currentSweep != null) {
+            currentSweep.deviceFound(address);
+        }
+    }
+
+    //Milliseconds from the start of the last discovery to the first device found, -1 when none has been found
+    public synchronized long getTimeToFirstDevice() {
+        return sweep != null ? sweep.firstDeviceTime : -1;
+    }
+
+    //Milliseconds from the start of the last discovery to the last new device found, -1 when none has been found
+    public synchronized long getTimeToLastDevice() {
+        return sweep != null ? sweep.lastDeviceTime : -1;
+    }
+
+    public synchronized int getDevicesFound() {
+        return sweep != null ? sweep.foundAddresses.size() : 0;
+    }
+
+    public synchronized boolean isDiscovering() {
+        return sweep != null && !sweep.finished;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private class Sweep {
+        private final List<Subnet> subnets;
+        private final Set<InetAddress> foundAddresses;
+        private final long startTime;
+        private volatile long firstDeviceTime = -1;
+        private volatile long lastDeviceTime = -1;
+        private volatile boolean cancelled;
+        private volatile boolean finished;
+        private volatile long finishTime;
+        private volatile DatagramSocket socket;
+
+        private Sweep(List<Subnet> subnets) {
+            this.subnets = subnets;
+            foundAddresses = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+            startTime = now();
+        }
+
+        private void start(final ExecutorService executor) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sweep(executor);
+                    } finally {
+                        finishTime = now();
+                        finished = true;
+                        peerCache.save();
+                    }
+                }
+            });
+        }
+
+        private void cancel() {
+            cancelled = true;
+            if (socket != null) {
+                socket.close();
+            }
+        }
+
+        private void deviceFound(InetAddress address) {
+            if (!foundAddresses.add(address)) return;
+
+            long elapsedTime = now() - startTime;
+            if (firstDeviceTime == -1) {
+                firstDeviceTime = elapsedTime;
+            }
+            lastDeviceTime = elapsedTime;
+        }
+
+        private void sweep(ExecutorService executor) {
+            try {
+                socket = new DatagramSocket();
+            } catch (SocketException e) {
+                return;
+            }
+            if (cancelled) {
+                socket.close();
+                return;
+            }
+
+            try {
+                DeviceProperties deviceProperties = DeviceFactory.getCurrentDeviceProperties();
+                final List<byte[]> packets = new ArrayList<>(2);
+                packets.add(DiscoveryCodec.encode(DiscoveryCodec.OPERATION_DISCOVERY, deviceProperties));
+                if (legacyPacketsEnabled) {
+                    packets.add(DiscoveryCodec.encodeLegacy(DiscoveryCodec.OPERATION_DISCOVERY, deviceProperties));
+                }
+                final Set<InetAddress> probedAddresses = new HashSet<>(networkDataProvider.getDeviceAddresses());
+                List<InetAddress> peers = peerCache.getPeers();
+                probe(packets, peers, 0);
+                probedAddresses.addAll(peers);
+
+                List<Future<?>> subnetSweeps = new ArrayList<>();
+                for (final Subnet subnet : subnets) {
+                    subnetSweeps.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            List<InetAddress> hosts = subnet.getNearestHosts(MAX_SWEPT_HOSTS);
+                            hosts.removeAll(probedAddresses);
+                            probe(packets, hosts, packetsPerSecond);
+                        }
+                    }));
+                }
+                for (Future<?> subnetSweep : subnetSweeps) {
+                    subnetSweep.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | RejectedExecutionException ignored) {
+                //A network that fails to be swept, or is refused once stopped, leaves the others going
+            } finally {
+                socket.close();
+            }
+        }
+
+        //Sends the packets to every address paced to the rate given, or all at once without a rate
+        private void probe(List<byte[]> packets, List<InetAddress> addresses, int rate) {
+            long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * packets.size() / rate : 0;
+            long nextSendTime = System.nanoTime();
+            List<DatagramPacket> sendPackets = new ArrayList<>(packets.size());
+            for (byte[] packet : packets) {
+                DatagramPacket sendPacket = new DatagramPacket(packet, packet.length);
+                sendPacket.setPort(port);
+                sendPackets.add(sendPacket);
+            }
+            for (InetAddress address : addresses) {
+                if (cancelled) return;
+
+                long waitTime = nextSendTime - System.nanoTime();
+                if (waitTime > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(waitTime);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                nextSendTime += interval;
+
+                for (DatagramPacket sendPacket : sendPackets) {
+                    sendPacket.setAddress(address);
+                    try {
+                        socket.send(sendPacket);
+                    } catch (IOException ignored) {
+                        //Unreachable hosts are skipped, a closed socket ends the sweep
+                        if (socket.isClosed()) return;
+                    }
+                }
+            }
+        }
+    }
+}
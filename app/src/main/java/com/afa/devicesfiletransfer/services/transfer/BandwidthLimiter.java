@@ -0,0 +1,70 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Token bucket kept as the time at which the bytes already reserved are paid off, so reserving is a single
+//compare and set and the transfers sharing a limiter never block each other
+public class BandwidthLimiter {
+    //Time without traffic credited as a burst, longer pauses do not allow a larger burst
+    private static final long MAX_BURST_TIME = 100L * 1000000;
+    private static final BandwidthLimiter globalLimiter = new BandwidthLimiter();
+    private static final ConcurrentMap<InetAddress, BandwidthLimiter> deviceLimiters = new ConcurrentHashMap<>();
+    private final AtomicLong paidOffTime;
+    private volatile long maxBytesPerSecond;
+
+    public BandwidthLimiter() {
+        paidOffTime = new AtomicLong(System.nanoTime() - MAX_BURST_TIME);
+    }
+
+    //Shared by every transfer, in both directions
+    public static BandwidthLimiter getGlobalInstance() {
+        return globalLimiter;
+    }
+
+    public static BandwidthLimiter getInstance(InetAddress deviceAddress) {
+        BandwidthLimiter limiter = deviceLimiters.get(deviceAddress);
+        if (limiter == null) {
+            BandwidthLimiter newLimiter = new BandwidthLimiter();
+            limiter = deviceLimiters.putIfAbsent(deviceAddress, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+            }
+        }
+
+        return limiter;
+    }
+
+    //0 removes the limit. It takes effect on the next bytes reserved, also for transfers in progress
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        if (this.maxBytesPerSecond != maxBytesPerSecond) {
+            this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+        }
+    }
+
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public boolean isLimited() {
+        return maxBytesPerSecond > 0;
+    }
+
+    //Returns the nanoseconds to wait before the bytes are within the limit
+    public long reserve(long bytes) {
+        long rate = maxBytesPerSecond;
+        if (rate <= 0 || bytes <= 0) return 0;
+
+        long cost = bytes * 1000000000L / rate;
+        long now = System.nanoTime();
+        while (true) {
+            long currentPaidOffTime = paidOffTime.get();
+            long newPaidOffTime = Math.max(currentPaidOffTime, now - MAX_BURST_TIME) + cost;
+            if (paidOffTime.compareAndSet(currentPaidOffTime, newPaidOffTime)) {
+                return Math.max(0, newPaidOffTime - now);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+
+//Holds back a connection within the global, device and transfer limits. The bytes are reserved in quanta,
+//so the shared limiters are touched once every few chunks. Not thread safe, each connection needs its own
+public class BandwidthThrottle {
+    public static final int THROTTLED_CHUNK_SIZE = 64 * 1024;
+    private static final long RESERVATION_QUANTUM = 64 * 1024;
+    private final BandwidthLimiter deviceLimiter;
+    private final BandwidthLimiter transferLimiter;
+    private final Transfer transfer;
+    private long unreservedBytes;
+
+    //The limit of the transfer is read from it as it goes, a transfer of null is only held by the others
+    public BandwidthThrottle(InetAddress deviceAddress, Transfer transfer) {
+        this(BandwidthLimiter.getInstance(deviceAddress), new BandwidthLimiter(), transfer);
+    }
+
+    private BandwidthThrottle(BandwidthLimiter deviceLimiter, BandwidthLimiter transferLimiter, Transfer transfer) {
+        this.deviceLimiter = deviceLimiter;
+        this.transferLimiter = transferLimiter;
+        this.transfer = transfer;
+    }
+
+    //Another throttle for a connection moving the same transfer, the limit of the transfer is shared by both
+    public BandwidthThrottle share() {
+        return new BandwidthThrottle(deviceLimiter, transferLimiter, transfer);
+    }
+
+    public boolean isLimited() {
+        return BandwidthLimiter.getGlobalInstance().isLimited() || deviceLimiter.isLimited()
+                || (transfer != null && transfer.getMaxBytesPerSecond() > 0);
+    }
+
+    //Called after the bytes are moved, it waits until they are within every limit
+    public void throttle(long bytes) throws InterruptedIOException {
+        unreservedBytes += bytes;
+        if (unreservedBytes < RESERVATION_QUANTUM) return;
+
+        long reservedBytes = unreservedBytes;
+        unreservedBytes = 0;
+        if (transfer != null) {
+            transferLimiter.setMaxBytesPerSecond(transfer.getMaxBytesPerSecond());
+        }
+        long delay = Math.max(BandwidthLimiter.getGlobalInstance().reserve(reservedBytes),
+                Math.max(deviceLimiter.reserve(reservedBytes), transferLimiter.reserve(reservedBytes)));
+        if (delay <= 0) return;
+
+        try {
+            Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
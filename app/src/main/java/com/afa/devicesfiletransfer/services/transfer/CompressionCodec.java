@@ -0,0 +1,119 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//Encodes file data as a sequence of chunks, each one deflated or sent raw when deflating does not pay off
+public class CompressionCodec {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte CHUNK_END = 0;
+    private static final byte CHUNK_RAW = 1;
+    private static final byte CHUNK_DEFLATE = 2;
+    private static final int CHUNK_HEADER_SIZE = 9;
+    //Minimum saving for a sample to be considered compressible
+    private static final double MAX_COMPRESSION_RATIO = 0.9;
+    private Deflater deflater;
+    private Inflater inflater;
+    private final byte[] wireBuffer;
+    private long wireBytes;
+
+    public CompressionCodec() {
+        wireBuffer = new byte[CHUNK_SIZE];
+    }
+
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    public boolean isCompressible(byte[] sample, int length) {
+        return length > 0 && deflate(sample, length) < length * MAX_COMPRESSION_RATIO;
+    }
+
+    public void writeChunk(DataOutputStream outputStream, byte[] data, int length) throws IOException {
+        int compressedLength = deflate(data, length);
+        if (compressedLength < length) {
+            outputStream.writeByte(CHUNK_DEFLATE);
+            outputStream.writeInt(length);
+            outputStream.writeInt(compressedLength);
+            outputStream.write(wireBuffer, 0, compressedLength);
+            wireBytes += CHUNK_HEADER_SIZE + compressedLength;
+        } else {
+            outputStream.writeByte(CHUNK_RAW);
+            outputStream.writeInt(length);
+            outputStream.writeInt(length);
+            outputStream.write(data, 0, length);
+            wireBytes += CHUNK_HEADER_SIZE + length;
+        }
+    }
+
+    public void writeEnd(DataOutputStream outputStream) throws IOException {
+        outputStream.writeByte(CHUNK_END);
+        wireBytes++;
+    }
+
+    //Returns the number of bytes decoded into data, or -1 once the end chunk is read
+    public int readChunk(DataInputStream inputStream, byte[] data) throws IOException {
+        byte type = inputStream.readByte();
+        wireBytes++;
+        if (type == CHUNK_END) return -1;
+
+        int length = inputStream.readInt();
+        int compressedLength = inputStream.readInt();
+        if (length <= 0 || length > Math.min(CHUNK_SIZE, data.length)
+                || compressedLength <= 0 || compressedLength > CHUNK_SIZE) {
+            throw new ProtocolException("Invalid chunk of " + length + " bytes");
+        }
+        wireBytes += CHUNK_HEADER_SIZE - 1 + compressedLength;
+
+        if (type == CHUNK_RAW) {
+            inputStream.readFully(data, 0, length);
+            return length;
+        }
+        if (type != CHUNK_DEFLATE) {
+            throw new ProtocolException("Unknown chunk type " + type);
+        }
+
+        inputStream.readFully(wireBuffer, 0, compressedLength);
+        return inflate(compressedLength, data, length);
+    }
+
+    public void end() {
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+    }
+
+    //Returns the compressed length in wireBuffer, or length when the data does not shrink
+    private int deflate(byte[] data, int length) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int compressedLength = deflater.deflate(wireBuffer, 0, Math.min(length, wireBuffer.length));
+
+        return deflater.finished() ? compressedLength : length;
+    }
+
+    private int inflate(int compressedLength, byte[] data, int length) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(wireBuffer, 0, compressedLength);
+        try {
+            int inflatedLength = inflater.inflate(data, 0, length);
+            if (inflatedLength != length || !inflater.finished()) {
+                throw new ProtocolException("Corrupted chunk");
+            }
+            return inflatedLength;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupted chunk: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+//The CRC32 of java.util.zip, computed eight bytes at a time from any buffer. The platform one only takes byte
+//arrays before Android 8, where the direct buffers the data is pumped through would have to be copied to be hashed
+class Crc32 {
+    private static final int[] TABLE = createTable();
+    private int value;
+
+    //Goes on from the value of the bytes already hashed
+    public Crc32(long value) {
+        this.value = (int) value;
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        update(ByteBuffer.wrap(data, offset, length));
+    }
+
+    //Consumes the bytes between the position and the limit of the buffer, without moving its position
+    public void update(ByteBuffer buffer) {
+        ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = data.position();
+        int limit = data.limit();
+        int crc = ~value;
+        for (; position + 8 <= limit; position += 8) {
+            int low = data.getInt(position) ^ crc;
+            int high = data.getInt(position + 4);
+            crc = TABLE[7 * 256 + (low & 0xff)] ^ TABLE[6 * 256 + ((low >>> 8) & 0xff)]
+                    ^ TABLE[5 * 256 + ((low >>> 16) & 0xff)] ^ TABLE[4 * 256 + (low >>> 24)]
+                    ^ TABLE[3 * 256 + (high & 0xff)] ^ TABLE[2 * 256 + ((high >>> 8) & 0xff)]
+                    ^ TABLE[256 + ((high >>> 16) & 0xff)] ^ TABLE[high >>> 24];
+        }
+        for (; position < limit; position++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ data.get(position)) & 0xff];
+        }
+        value = ~crc;
+    }
+
+    public long getValue() {
+        return value & 0xffffffffL;
+    }
+
+    //The first table is the usual byte at a time one, each next one advances the previous by a zero byte
+    private static int[] createTable() {
+        int[] table = new int[8 * 256];
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xedb88320 : crc >>> 1;
+            }
+            table[i] = crc;
+        }
+        for (int i = 256; i < table.length; i++) {
+            int previous = table[i - 256];
+            table[i] = (previous >>> 8) ^ table[previous & 0xff];
+        }
+        return table;
+    }
+}
@@ -0,0 +1,263 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+//Encodes a file as the differences with an older copy held by the receiver. The receiver describes its copy
+//with a rolling checksum and an MD5 per block, and the sender answers with literal data and block references
+public class DeltaCodec {
+    public static final int LITERAL_SIZE = 64 * 1024;
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCKS = 1024 * 1024;
+    private static final int STRONG_CHECKSUM_LENGTH = 16;
+    //Bits of the filter that rules out most windows before walking the signatures, small enough to stay in cache
+    private static final int FILTER_BITS = 512 * 1024;
+    private static final byte OPERATION_END = 0;
+    private static final byte OPERATION_LITERAL = 1;
+    private static final byte OPERATION_BLOCK = 2;
+    private final int blockSize;
+    private final long basisLength;
+    private final int blocksCount;
+    private final MessageDigest digest;
+    private final byte[] strongChecksum;
+    private RandomAccessFile basisReader;
+    //Sender side signatures, chained by rolling checksum
+    private int[] weakChecksums;
+    private byte[] strongChecksums;
+    private int[] buckets;
+    private int[] nextInBucket;
+    private long[] filter;
+    private long wireBytes;
+
+    private DeltaCodec(int blockSize, long basisLength) {
+        this.blockSize = blockSize;
+        this.basisLength = basisLength;
+        this.blocksCount = (int) ((basisLength + blockSize - 1) / blockSize);
+        this.strongChecksum = new byte[STRONG_CHECKSUM_LENGTH];
+        try {
+            this.digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    //Returns null when the file is too large to be described with a bounded number of blocks
+    public static DeltaCodec forBasis(File basisFile) throws IOException {
+        long basisLength = basisFile.length();
+        int blockSize = (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, (long) Math.sqrt(basisLength)));
+        if ((basisLength + blockSize - 1) / blockSize > MAX_BLOCKS) return null;
+
+        DeltaCodec codec = new DeltaCodec(blockSize, basisLength);
+        codec.basisReader = new RandomAccessFile(basisFile, "r");
+        return codec;
+    }
+
+    //Reads the signatures written by the receiver with writeSignatures
+    public static DeltaCodec readSignatures(DataInputStream connectionInputStream) throws IOException {
+        //Signatures are read in a single piece instead of one field at a time from the connection
+        int signaturesLength = connectionInputStream.readInt();
+        if (signaturesLength < 0 || signaturesLength > 12 + MAX_BLOCKS * (4 + STRONG_CHECKSUM_LENGTH)) {
+            throw new ProtocolException("Invalid delta signatures length " + signaturesLength);
+        }
+        byte[] signatures = new byte[signaturesLength];
+        connectionInputStream.readFully(signatures);
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(signatures));
+
+        int blockSize = inputStream.readInt();
+        long basisLength = inputStream.readLong();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || basisLength < 0
+                || (basisLength + blockSize - 1) / blockSize > MAX_BLOCKS) {
+            throw new ProtocolException("Invalid delta signatures of " + basisLength + " bytes");
+        }
+
+        DeltaCodec codec = new DeltaCodec(blockSize, basisLength);
+        codec.weakChecksums = new int[codec.blocksCount];
+        codec.strongChecksums = new byte[codec.blocksCount * STRONG_CHECKSUM_LENGTH];
+        for (int i = 0; i < codec.blocksCount; i++) {
+            codec.weakChecksums[i] = inputStream.readInt();
+            inputStream.readFully(codec.strongChecksums, i * STRONG_CHECKSUM_LENGTH, STRONG_CHECKSUM_LENGTH);
+        }
+        codec.indexSignatures();
+        return codec;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    public void writeSignatures(DataOutputStream connectionOutputStream) throws IOException {
+        ByteArrayOutputStream signatures = new ByteArrayOutputStream(12 + blocksCount * (4 + STRONG_CHECKSUM_LENGTH));
+        DataOutputStream outputStream = new DataOutputStream(signatures);
+        outputStream.writeInt(blockSize);
+        outputStream.writeLong(basisLength);
+        byte[] block = new byte[blockSize];
+        basisReader.seek(0);
+        for (int i = 0; i < blocksCount; i++) {
+            int length = getBlockLength(i);
+            basisReader.readFully(block, 0, length);
+            outputStream.writeInt(weakChecksum(block, 0, length));
+            digest.update(block, 0, length);
+            outputStream.write(digest.digest());
+        }
+        connectionOutputStream.writeInt(signatures.size());
+        signatures.writeTo(connectionOutputStream);
+    }
+
+    //Returns the basis block with the same content as the data, or -1 if there is none
+    public int findBlock(int weakChecksum, byte[] data, int offset, int length) {
+        if (!mayContain(weakChecksum)) return -1;
+
+        boolean strongChecksumComputed = false;
+        for (int i = buckets[weakChecksum & (buckets.length - 1)]; i != -1; i = nextInBucket[i]) {
+            if (weakChecksums[i] != weakChecksum || getBlockLength(i) != length) continue;
+
+            if (!strongChecksumComputed) {
+                digest.update(data, offset, length);
+                try {
+                    digest.digest(strongChecksum, 0, STRONG_CHECKSUM_LENGTH);
+                } catch (DigestException e) {
+                    throw new IllegalStateException(e);
+                }
+                strongChecksumComputed = true;
+            }
+            if (isStrongChecksumEqual(i)) return i;
+        }
+
+        return -1;
+    }
+
+    //Tells cheaply that no block has the rolling checksum, most windows stop here
+    private boolean mayContain(int weakChecksum) {
+        int filterBit = (weakChecksum ^ (weakChecksum >>> 16)) & (FILTER_BITS - 1);
+        return (filter[filterBit >>> 6] & (1L << filterBit)) != 0;
+    }
+
+    //Only the last block of the basis can be shorter than the block size
+    public boolean isLastBlockLength(int length) {
+        return blocksCount > 0 && getBlockLength(blocksCount - 1) == length;
+    }
+
+    public void writeLiteral(DataOutputStream outputStream, byte[] data, int offset, int length) throws IOException {
+        if (length == 0) return;
+
+        outputStream.writeByte(OPERATION_LITERAL);
+        outputStream.writeInt(length);
+        outputStream.write(data, offset, length);
+        wireBytes += 5 + length;
+    }
+
+    public void writeBlock(DataOutputStream outputStream, int block) throws IOException {
+        outputStream.writeByte(OPERATION_BLOCK);
+        outputStream.writeInt(block);
+        wireBytes += 5;
+    }
+
+    public void writeEnd(DataOutputStream outputStream) throws IOException {
+        outputStream.writeByte(OPERATION_END);
+        wireBytes++;
+    }
+
+    //Returns the number of bytes of the new file decoded into data, or -1 once the end is read
+    public int readOperation(DataInputStream inputStream, byte[] data) throws IOException {
+        byte operation = inputStream.readByte();
+        wireBytes++;
+        if (operation == OPERATION_END) return -1;
+
+        int value = inputStream.readInt();
+        wireBytes += 4;
+        if (operation == OPERATION_LITERAL) {
+            if (value <= 0 || value > Math.min(LITERAL_SIZE, data.length)) {
+                throw new ProtocolException("Invalid literal of " + value + " bytes");
+            }
+            inputStream.readFully(data, 0, value);
+            wireBytes += value;
+            return value;
+        }
+        if (operation != OPERATION_BLOCK) {
+            throw new ProtocolException("Unknown delta operation " + operation);
+        }
+        if (value < 0 || value >= blocksCount) {
+            throw new ProtocolException("Invalid block " + value);
+        }
+
+        int length = getBlockLength(value);
+        basisReader.seek((long) value * blockSize);
+        basisReader.readFully(data, 0, length);
+        return length;
+    }
+
+    public void close() {
+        if (basisReader == null) return;
+
+        try {
+            basisReader.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += (length - i) * (data[offset + i] & 0xff);
+        }
+
+        return (a & 0xffff) | (b << 16);
+    }
+
+    //Slides a window of length bytes one byte forward, dropping the first byte and appending the next one
+    public static int rollWeakChecksum(int weakChecksum, int length, byte first, byte next) {
+        int a = weakChecksum & 0xffff;
+        int b = weakChecksum >>> 16;
+        a = (a - (first & 0xff) + (next & 0xff)) & 0xffff;
+        b = (b - length * (first & 0xff) + a) & 0xffff;
+
+        return a | (b << 16);
+    }
+
+    private int getBlockLength(int block) {
+        return (int) Math.min(blockSize, basisLength - (long) block * blockSize);
+    }
+
+    private void indexSignatures() {
+        int bucketsCount = Integer.highestOneBit(Math.max(1, blocksCount) * 2);
+        buckets = new int[bucketsCount];
+        nextInBucket = new int[blocksCount];
+        filter = new long[FILTER_BITS / 64];
+        for (int i = 0; i < bucketsCount; i++) {
+            buckets[i] = -1;
+        }
+        //Blocks are chained in reverse, so the first block with a given content is found first
+        for (int i = blocksCount - 1; i >= 0; i--) {
+            int bucket = weakChecksums[i] & (bucketsCount - 1);
+            nextInBucket[i] = buckets[bucket];
+            buckets[bucket] = i;
+            int filterBit = (weakChecksums[i] ^ (weakChecksums[i] >>> 16)) & (FILTER_BITS - 1);
+            filter[filterBit >>> 6] |= 1L << filterBit;
+        }
+    }
+
+    private boolean isStrongChecksumEqual(int block) {
+        int offset = block * STRONG_CHECKSUM_LENGTH;
+        for (int i = 0; i < STRONG_CHECKSUM_LENGTH; i++) {
+            if (strongChecksums[offset + i] != strongChecksum[i]) return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,17 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import java.io.IOException;
+
+//Thrown when the receiver cannot take a new session yet, it tells how long to wait before trying again
+public class ReceiverBusyException extends IOException {
+    private final long retryDelay;
+
+    public ReceiverBusyException(long retryDelay) {
+        super("The receiver is busy, retry in " + retryDelay + " ms");
+        this.retryDelay = retryDelay;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+}
@@ -0,0 +1,91 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+
+//State of a file in one of the devices reached through a relay, passed on by every relay up to the origin
+public class RelayReport {
+    private final byte type;
+    private final String deviceAddress;
+    private final String fileName;
+    private final int progress;
+    private final String message;
+
+    private RelayReport(byte type, String deviceAddress, String fileName, int progress, String message) {
+        this.type = type;
+        this.deviceAddress = deviceAddress;
+        this.fileName = fileName;
+        this.progress = progress;
+        this.message = message;
+    }
+
+    public static RelayReport progress(String deviceAddress, String fileName, int progress) {
+        return new RelayReport(TransferProtocol.REPORT_PROGRESS, deviceAddress, fileName, progress, null);
+    }
+
+    public static RelayReport success(String deviceAddress, String fileName) {
+        return new RelayReport(TransferProtocol.REPORT_SUCCESS, deviceAddress, fileName, 100, null);
+    }
+
+    public static RelayReport failure(String deviceAddress, String fileName, String message) {
+        return new RelayReport(TransferProtocol.REPORT_FAILURE, deviceAddress, fileName, 0,
+                message != null ? message : "The file could not be relayed");
+    }
+
+    public static RelayReport end() {
+        return new RelayReport(TransferProtocol.REPORT_END, null, null, 0, null);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getProgress() {
+        return progress;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeByte(type);
+        if (type == TransferProtocol.REPORT_END) return;
+
+        TransferProtocol.writeString(outputStream, deviceAddress);
+        TransferProtocol.writeString(outputStream, fileName);
+        if (type == TransferProtocol.REPORT_PROGRESS) {
+            outputStream.writeByte(progress);
+        } else if (type == TransferProtocol.REPORT_FAILURE) {
+            TransferProtocol.writeString(outputStream, message);
+        }
+    }
+
+    public static RelayReport read(DataInputStream inputStream) throws IOException {
+        byte type = inputStream.readByte();
+        if (type == TransferProtocol.REPORT_END) return end();
+
+        String deviceAddress = TransferProtocol.readString(inputStream);
+        String fileName = TransferProtocol.readString(inputStream);
+        switch (type) {
+            case TransferProtocol.REPORT_PROGRESS:
+                return progress(deviceAddress, fileName, inputStream.readByte());
+            case TransferProtocol.REPORT_SUCCESS:
+                return success(deviceAddress, fileName);
+            case TransferProtocol.REPORT_FAILURE:
+                return failure(deviceAddress, fileName, TransferProtocol.readString(inputStream));
+            default:
+                throw new ProtocolException("Unknown relay report " + type);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+//Checksum of the bytes of a file, updated while they are pumped so the data is never read twice
+public class TransferChecksum {
+    //Verifies nothing, its value is empty
+    public static final byte NONE = 0;
+    public static final byte CRC32 = 1;
+    public static final byte SHA256 = 2;
+    //CRC32.update(ByteBuffer), which hashes direct buffers where they are, from Android 8 on
+    private static final Method PLATFORM_BUFFER_UPDATE = findPlatformBufferUpdate();
+    private CRC32 crc;
+    private Crc32 bufferCrc;
+    private final MessageDigest digest;
+
+    private TransferChecksum(CRC32 crc, MessageDigest digest) {
+        this.crc = crc;
+        this.digest = digest;
+    }
+
+    public static TransferChecksum create(byte algorithm) {
+        if (algorithm == NONE) return new TransferChecksum(null, null);
+        if (algorithm == SHA256) {
+            try {
+                return new TransferChecksum(null, MessageDigest.getInstance("SHA-256"));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        return new TransferChecksum(new CRC32(), null);
+    }
+
+    //SHA-256 of everything left in the stream, used to identify a file by its content
+    public static byte[] computeContentHash(InputStream inputStream) throws IOException {
+        TransferChecksum checksum = create(SHA256);
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            checksum.update(buffer, 0, read);
+        }
+
+        return checksum.getValue();
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        if (bufferCrc != null) {
+            bufferCrc.update(data, offset, length);
+        } else if (crc != null) {
+            crc.update(data, offset, length);
+        } else if (digest != null) {
+            digest.update(data, offset, length);
+        }
+    }
+
+    //Consumes the bytes between the position and the limit of the buffer, without moving its position. Direct
+    //buffers are hashed where they are, by the platform when it can and otherwise by a CRC32 going on in Java
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else if (crc != null && PLATFORM_BUFFER_UPDATE != null) {
+            try {
+                PLATFORM_BUFFER_UPDATE.invoke(crc, buffer.duplicate());
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("The checksum cannot be updated", e);
+            }
+        } else if (crc != null || bufferCrc != null) {
+            if (bufferCrc == null) {
+                bufferCrc = new Crc32(crc.getValue());
+                crc = null;
+            }
+            bufferCrc.update(buffer);
+        } else if (digest != null) {
+            digest.update(buffer.duplicate());
+        }
+    }
+
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.write(getValue());
+    }
+
+    //Reads the checksum computed by the other peer and returns whether it matches this one
+    public boolean verify(DataInputStream inputStream) throws IOException {
+        byte[] value = getValue();
+        byte[] receivedValue = new byte[value.length];
+        inputStream.readFully(receivedValue);
+
+        return MessageDigest.isEqual(value, receivedValue);
+    }
+
+    private byte[] getValue() {
+        if (crc != null || bufferCrc != null) {
+            long value = crc != null ? crc.getValue() : bufferCrc.getValue();
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+        if (digest == null) return new byte[0];
+
+        return digest.digest();
+    }
+
+    private static Method findPlatformBufferUpdate() {
+        try {
+            return CRC32.class.getMethod("update", ByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
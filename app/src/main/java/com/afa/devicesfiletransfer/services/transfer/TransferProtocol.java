@@ -0,0 +1,150 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+
+public class TransferProtocol {
+    //"DFTP", first bytes of every connection
+    public static final int MAGIC = 0x44465450;
+    public static final byte VERSION = 8;
+    public static final int SESSION_HEADER_LENGTH = 6;
+    //Answers come at once, or within seconds when the other device has to go through a large file first. A device
+    //that does not answer for this long is taken as gone, so its connection does not hold a turn forever
+    public static final int READ_TIMEOUT = 60000;
+
+    //Session carrying whole files, announced one frame at a time
+    public static final byte SESSION_FILES = 1;
+    //Session carrying a byte range of a striped file
+    public static final byte SESSION_STRIPE = 2;
+    //Session that sets up the forwarding of the files sent in the files sessions of a relay, and carries back the
+    //reports of the devices reached through it
+    public static final byte SESSION_RELAY = 3;
+
+    //Answered by the receiver once the session header has been read
+    public static final byte HANDSHAKE_ACCEPTED = 0;
+    public static final byte HANDSHAKE_UNSUPPORTED_VERSION = 1;
+    //Followed by an int with the milliseconds to wait before connecting again
+    public static final byte HANDSHAKE_BUSY = 2;
+
+    //Optional features announced by the sender in the handshake, the receiver answers the ones it accepts
+    public static final byte CAPABILITY_COMPRESSION = 1;
+    //Files are verified with SHA-256 instead of CRC32
+    public static final byte CAPABILITY_SHA256 = 2;
+    //Files can be announced with a content hash and skipped when the receiver already has them
+    public static final byte CAPABILITY_DEDUPLICATION = 4;
+    //Files can be sent as the differences with an older copy held by the receiver
+    public static final byte CAPABILITY_DELTA = 8;
+    //The files of the session belong to a relay, followed by its id once accepted
+    public static final byte CAPABILITY_RELAY = 16;
+    //Files are sent without a checksum, so the sender can leave them to the kernel instead of reading them
+    public static final byte CAPABILITY_UNVERIFIED = 32;
+    public static final byte SUPPORTED_CAPABILITIES = CAPABILITY_COMPRESSION | CAPABILITY_SHA256
+            | CAPABILITY_DEDUPLICATION | CAPABILITY_DELTA | CAPABILITY_RELAY | CAPABILITY_UNVERIFIED;
+
+    public static final byte FRAME_FILE = 1;
+    //Several small files sent back to back, answered with one result per file
+    public static final byte FRAME_BATCH = 2;
+    public static final byte FRAME_END = 0;
+    public static final int MAX_BATCH_FILES = 128;
+
+    public static final byte FLAG_STRIPED = 1;
+    public static final byte FLAG_COMPRESSED = 2;
+    //The sender can give the SHA-256 of the whole content, if the receiver asks for it
+    public static final byte FLAG_HASHED = 4;
+    public static final int CONTENT_HASH_LENGTH = 32;
+    //The sender can send the file as a delta if the receiver has an older copy, the file header carries the time the
+    //file was last modified
+    public static final byte FLAG_DELTA = 8;
+
+    //Answered instead of the resume offset when the receiver cannot take the file
+    public static final long FILE_REJECTED = -1;
+    //Answered instead of the resume offset when the receiver already has a file with the same content
+    public static final long FILE_ALREADY_RECEIVED = -2;
+    //Answered instead of the resume offset when the receiver has an older copy, followed by its block signatures
+    public static final long DELTA_SIGNATURES = -3;
+    //Answered instead of the resume offset when the receiver has no room for the file
+    public static final long FILE_NO_SPACE = -4;
+    //Answered instead of the resume offset when the receiver cannot take the file yet, followed by an int with the
+    //milliseconds to wait before offering it again
+    public static final long FILE_BUSY = -5;
+    //Answered instead of the resume offset when the receiver has files of the same size, the sender answers whether
+    //it could hash the file, followed by its SHA-256 if so, and the receiver answers the file again
+    public static final long CONTENT_HASH_REQUESTED = -6;
+
+    //Result of every file of a batch
+    public static final byte BATCH_FILE_FAILED = 0;
+    public static final byte BATCH_FILE_STORED = 1;
+    public static final byte BATCH_FILE_NO_SPACE = 2;
+
+    //Answered by a relay once the devices after it are ready to receive the files
+    public static final byte RELAY_READY = 0;
+    public static final byte RELAY_REFUSED = 1;
+    //Sent to a relay once every file has been sent to it
+    public static final byte RELAY_FILES_END = 0;
+    public static final int MAX_RELAY_DEVICES = 1024;
+
+    //Reports carried back from the devices reached through a relay
+    public static final byte REPORT_END = 0;
+    public static final byte REPORT_PROGRESS = 1;
+    public static final byte REPORT_SUCCESS = 2;
+    public static final byte REPORT_FAILURE = 3;
+
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private TransferProtocol() {
+    }
+
+    public static void writeSessionHeader(DataOutputStream outputStream, byte sessionType) throws IOException {
+        outputStream.writeInt(MAGIC);
+        outputStream.writeByte(VERSION);
+        outputStream.writeByte(sessionType);
+    }
+
+    public static byte readSessionHeader(DataInputStream inputStream) throws IOException {
+        if (inputStream.readInt() != MAGIC) {
+            throw new ProtocolException("Unknown transfer protocol");
+        }
+        byte version = inputStream.readByte();
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported transfer protocol version " + version);
+        }
+
+        return inputStream.readByte();
+    }
+
+    public static void readHandshakeResponse(DataInputStream inputStream) throws IOException {
+        byte response = inputStream.readByte();
+        if (response == HANDSHAKE_BUSY) {
+            throw new ReceiverBusyException(inputStream.readInt());
+        }
+        if (response != HANDSHAKE_ACCEPTED) {
+            throw new ProtocolException("The receiver does not support the transfer protocol version " + VERSION);
+        }
+    }
+
+    public static byte getChecksumAlgorithm(byte acceptedCapabilities) {
+        if ((acceptedCapabilities & CAPABILITY_UNVERIFIED) != 0) return TransferChecksum.NONE;
+
+        return (acceptedCapabilities & CAPABILITY_SHA256) != 0 ? TransferChecksum.SHA256 : TransferChecksum.CRC32;
+    }
+
+    public static void writeString(DataOutputStream outputStream, String value) throws IOException {
+        byte[] bytes = value.getBytes(CHARSET);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    public static String readString(DataInputStream inputStream) throws IOException {
+        int length = inputStream.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new ProtocolException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        inputStream.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
@@ -0,0 +1,103 @@
+package com.afa.devicesfiletransfer.services.transfer.receiver;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Limits what the receiver takes at once: sessions, stripes, bytes announced and not received yet, and files being
+//written. Files are only admitted when the target directory has room for them besides the ones already admitted
+public class AdmissionController {
+    public static final int ADMITTED = 0;
+    //The file does not fit in the target directory, trying again later will not help
+    public static final int NO_SPACE = 1;
+    //Too many bytes are in flight, the file can be offered again after the retry delay
+    public static final int BUSY = 2;
+    //Room kept free in the target directory for everything else
+    private static final long SPACE_MARGIN = 16 * 1024 * 1024;
+    private static final int RETRY_DELAY = 1000;
+    //Stripes of a striped file come through connections of their own, a sender opens at most this many at once
+    private static final int MAX_STRIPES_PER_SESSION = 8;
+    private final File targetDirectory;
+    private final int maxSessions;
+    private final long maxInFlightBytes;
+    private final AtomicInteger activeSessions;
+    private final AtomicInteger activeStripes;
+    private final Semaphore writers;
+    private long inFlightBytes;
+
+    public AdmissionController(File targetDirectory, int maxSessions, long maxInFlightBytes, int maxWriters) {
+        this.targetDirectory = targetDirectory;
+        this.maxSessions = maxSessions;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.activeSessions = new AtomicInteger(0);
+        this.activeStripes = new AtomicInteger(0);
+        this.writers = new Semaphore(maxWriters, true);
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public int getRetryDelay() {
+        return RETRY_DELAY;
+    }
+
+    public boolean tryAcquireSession() {
+        return tryAcquire(activeSessions, maxSessions);
+    }
+
+    public void releaseSession() {
+        activeSessions.decrementAndGet();
+    }
+
+    public boolean tryAcquireStripe() {
+        return tryAcquire(activeStripes, maxSessions * MAX_STRIPES_PER_SESSION);
+    }
+
+    public void releaseStripe() {
+        activeStripes.decrementAndGet();
+    }
+
+    private static boolean tryAcquire(AtomicInteger counter, int max) {
+        while (true) {
+            int count = counter.get();
+            if (count >= max) return false;
+            if (counter.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    //Returns ADMITTED after reserving the bytes, which must be released with releaseFile, or the reason to refuse it
+    public synchronized int admitFile(long bytes) {
+        if (!hasSpaceFor(bytes)) return NO_SPACE;
+        //A file larger than the limit is still admitted when nothing else is in flight
+        if (inFlightBytes > 0 && inFlightBytes + bytes > maxInFlightBytes) return BUSY;
+
+        inFlightBytes += bytes;
+        return ADMITTED;
+    }
+
+    public synchronized void releaseFile(long bytes) {
+        inFlightBytes -= bytes;
+    }
+
+    //Space check for files too small to be worth reserving, like the ones in a batch
+    public synchronized boolean hasSpaceFor(long bytes) {
+        return targetDirectory.getUsableSpace() - inFlightBytes - SPACE_MARGIN >= bytes;
+    }
+
+    //Blocks until a write to the disk can start, the sender is held back by the connection meanwhile. Held for each
+    //write only, so a slow connection does not keep the disk from the others
+    public void acquireWriter() throws InterruptedIOException {
+        try {
+            writers.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to write");
+        }
+    }
+
+    public void releaseWriter() {
+        writers.release();
+    }
+}
@@ -0,0 +1,235 @@
+package com.afa.devicesfiletransfer.services.transfer.receiver;
+
+import com.afa.devicesfiletransfer.services.transfer.TransferChecksum;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+//Content hashes of the files of a directory. Files are grouped by size and only hashed the first time a file of the
+//same size is offered, the hashes are kept in a file of the app to be reused across sessions. Files are hashed
+//outside the lock, so other sessions are not held while a large file is read
+public class ContentIndex {
+    private static final int INDEX_VERSION = 1;
+    private static final ConcurrentMap<File, ContentIndex> indexes = new ConcurrentHashMap<>();
+    private final File directory;
+    private final File indexFile;
+    private final Map<String, Entry> entries;
+    private final Map<Long, List<String>> namesBySize;
+    private long scannedDirectoryModified;
+    private boolean loaded;
+
+    private ContentIndex(File directory, File indexFile) {
+        this.directory = directory;
+        this.indexFile = indexFile;
+        this.entries = new HashMap<>();
+        this.namesBySize = new HashMap<>();
+        this.scannedDirectoryModified = -1;
+    }
+
+    //The index of a directory is kept in the file given the first time it is asked for
+    public static ContentIndex getInstance(File directory, File indexFile) {
+        File key = directory.getAbsoluteFile();
+        ContentIndex index = indexes.get(key);
+        if (index == null) {
+            ContentIndex newIndex = new ContentIndex(key, indexFile);
+            index = indexes.putIfAbsent(key, newIndex);
+            if (index == null) {
+                index = newIndex;
+            }
+        }
+
+        return index;
+    }
+
+    //Whether the directory has any file of the given size, the only ones worth hashing a file for
+    public synchronized boolean hasCandidates(long size) {
+        return !getNames(size).isEmpty();
+    }
+
+    //Returns a file of the directory with the given size and content hash, or null if there is none
+    public File find(long size, byte[] contentHash) {
+        List<String> names;
+        synchronized (this) {
+            names = new ArrayList<>(getNames(size));
+        }
+
+        File match = null;
+        boolean changed = false;
+        for (int i = 0; i < names.size() && match == null; i++) {
+            File file = new File(directory, names.get(i));
+            if (!file.isFile() || file.length() != size) {
+                removeName(file.getName(), size);
+                continue;
+            }
+
+            long lastModified = file.lastModified();
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(file.getName());
+            }
+            if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+                byte[] hash = hash(file);
+                if (hash == null) continue;
+                entry = new Entry(size, lastModified, hash);
+                synchronized (this) {
+                    entries.put(file.getName(), entry);
+                }
+                changed = true;
+            }
+            if (MessageDigest.isEqual(entry.hash, contentHash)) {
+                match = file;
+            }
+        }
+
+        if (changed) {
+            synchronized (this) {
+                save();
+            }
+        }
+        return match;
+    }
+
+    //Registers a file stored in the directory, so receiving it does not force a new scan
+    public synchronized void add(File file) {
+        if (!loaded || !isIndexable(file)) return;
+
+        addName(file.getName(), file.length());
+        scannedDirectoryModified = directory.lastModified();
+    }
+
+    private List<String> getNames(long size) {
+        load();
+        if (directory.lastModified() != scannedDirectoryModified) {
+            scan();
+        }
+
+        List<String> names = namesBySize.get(size);
+        return names != null ? names : Collections.<String>emptyList();
+    }
+
+    private synchronized void removeName(String name, long size) {
+        List<String> names = namesBySize.get(size);
+        if (names != null) {
+            names.remove(name);
+        }
+    }
+
+    private void scan() {
+        namesBySize.clear();
+        scannedDirectoryModified = directory.lastModified();
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            if (isIndexable(file)) {
+                addName(file.getName(), file.length());
+            }
+        }
+    }
+
+    private void addName(String name, long size) {
+        List<String> names = namesBySize.get(size);
+        if (names == null) {
+            names = new ArrayList<>();
+            namesBySize.put(size, names);
+        }
+        if (!names.contains(name)) {
+            names.add(name);
+        }
+    }
+
+    private boolean isIndexable(File file) {
+        String name = file.getName();
+        return !name.startsWith(".") && !name.endsWith(TransferCheckpoint.PARTIAL_FILE_SUFFIX) && file.isFile();
+    }
+
+    private byte[] hash(File file) {
+        try (FileInputStream fileInputStream = new FileInputStream(file)) {
+            return TransferChecksum.computeContentHash(fileInputStream);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void load() {
+        if (loaded) return;
+
+        loaded = true;
+        if (!indexFile.exists()) return;
+
+        try (DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (inputStream.readInt() != INDEX_VERSION) return;
+
+            int entriesCount = inputStream.readInt();
+            for (int i = 0; i < entriesCount; i++) {
+                String name = inputStream.readUTF();
+                long size = inputStream.readLong();
+                long lastModified = inputStream.readLong();
+                byte[] hash = new byte[inputStream.readUnsignedByte()];
+                inputStream.readFully(hash);
+                entries.put(name, new Entry(size, lastModified, hash));
+            }
+        } catch (IOException e) {
+            entries.clear();
+        }
+    }
+
+    private void save() {
+        //Hashes of files that no longer exist are not kept
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (!new File(directory, entry.getKey()).exists()) {
+                iterator.remove();
+            }
+        }
+
+        File temporaryFile = new File(indexFile.getPath() + ".tmp");
+        try (FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile)) {
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            outputStream.writeInt(INDEX_VERSION);
+            outputStream.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                outputStream.writeUTF(entry.getKey());
+                outputStream.writeLong(entry.getValue().size);
+                outputStream.writeLong(entry.getValue().lastModified);
+                outputStream.writeByte(entry.getValue().hash.length);
+                outputStream.write(entry.getValue().hash);
+            }
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        } catch (IOException e) {
+            temporaryFile.delete();
+            return;
+        }
+        temporaryFile.renameTo(indexFile);
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final byte[] hash;
+
+        private Entry(long size, long lastModified, byte[] hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
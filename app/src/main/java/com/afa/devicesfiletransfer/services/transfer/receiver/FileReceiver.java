@@ -1,19 +1,49 @@
 package com.afa.devicesfiletransfer.services.transfer.receiver;
 
+import com.afa.devicesfiletransfer.services.transfer.BandwidthThrottle;
+import com.afa.devicesfiletransfer.services.transfer.CompressionCodec;
+import com.afa.devicesfiletransfer.services.transfer.DeltaCodec;
+import com.afa.devicesfiletransfer.services.transfer.TransferChecksum;
+
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class FileReceiver {
     private final static int BUFFER_SIZE = 8192;
+    private final static int CHANNEL_BUFFER_SIZE = 256 * 1024;
+    private final static long CHECKPOINT_INTERVAL = 32 * 1024 * 1024;
+    private final static ThreadLocal<ByteBuffer> channelBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+        }
+    };
     private Callback callback;
+    private TransferChecksum checksum;
+    private BandwidthThrottle throttle;
+    private AdmissionController admissionController;
     private final AtomicBoolean receiving;
     private Long fileSize;
     private AtomicLong receivedCount;
+    private long committedCount;
+    private long startOffset;
+    private long wireCount;
+    private long throttledWireCount;
+    private long startTime;
 
     public FileReceiver() {
         this.receiving = new AtomicBoolean(false);
@@ -29,62 +59,380 @@ public class FileReceiver {
         this.callback = callback;
     }
 
+    public void setChecksum(TransferChecksum checksum) {
+        this.checksum = checksum;
+    }
+
+    //Reading slower holds back the sender too, through the flow control of the connection
+    public void setThrottle(BandwidthThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    //Every write to the disk holds one of its writers, waiting for the network holds none
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
     public boolean isReceiving() {
         return receiving.get();
     }
 
     public int getReceivedPercentage() {
         if (fileSize == null) throw new IllegalStateException("No transfer started");
+        if (fileSize == 0) return 100;
 
         return (int) ((receivedCount.get() * 100) / fileSize);
     }
 
+    //Bytes of the file written so far, including the ones of an earlier connection
+    public long getReceivedBytes() {
+        return receivedCount.get();
+    }
+
+    public long getTransferredBytes() {
+        return receivedCount.get() - startOffset;
+    }
+
+    public long getWireBytes() {
+        return wireCount;
+    }
+
+    //Milliseconds since the file data started to be received
+    public long getElapsedTime() {
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+
     public void receive(File targetFile, long fileSize, InputStream inputStream) {
+        receive(targetFile, fileSize, 0, inputStream);
+    }
+
+    public void receive(File targetFile, long fileSize, long offset, InputStream inputStream) {
         if (receiving.get()) throw new IllegalStateException("Already receiving the file");
 
-        this.fileSize = fileSize;
-        receiving.set(true);
-        if (callback != null) {
-            callback.onStart();
+        start(fileSize, offset);
+        try {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(targetFile, "rw")) {
+                randomAccessFile.setLength(offset);
+            }
+            try (FileOutputStream fileOutputStream = new FileOutputStream(targetFile, true)) {
+                BufferedOutputStream fileWriter = new BufferedOutputStream(new WriterOutputStream(fileOutputStream));
+                try {
+                    if (!pump(inputStream, fileWriter, fileOutputStream)) return;
+                } finally {
+                    if (receivedCount.get() < fileSize) {
+                        fileWriter.flush();
+                        commit(fileOutputStream);
+                    }
+                }
+                fileWriter.flush();
+            }
+            notifyResult(targetFile);
+        } catch (IOException e) {
+            receiving.set(false);
+            if (callback != null)
+                callback.onFailure(e);
+        } finally {
+            receiving.set(false);
         }
-        try (BufferedOutputStream fileWriter = new BufferedOutputStream(new FileOutputStream(targetFile))) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            receivedCount.set(0);
-            int received;
-            int currentPercentage = 0;
+    }
 
-            while ((received = inputStream.read(buffer, 0, getRemaining())) != -1
-                    && receivedCount.get() < fileSize) {
-                if (!receiving.get() || Thread.interrupted()) return;
-                fileWriter.write(buffer, 0, received);
-                receivedCount.getAndAdd(received);
+    public void receive(File targetFile, long fileSize, ReadableByteChannel inputChannel) {
+        receive(targetFile, fileSize, 0, inputChannel);
+    }
+
+    public void receive(File targetFile, long fileSize, long offset, ReadableByteChannel inputChannel) {
+        if (receiving.get()) throw new IllegalStateException("Already receiving the file");
 
-                int receivedPercentage = getReceivedPercentage();
-                if (callback != null && currentPercentage < receivedPercentage) {
-                    currentPercentage = receivedPercentage;
-                    callback.onProgressUpdated(currentPercentage);
+        start(fileSize, offset);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(targetFile, "rw")) {
+            randomAccessFile.setLength(fileSize);
+            FileChannel fileWriter = randomAccessFile.getChannel();
+            try {
+                if (!transfer(inputChannel, fileWriter)) return;
+            } finally {
+                if (receivedCount.get() < fileSize) {
+                    commit(fileWriter);
+                    randomAccessFile.setLength(receivedCount.get());
                 }
             }
-            if (callback != null) {
-                if (receivedCount.get() == fileSize) {
-                    callback.onSuccess(targetFile);
-                } else {
-                    callback.onFailure(new Exception("The file has not been completely transferred"));
+            notifyResult(targetFile);
+        } catch (IOException e) {
+            receiving.set(false);
+            if (callback != null)
+                callback.onFailure(e);
+        } finally {
+            receiving.set(false);
+        }
+    }
+
+    public void receiveCompressed(File targetFile, long fileSize, long offset, InputStream inputStream) {
+        if (receiving.get()) throw new IllegalStateException("Already receiving the file");
+
+        start(fileSize, offset);
+        CompressionCodec codec = new CompressionCodec();
+        try {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(targetFile, "rw")) {
+                randomAccessFile.setLength(offset);
+            }
+            try (FileOutputStream fileOutputStream = new FileOutputStream(targetFile, true)) {
+                BufferedOutputStream fileWriter = new BufferedOutputStream(new WriterOutputStream(fileOutputStream),
+                        CompressionCodec.CHUNK_SIZE);
+                try {
+                    if (!inflate(new DataInputStream(inputStream), fileWriter, fileOutputStream, codec)) return;
+                } finally {
+                    if (receivedCount.get() < fileSize) {
+                        fileWriter.flush();
+                        commit(fileOutputStream);
+                    }
                 }
+                fileWriter.flush();
             }
+            notifyResult(targetFile);
         } catch (IOException e) {
             receiving.set(false);
             if (callback != null)
                 callback.onFailure(e);
         } finally {
+            codec.end();
             receiving.set(false);
         }
     }
 
-    private int getRemaining() {
+    //Rebuilds the file from literal data and blocks of the basis file of the codec
+    public void receiveDelta(File targetFile, long fileSize, InputStream inputStream, DeltaCodec codec) {
+        if (receiving.get()) throw new IllegalStateException("Already receiving the file");
+
+        start(fileSize, 0);
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(targetFile)) {
+                BufferedOutputStream fileWriter = new BufferedOutputStream(new WriterOutputStream(fileOutputStream),
+                        DeltaCodec.LITERAL_SIZE);
+                try {
+                    if (!patch(new DataInputStream(inputStream), fileWriter, fileOutputStream, codec)) return;
+                } finally {
+                    if (receivedCount.get() < fileSize) {
+                        fileWriter.flush();
+                        commit(fileOutputStream);
+                    }
+                }
+                fileWriter.flush();
+            }
+            notifyResult(targetFile);
+        } catch (IOException e) {
+            receiving.set(false);
+            if (callback != null)
+                callback.onFailure(e);
+        } finally {
+            receiving.set(false);
+        }
+    }
+
+    private boolean pump(InputStream inputStream, BufferedOutputStream fileWriter,
+                         FileOutputStream fileOutputStream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int received;
+        int currentPercentage = 0;
+
+        while ((received = inputStream.read(buffer, 0, getRemaining(BUFFER_SIZE))) != -1
+                && receivedCount.get() < fileSize) {
+            if (!receiving.get() || Thread.interrupted()) return false;
+            fileWriter.write(buffer, 0, received);
+            if (checksum != null) checksum.update(buffer, 0, received);
+            receivedCount.getAndAdd(received);
+            wireCount += received;
+            currentPercentage = updateProgress(currentPercentage);
+            throttle(wireCount);
+            if (receivedCount.get() - committedCount >= CHECKPOINT_INTERVAL) {
+                fileWriter.flush();
+                commit(fileOutputStream);
+            }
+        }
+
+        return true;
+    }
+
+    private boolean transfer(ReadableByteChannel inputChannel, FileChannel fileWriter) throws IOException {
+        ByteBuffer buffer = channelBuffer.get();
+        int currentPercentage = 0;
+
+        while (receivedCount.get() < fileSize) {
+            if (!receiving.get() || Thread.interrupted()) return false;
+            buffer.clear();
+            //A throttled transfer is paced in small chunks instead of waiting long after every large one
+            int chunkSize = throttle != null && throttle.isLimited() ?
+                    BandwidthThrottle.THROTTLED_CHUNK_SIZE : buffer.capacity();
+            buffer.limit(getRemaining(chunkSize));
+            int received = inputChannel.read(buffer);
+            if (received == -1) break;
+
+            buffer.flip();
+            if (checksum != null) checksum.update(buffer);
+            long position = receivedCount.get();
+            acquireWriter();
+            try {
+                while (buffer.hasRemaining()) {
+                    position += fileWriter.write(buffer, position);
+                }
+            } finally {
+                releaseWriter();
+            }
+            receivedCount.getAndAdd(received);
+            wireCount += received;
+            currentPercentage = updateProgress(currentPercentage);
+            throttle(wireCount);
+            if (receivedCount.get() - committedCount >= CHECKPOINT_INTERVAL) {
+                commit(fileWriter);
+            }
+        }
+
+        return true;
+    }
+
+    //Reads chunks until the end chunk, which the sender writes even when the file ends early
+    private boolean inflate(DataInputStream inputStream, BufferedOutputStream fileWriter,
+                            FileOutputStream fileOutputStream, CompressionCodec codec) throws IOException {
+        byte[] buffer = new byte[CompressionCodec.CHUNK_SIZE];
+        int currentPercentage = 0;
+
+        try {
+            int received;
+            while ((received = codec.readChunk(inputStream, buffer)) != -1) {
+                if (!receiving.get() || Thread.interrupted()) return false;
+                if (received > fileSize - receivedCount.get()) {
+                    throw new ProtocolException("The file is longer than announced");
+                }
+                fileWriter.write(buffer, 0, received);
+                if (checksum != null) checksum.update(buffer, 0, received);
+                receivedCount.getAndAdd(received);
+                currentPercentage = updateProgress(currentPercentage);
+                throttle(codec.getWireBytes());
+                if (receivedCount.get() - committedCount >= CHECKPOINT_INTERVAL) {
+                    fileWriter.flush();
+                    commit(fileOutputStream);
+                }
+            }
+        } finally {
+            wireCount = codec.getWireBytes();
+        }
+
+        return true;
+    }
+
+    //Reads operations until the end one, which the sender writes even when the file ends early
+    private boolean patch(DataInputStream inputStream, BufferedOutputStream fileWriter,
+                          FileOutputStream fileOutputStream, DeltaCodec codec) throws IOException {
+        byte[] buffer = new byte[Math.max(DeltaCodec.LITERAL_SIZE, codec.getBlockSize())];
+        int currentPercentage = 0;
+
+        try {
+            int received;
+            while ((received = codec.readOperation(inputStream, buffer)) != -1) {
+                if (!receiving.get() || Thread.interrupted()) return false;
+                if (received > fileSize - receivedCount.get()) {
+                    throw new ProtocolException("The file is longer than announced");
+                }
+                fileWriter.write(buffer, 0, received);
+                if (checksum != null) checksum.update(buffer, 0, received);
+                receivedCount.getAndAdd(received);
+                currentPercentage = updateProgress(currentPercentage);
+                throttle(codec.getWireBytes());
+                if (receivedCount.get() - committedCount >= CHECKPOINT_INTERVAL) {
+                    fileWriter.flush();
+                    commit(fileOutputStream);
+                }
+            }
+        } finally {
+            wireCount = codec.getWireBytes();
+        }
+
+        return true;
+    }
+
+    private void commit(FileChannel fileWriter) throws IOException {
+        acquireWriter();
+        try {
+            fileWriter.force(false);
+        } finally {
+            releaseWriter();
+        }
+        notifyCommitted();
+    }
+
+    private void commit(FileOutputStream fileOutputStream) throws IOException {
+        acquireWriter();
+        try {
+            fileOutputStream.getFD().sync();
+        } finally {
+            releaseWriter();
+        }
+        notifyCommitted();
+    }
+
+    private void acquireWriter() throws InterruptedIOException {
+        if (admissionController != null) {
+            admissionController.acquireWriter();
+        }
+    }
+
+    private void releaseWriter() {
+        if (admissionController != null) {
+            admissionController.releaseWriter();
+        }
+    }
+
+    private void notifyCommitted() {
+        committedCount = receivedCount.get();
+        if (callback != null) {
+            callback.onCommitted(committedCount);
+        }
+    }
+
+    private void start(long fileSize, long offset) {
+        this.fileSize = fileSize;
+        receiving.set(true);
+        receivedCount.set(offset);
+        committedCount = offset;
+        startOffset = offset;
+        wireCount = 0;
+        throttledWireCount = 0;
+        startTime = System.nanoTime();
+        if (callback != null) {
+            callback.onStart();
+        }
+    }
+
+    //Takes the bytes read from the connection so far, the throttle is given the ones read since the last call
+    private void throttle(long wireBytes) throws InterruptedIOException {
+        if (throttle == null) return;
+
+        throttle.throttle(wireBytes - throttledWireCount);
+        throttledWireCount = wireBytes;
+    }
+
+    private int updateProgress(int currentPercentage) {
+        int receivedPercentage = getReceivedPercentage();
+        if (callback != null && currentPercentage < receivedPercentage) {
+            callback.onProgressUpdated(receivedPercentage);
+            return receivedPercentage;
+        }
+
+        return currentPercentage;
+    }
+
+    private void notifyResult(File targetFile) {
+        if (callback != null) {
+            if (receivedCount.get() == fileSize) {
+                callback.onSuccess(targetFile);
+            } else {
+                callback.onFailure(new Exception("The file has not been completely transferred"));
+            }
+        }
+    }
+
+    private int getRemaining(int bufferSize) {
         long remaining = (fileSize - receivedCount.get());
-        if (remaining > BUFFER_SIZE) {
-            return BUFFER_SIZE;
+        if (remaining > bufferSize) {
+            return bufferSize;
         }
 
         return Math.max((int) remaining, 0);
@@ -94,6 +442,33 @@ public class FileReceiver {
         receiving.set(false);
     }
 
+    //Holds a writer for each write of the buffered data to the file
+    private class WriterOutputStream extends FilterOutputStream {
+        WriterOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquireWriter();
+            try {
+                out.write(b);
+            } finally {
+                releaseWriter();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            acquireWriter();
+            try {
+                out.write(b, off, len);
+            } finally {
+                releaseWriter();
+            }
+        }
+    }
+
     public interface Callback {
         void onStart();
 
@@ -101,6 +476,8 @@ public class FileReceiver {
 
         void onProgressUpdated(int percentage);
 
+        void onCommitted(long committedBytes);
+
         void onSuccess(File file);
     }
 }
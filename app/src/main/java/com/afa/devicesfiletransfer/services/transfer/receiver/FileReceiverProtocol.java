@@ -3,21 +3,50 @@ package com.afa.devicesfiletransfer.services.transfer.receiver;
 import com.afa.devicesfiletransfer.domain.model.Device;
 import com.afa.devicesfiletransfer.domain.model.Transfer;
 import com.afa.devicesfiletransfer.domain.model.TransferFileFactory;
+import com.afa.devicesfiletransfer.services.transfer.BandwidthThrottle;
+import com.afa.devicesfiletransfer.services.transfer.DeltaCodec;
+import com.afa.devicesfiletransfer.services.transfer.TransferChecksum;
+import com.afa.devicesfiletransfer.services.transfer.TransferProtocol;
 import com.afa.devicesfiletransfer.util.file.FileUtils;
-import com.google.gson.Gson;
 
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FileReceiverProtocol {
+    private static final Map<String, StripedTransfer> stripedTransfers = new ConcurrentHashMap<>();
+    private static final Object destinationFilesLock = new Object();
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_DELTA_SIZE_RATIO = 2;
     private File targetDirectory;
+    private TransferCheckpointStore checkpointStore;
+    private ContentIndex contentIndex;
+    private AdmissionController admissionController;
+    private boolean relayEnabled;
+    //Set when the files of the session belong to a relay set up in this device
+    private RelayForwarder relayForwarder;
     private Callback callback;
     private boolean isReceiving;
 
     public FileReceiverProtocol(File targetDirectory) {
         this.targetDirectory = targetDirectory;
+        this.checkpointStore = TransferCheckpointStore.getInstance(
+                new File(System.getProperty("java.io.tmpdir"), "transfer-checkpoints"));
         isReceiving = false;
     }
 
@@ -30,6 +59,26 @@ public class FileReceiverProtocol {
         this.callback = callback;
     }
 
+    //Without an admission controller every file is taken as soon as it is offered
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    //Without a store the checkpoints are kept in the temporary directory, which is the cache of the app on Android
+    public void setCheckpointStore(TransferCheckpointStore checkpointStore) {
+        this.checkpointStore = checkpointStore;
+    }
+
+    //Without a content index the files offered for deduplication are always received
+    public void setContentIndex(ContentIndex contentIndex) {
+        this.contentIndex = contentIndex;
+    }
+
+    //Lets other devices use this one to forward the files they send to the devices after it
+    public void setRelayEnabled(boolean relayEnabled) {
+        this.relayEnabled = relayEnabled;
+    }
+
     public File getTargetDirectory() {
         return targetDirectory;
     }
@@ -38,35 +87,607 @@ public class FileReceiverProtocol {
         return isReceiving;
     }
 
-    public void receive(InputStream inputStream) {
-        try (DataInputStream dataInputStream = new DataInputStream(inputStream)) {
+    public void receive(Socket socket) {
+        receiveSession(socket, null);
+    }
+
+    //The session header has already been read and validated by the listener
+    public void receive(Socket socket, byte sessionType) {
+        receiveSession(socket, sessionType);
+    }
+
+    private void receiveSession(Socket socket, Byte acceptedSessionType) {
+        try (DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+            DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+            //Data is read through the stream of the socket too, a blocking channel read would never time out
+            socket.setSoTimeout(TransferProtocol.READ_TIMEOUT);
+            ReadableByteChannel inputChannel = Channels.newChannel(dataInputStream);
             isReceiving = true;
-            int numberOfFiles = dataInputStream.readInt();
+            byte sessionType;
+            if (acceptedSessionType == null) {
+                sessionType = readSessionHeader(dataInputStream, dataOutputStream);
+            } else {
+                sessionType = acceptedSessionType;
+                dataOutputStream.writeByte(TransferProtocol.HANDSHAKE_ACCEPTED);
+                dataOutputStream.flush();
+            }
+            if (sessionType == TransferProtocol.SESSION_STRIPE) {
+                receiveStripe(dataInputStream, dataOutputStream, inputChannel);
+                return;
+            }
+            if (sessionType == TransferProtocol.SESSION_RELAY) {
+                receiveRelay(socket, dataInputStream, dataOutputStream);
+                return;
+            }
+            if (sessionType != TransferProtocol.SESSION_FILES) {
+                throw new ProtocolException("Unknown session type " + sessionType);
+            }
+            checkpointStore.removeStale(targetDirectory);
 
-            for (int i = 0; i < numberOfFiles; i++) {
-                try {
-                    String deviceJson = dataInputStream.readUTF();
-                    Device device = new Gson().fromJson(deviceJson, Device.class);
-                    String fileNameWithExtension = dataInputStream.readUTF();
-                    long fileSize = dataInputStream.readLong();
-                    File file = createDestinationFile(fileNameWithExtension);
-                    final Transfer transfer = new Transfer(
-                            device, TransferFileFactory.getFromFile(file), 0, true);
-                    FileReceiver fileReceiver = createFileReceiver(transfer, callback);
-                    fileReceiver.receive(file, fileSize, inputStream);
-                } catch (IOException ignored) {
+            String deviceName = TransferProtocol.readString(dataInputStream);
+            String deviceOs = TransferProtocol.readString(dataInputStream);
+            Device device = new Device(deviceName, deviceOs, socket.getInetAddress());
+            byte capabilities = (byte) (dataInputStream.readByte() & TransferProtocol.SUPPORTED_CAPABILITIES);
+            if (!relayEnabled) {
+                capabilities &= ~TransferProtocol.CAPABILITY_RELAY;
+            }
+            dataOutputStream.writeByte(capabilities);
+            dataOutputStream.flush();
+            if ((capabilities & TransferProtocol.CAPABILITY_RELAY) != 0) {
+                relayForwarder = RelayForwarder.find(TransferProtocol.readString(dataInputStream),
+                        socket.getLocalAddress());
+            }
+            byte checksumAlgorithm = TransferProtocol.getChecksumAlgorithm(capabilities);
+            byte frame;
+            while ((frame = dataInputStream.readByte()) != TransferProtocol.FRAME_END) {
+                if (frame == TransferProtocol.FRAME_FILE) {
+                    receiveFile(device, checksumAlgorithm, socket, dataInputStream, dataOutputStream, inputChannel);
+                } else if (frame == TransferProtocol.FRAME_BATCH) {
+                    receiveBatch(device, checksumAlgorithm, dataInputStream, dataOutputStream);
+                } else {
+                    throw new ProtocolException("Unknown frame " + frame);
                 }
             }
+        } catch (EOFException ignored) {
         } catch (IOException e) {
             if (callback != null) {
                 callback.onInitializationFailure();
             }
         } finally {
+            relayForwarder = null;
             isReceiving = false;
         }
     }
 
+    //Forwards the files of the sessions joined to the relay until the device that set it up has sent all of them
+    private void receiveRelay(Socket socket, DataInputStream dataInputStream,
+                              DataOutputStream dataOutputStream) throws IOException {
+        RelayForwarder forwarder = relayEnabled
+                ? RelayForwarder.readPlan(dataInputStream, dataOutputStream, socket.getLocalAddress()) : null;
+        if (forwarder == null || !forwarder.start()) {
+            dataOutputStream.writeByte(TransferProtocol.RELAY_REFUSED);
+            dataOutputStream.flush();
+            return;
+        }
+
+        try {
+            //The reports of the forwarder are written to the same stream from its own threads
+            synchronized (dataOutputStream) {
+                dataOutputStream.writeByte(TransferProtocol.RELAY_READY);
+                dataOutputStream.flush();
+            }
+            //The files come through their own sessions, for as long as they take
+            socket.setSoTimeout(0);
+            dataInputStream.readByte();
+        } catch (IOException ignored) {
+            //The files already received are forwarded anyway
+        } finally {
+            forwarder.finish();
+        }
+    }
+
+    //Forwards a file while it is being received, it is only completed in the next devices once it is stored here
+    private RelayedTransferFile relayReceivingFile(String fileNameWithExtension, long fileSize,
+                                                  TransferCheckpoint checkpoint, FileReceiver fileReceiver) {
+        if (relayForwarder == null) return null;
+
+        RelayedTransferFile relayedFile = new RelayedTransferFile(fileNameWithExtension, fileSize,
+                checkpoint.getPartialFile(), checkpoint.getTargetFile(), fileReceiver);
+        relayForwarder.forward(relayedFile);
+        return relayedFile;
+    }
+
+    private void finishRelayedFile(RelayedTransferFile relayedFile, boolean stored) {
+        if (relayedFile != null) {
+            relayedFile.finish(stored);
+        }
+    }
+
+    //Files that are not written in order are forwarded once stored
+    private void relayStoredFile(String fileNameWithExtension, File file) {
+        if (relayForwarder != null) {
+            relayForwarder.forward(RelayedTransferFile.fromStoredFile(fileNameWithExtension, file));
+        }
+    }
+
+    private byte readSessionHeader(DataInputStream dataInputStream,
+                                   DataOutputStream dataOutputStream) throws IOException {
+        byte sessionType;
+        try {
+            sessionType = TransferProtocol.readSessionHeader(dataInputStream);
+        } catch (ProtocolException e) {
+            dataOutputStream.writeByte(TransferProtocol.HANDSHAKE_UNSUPPORTED_VERSION);
+            dataOutputStream.flush();
+            throw e;
+        }
+        dataOutputStream.writeByte(TransferProtocol.HANDSHAKE_ACCEPTED);
+        dataOutputStream.flush();
+        return sessionType;
+    }
+
+    private void receiveFile(Device device, byte checksumAlgorithm, Socket socket, DataInputStream dataInputStream,
+                             DataOutputStream dataOutputStream, ReadableByteChannel inputChannel)
+            throws IOException {
+        String fileNameWithExtension = TransferProtocol.readString(dataInputStream);
+        long fileSize = dataInputStream.readLong();
+        byte flags = dataInputStream.readByte();
+        String fileId = TransferProtocol.readString(dataInputStream);
+        long lastModified = 0;
+        if ((flags & TransferProtocol.FLAG_DELTA) != 0) {
+            lastModified = dataInputStream.readLong();
+        }
+        String transferId = null;
+        if ((flags & TransferProtocol.FLAG_STRIPED) != 0) {
+            transferId = TransferProtocol.readString(dataInputStream);
+        }
+
+        String checkpointKey = TransferCheckpointStore.createKey(device.getName(), fileId);
+        TransferCheckpoint checkpoint = checkpointStore.find(checkpointKey, fileSize);
+        //The content hash is only asked for when a file of the same size could be a copy, never for a resumed file
+        if (checkpoint == null && contentIndex != null && (flags & TransferProtocol.FLAG_HASHED) != 0
+                && contentIndex.hasCandidates(fileSize)) {
+            dataOutputStream.writeLong(TransferProtocol.CONTENT_HASH_REQUESTED);
+            dataOutputStream.flush();
+            if (dataInputStream.readBoolean()) {
+                byte[] contentHash = new byte[TransferProtocol.CONTENT_HASH_LENGTH];
+                dataInputStream.readFully(contentHash);
+                File existingFile = contentIndex.find(fileSize, contentHash);
+                if (existingFile != null) {
+                    dataOutputStream.writeLong(TransferProtocol.FILE_ALREADY_RECEIVED);
+                    dataOutputStream.flush();
+                    completeDuplicatedFile(device, existingFile);
+                    relayStoredFile(fileNameWithExtension, existingFile);
+                    return;
+                }
+            }
+        }
+
+        //A resumed file only needs room for the bytes left
+        long admittedBytes = fileSize - (checkpoint != null ? checkpoint.getCommittedBytes() : 0);
+        if (!admitFile(admittedBytes, dataOutputStream)) return;
+
+        try {
+            //A partially received file is resumed instead of being rebuilt from an older copy
+            if (checkpoint == null && (flags & TransferProtocol.FLAG_DELTA) != 0) {
+                DeltaCodec deltaCodec = openDeltaBasis(fileNameWithExtension, fileSize, lastModified);
+                if (deltaCodec != null) {
+                    receiveDelta(device, fileNameWithExtension, fileSize, checkpointKey, deltaCodec, checksumAlgorithm,
+                            dataInputStream, dataOutputStream);
+                    return;
+                }
+            }
+            if (transferId != null) {
+                receiveStriped(device, fileNameWithExtension, fileSize, transferId, checksumAlgorithm, socket,
+                        dataInputStream, dataOutputStream);
+                return;
+            }
+
+            boolean compressed = (flags & TransferProtocol.FLAG_COMPRESSED) != 0;
+            if (checkpoint == null) {
+                File file = createDestinationFile(fileNameWithExtension);
+                checkpoint = new TransferCheckpoint(checkpointKey, file, fileSize, 0);
+            }
+            long offset = checkpoint.getCommittedBytes();
+            dataOutputStream.writeLong(offset);
+            dataOutputStream.flush();
+
+            final Transfer transfer = new Transfer(
+                    device, TransferFileFactory.getFromFile(checkpoint.getTargetFile()), 0, true);
+            AtomicBoolean received = new AtomicBoolean(false);
+            FileReceiver fileReceiver = createFileReceiver(transfer, checkpoint, received, callback);
+            TransferChecksum checksum = TransferChecksum.create(checksumAlgorithm);
+            fileReceiver.setChecksum(checksum);
+            RelayedTransferFile relayedFile = relayReceivingFile(fileNameWithExtension, fileSize, checkpoint,
+                    fileReceiver);
+            boolean stored = false;
+            try {
+                if (compressed) {
+                    fileReceiver.receiveCompressed(checkpoint.getPartialFile(), fileSize, offset, dataInputStream);
+                } else {
+                    fileReceiver.receive(checkpoint.getPartialFile(), fileSize, offset, inputChannel);
+                }
+                //The rest of the file and its trailer are still in the connection, so the session is closed and
+                //the sender resumes the file from its checkpoint on a new one
+                if (!received.get()) throw new ProtocolException("The file " + fileNameWithExtension + " failed");
+
+                stored = verifyReceivedFile(transfer, checkpoint, fileReceiver, checksum, dataInputStream,
+                        dataOutputStream);
+            } finally {
+                finishRelayedFile(relayedFile, stored);
+            }
+        } finally {
+            releaseFile(admittedBytes);
+        }
+    }
+
+    //Answers the sender with the reason when the file cannot be taken now
+    private boolean admitFile(long bytes, DataOutputStream dataOutputStream) throws IOException {
+        if (admissionController == null) return true;
+
+        int admission = admissionController.admitFile(bytes);
+        if (admission == AdmissionController.ADMITTED) return true;
+
+        if (admission == AdmissionController.NO_SPACE) {
+            dataOutputStream.writeLong(TransferProtocol.FILE_NO_SPACE);
+        } else {
+            dataOutputStream.writeLong(TransferProtocol.FILE_BUSY);
+            dataOutputStream.writeInt(admissionController.getRetryDelay());
+        }
+        dataOutputStream.flush();
+        return false;
+    }
+
+    private void releaseFile(long bytes) {
+        if (admissionController != null) {
+            admissionController.releaseFile(bytes);
+        }
+    }
+
+    private boolean hasSpaceFor(long bytes) {
+        return admissionController == null || admissionController.hasSpaceFor(bytes);
+    }
+
+    private void acquireWriter() throws IOException {
+        if (admissionController != null) {
+            admissionController.acquireWriter();
+        }
+    }
+
+    private void releaseWriter() {
+        if (admissionController != null) {
+            admissionController.releaseWriter();
+        }
+    }
+
+    //A file with the same name is only taken as an older copy when it is likely the same document: its size is not
+    //far from the new one, and it was stored before the new one was last modified. Anything else is sent whole,
+    //which keeps compression and striping
+    private DeltaCodec openDeltaBasis(String fileNameWithExtension, long fileSize, long lastModified) {
+        File basisFile = new File(targetDirectory, fileNameWithExtension);
+        if (!targetDirectory.equals(basisFile.getParentFile()) || !basisFile.isFile()) return null;
+        long basisSize = basisFile.length();
+        if (basisSize < fileSize / MAX_DELTA_SIZE_RATIO || basisSize > fileSize * MAX_DELTA_SIZE_RATIO
+                || basisFile.lastModified() > lastModified) return null;
+
+        try {
+            return DeltaCodec.forBasis(basisFile);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    //The new file is rebuilt next to the older copy, which is left untouched
+    private void receiveDelta(Device device, String fileNameWithExtension, long fileSize, String checkpointKey,
+                              DeltaCodec deltaCodec, byte checksumAlgorithm, DataInputStream dataInputStream,
+                              DataOutputStream dataOutputStream) throws IOException {
+        try {
+            File file = createDestinationFile(fileNameWithExtension);
+            TransferCheckpoint checkpoint = new TransferCheckpoint(checkpointKey, file, fileSize, 0);
+            try {
+                dataOutputStream.writeLong(TransferProtocol.DELTA_SIGNATURES);
+                deltaCodec.writeSignatures(dataOutputStream);
+                dataOutputStream.flush();
+            } catch (IOException e) {
+                //Nothing has been received, so the reserved file is released
+                checkpoint.getPartialFile().delete();
+                throw e;
+            }
+
+            final Transfer transfer = new Transfer(device, TransferFileFactory.getFromFile(file), 0, true);
+            AtomicBoolean received = new AtomicBoolean(false);
+            FileReceiver fileReceiver = createFileReceiver(transfer, checkpoint, received, callback);
+            TransferChecksum checksum = TransferChecksum.create(checksumAlgorithm);
+            fileReceiver.setChecksum(checksum);
+            RelayedTransferFile relayedFile = relayReceivingFile(fileNameWithExtension, fileSize, checkpoint,
+                    fileReceiver);
+            boolean stored = false;
+            try {
+                fileReceiver.receiveDelta(checkpoint.getPartialFile(), fileSize, dataInputStream, deltaCodec);
+                if (!received.get()) throw new ProtocolException("The file " + fileNameWithExtension + " failed");
+
+                stored = verifyReceivedFile(transfer, checkpoint, fileReceiver, checksum, dataInputStream,
+                        dataOutputStream);
+            } finally {
+                finishRelayedFile(relayedFile, stored);
+            }
+        } finally {
+            deltaCodec.close();
+        }
+    }
+
+    //Returns whether the file has been stored
+    private boolean verifyReceivedFile(Transfer transfer, TransferCheckpoint checkpoint, FileReceiver fileReceiver,
+                                       TransferChecksum checksum, DataInputStream dataInputStream,
+                                       DataOutputStream dataOutputStream) throws IOException {
+        //The checksum trailer covers the bytes sent through this connection
+        boolean verified = checksum.verify(dataInputStream);
+        dataOutputStream.writeBoolean(verified);
+        dataOutputStream.flush();
+        if (verified) {
+            return storeReceivedFile(transfer, checkpoint, fileReceiver);
+        }
+
+        checkpointStore.delete(checkpoint);
+        checkpoint.getPartialFile().delete();
+        failReceivedFile(transfer, fileReceiver, new IOException("The file " +
+                checkpoint.getTargetFile().getName() + " was corrupted in transit"));
+        return false;
+    }
+
+    //The file is already in the target directory, so it is reported as received without any data
+    private void completeDuplicatedFile(Device device, File existingFile) {
+        Transfer transfer = new Transfer(device, TransferFileFactory.getFromFile(existingFile), 0, true);
+        transfer.setStatus(Transfer.TransferStatus.TRANSFERRING);
+        callback.onStart(transfer);
+        transfer.setProgress(100);
+        transfer.setStatus(Transfer.TransferStatus.COMPLETED);
+        callback.onSuccess(transfer, existingFile);
+    }
+
+    private void receiveBatch(Device device, byte checksumAlgorithm, DataInputStream dataInputStream,
+                              DataOutputStream dataOutputStream) throws IOException {
+        int filesCount = dataInputStream.readInt();
+        if (filesCount < 0 || filesCount > TransferProtocol.MAX_BATCH_FILES) {
+            throw new ProtocolException("Invalid batch size " + filesCount);
+        }
+
+        Set<String> takenNames = getTakenNames();
+        List<Transfer> transfers = new ArrayList<>(filesCount);
+        List<String> fileNames = new ArrayList<>(filesCount);
+        List<File> files = new ArrayList<>(filesCount);
+        List<Boolean> writtenFiles = new ArrayList<>(filesCount);
+        List<Boolean> verifiedFiles = new ArrayList<>(filesCount);
+        List<Boolean> admittedFiles = new ArrayList<>(filesCount);
+        byte[] buffer = new byte[BATCH_BUFFER_SIZE];
+        //Batched files are only held by the global and device limits
+        BandwidthThrottle throttle = new BandwidthThrottle(device.getAddress(), null);
+        try {
+            for (int i = 0; i < filesCount; i++) {
+                String fileNameWithExtension = TransferProtocol.readString(dataInputStream);
+                long fileSize = dataInputStream.readLong();
+                TransferProtocol.readString(dataInputStream);
+                File file = createDestinationFile(fileNameWithExtension, takenNames);
+                Transfer transfer = new Transfer(device, TransferFileFactory.getFromFile(file), 0, true);
+                transfer.setStatus(Transfer.TransferStatus.TRANSFERRING);
+                callback.onStart(transfer);
+                transfers.add(transfer);
+                fileNames.add(fileNameWithExtension);
+                files.add(file);
+                long startTime = System.nanoTime();
+                TransferChecksum checksum = TransferChecksum.create(checksumAlgorithm);
+                //The bytes of a file without room are still read, so the rest of the batch can be stored
+                boolean admitted = hasSpaceFor(fileSize);
+                admittedFiles.add(admitted);
+                writtenFiles.add(receiveBatchedFile(file, fileSize, admitted, checksum, dataInputStream, buffer));
+                verifiedFiles.add(checksum.verify(dataInputStream));
+                throttle.throttle(fileSize);
+                transfer.setTransferredBytes(fileSize);
+                transfer.setWireBytes(fileSize);
+                transfer.setTransferTime((System.nanoTime() - startTime) / 1000000);
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < transfers.size(); i++) {
+                TransferCheckpoint.getPartialFile(files.get(i)).delete();
+                transfers.get(i).setStatus(Transfer.TransferStatus.FAILED);
+                callback.onFailure(transfers.get(i), e);
+            }
+            throw e;
+        }
+
+        //Batched files are not synced one by one, a sync per small file would take longer than sending it. They
+        //are written back by the system within seconds, like any other small file the device writes
+        for (int i = 0; i < filesCount; i++) {
+            File file = files.get(i);
+            Transfer transfer = transfers.get(i);
+            boolean verified = verifiedFiles.get(i);
+            boolean stored = verified && writtenFiles.get(i) && TransferCheckpoint.getPartialFile(file).renameTo(file);
+            boolean admitted = admittedFiles.get(i);
+            if (stored) {
+                indexStoredFile(file);
+                transfer.setProgress(100);
+                transfer.setStatus(Transfer.TransferStatus.COMPLETED);
+                callback.onSuccess(transfer, file);
+                relayStoredFile(fileNames.get(i), file);
+                dataOutputStream.writeByte(TransferProtocol.BATCH_FILE_STORED);
+            } else {
+                TransferCheckpoint.getPartialFile(file).delete();
+                transfer.setStatus(Transfer.TransferStatus.FAILED);
+                String reason = !admitted ? " does not fit in the storage"
+                        : verified ? " cannot be stored" : " was corrupted in transit";
+                callback.onFailure(transfer, new IOException("The file " + file.getName() + reason));
+                dataOutputStream.writeByte(admitted ?
+                        TransferProtocol.BATCH_FILE_FAILED : TransferProtocol.BATCH_FILE_NO_SPACE);
+            }
+        }
+        dataOutputStream.flush();
+    }
+
+    //Returns whether the file could be written, after consuming its bytes from the connection
+    private boolean receiveBatchedFile(File file, long fileSize, boolean writable, TransferChecksum checksum,
+                                       DataInputStream dataInputStream, byte[] buffer) throws IOException {
+        FileOutputStream fileWriter = null;
+        try {
+            if (writable) {
+                fileWriter = new FileOutputStream(TransferCheckpoint.getPartialFile(file));
+            }
+        } catch (IOException ignored) {
+        }
+
+        long remaining = fileSize;
+        while (remaining > 0) {
+            int received = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (received == -1) {
+                closeQuietly(fileWriter);
+                throw new EOFException("The batch has not been completely transferred");
+            }
+            remaining -= received;
+            checksum.update(buffer, 0, received);
+            if (fileWriter != null) {
+                try {
+                    acquireWriter();
+                } catch (IOException e) {
+                    closeQuietly(fileWriter);
+                    throw e;
+                }
+                try {
+                    fileWriter.write(buffer, 0, received);
+                } catch (IOException e) {
+                    closeQuietly(fileWriter);
+                    fileWriter = null;
+                } finally {
+                    releaseWriter();
+                }
+            }
+        }
+        if (fileWriter == null) return false;
+
+        try {
+            fileWriter.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void closeQuietly(FileOutputStream fileWriter) {
+        if (fileWriter == null) return;
+
+        try {
+            fileWriter.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void receiveStriped(Device device, String fileNameWithExtension, long fileSize, String transferId,
+                                byte checksumAlgorithm, Socket socket, DataInputStream dataInputStream,
+                                DataOutputStream dataOutputStream) throws IOException {
+        File file = createDestinationFile(fileNameWithExtension);
+        TransferCheckpoint checkpoint = new TransferCheckpoint(transferId, file, fileSize, 0);
+        Transfer transfer = new Transfer(device, TransferFileFactory.getFromFile(file), 0, true);
+        FileReceiver.Callback fileReceiverCallback = createFileReceiverCallback(transfer, checkpoint, null, null, callback);
+        StripedTransfer stripedTransfer;
+        try {
+            stripedTransfer = new StripedTransfer(checkpoint.getPartialFile(), fileSize, checksumAlgorithm,
+                    fileReceiverCallback);
+            stripedTransfer.setThrottle(new BandwidthThrottle(device.getAddress(), transfer));
+            stripedTransfer.setAdmissionController(admissionController);
+        } catch (IOException e) {
+            dataOutputStream.writeLong(TransferProtocol.FILE_REJECTED);
+            dataOutputStream.flush();
+            fileReceiverCallback.onFailure(e);
+            return;
+        }
+
+        stripedTransfers.put(transferId, stripedTransfer);
+        long startTime = System.nanoTime();
+        boolean stripesSent;
+        try {
+            fileReceiverCallback.onStart();
+            dataOutputStream.writeLong(0);
+            dataOutputStream.flush();
+            //The stripes come through their own connections, which time out on their own
+            socket.setSoTimeout(0);
+            stripesSent = dataInputStream.readBoolean();
+            socket.setSoTimeout(TransferProtocol.READ_TIMEOUT);
+        } catch (IOException e) {
+            stripedTransfer.fail();
+            checkpoint.getPartialFile().delete();
+            fileReceiverCallback.onFailure(e);
+            throw e;
+        } finally {
+            stripedTransfers.remove(transferId);
+            stripedTransfer.close();
+        }
+
+        if (stripesSent && stripedTransfer.isComplete()) {
+            transfer.setTransferredBytes(fileSize);
+            transfer.setWireBytes(fileSize);
+            transfer.setTransferTime((System.nanoTime() - startTime) / 1000000);
+            fileReceiverCallback.onSuccess(checkpoint.getPartialFile());
+            if (transfer.getStatus() == Transfer.TransferStatus.COMPLETED) {
+                relayStoredFile(fileNameWithExtension, file);
+            }
+        } else {
+            checkpoint.getPartialFile().delete();
+            fileReceiverCallback.onFailure(new Exception("The file has not been completely transferred"));
+        }
+    }
+
+    private void receiveStripe(DataInputStream dataInputStream, DataOutputStream dataOutputStream,
+                               ReadableByteChannel inputChannel) throws IOException {
+        String transferId = TransferProtocol.readString(dataInputStream);
+        long offset = dataInputStream.readLong();
+        long length = dataInputStream.readLong();
+        StripedTransfer stripedTransfer = stripedTransfers.get(transferId);
+        boolean received = false;
+        if (stripedTransfer != null) {
+            //Every stripe is followed by the checksum of its own range
+            TransferChecksum checksum = TransferChecksum.create(stripedTransfer.getChecksumAlgorithm());
+            received = stripedTransfer.receive(inputChannel, offset, length, checksum)
+                    && checksum.verify(dataInputStream);
+            if (!received) {
+                stripedTransfer.fail();
+            }
+        }
+        dataOutputStream.writeBoolean(received);
+        dataOutputStream.flush();
+    }
+
     private File createDestinationFile(String fileNameWithExtension) {
+        return createDestinationFile(fileNameWithExtension, null);
+    }
+
+    //takenNames is a snapshot of the target directory that saves a lookup per candidate name
+    private File createDestinationFile(String fileNameWithExtension, Set<String> takenNames) {
+        synchronized (destinationFilesLock) {
+            File destinationFile = findFreeDestinationFile(fileNameWithExtension, takenNames);
+            File partialFile = TransferCheckpoint.getPartialFile(destinationFile);
+            try {
+                if (!partialFile.createNewFile() && takenNames != null) {
+                    //Taken by another session after the snapshot
+                    takenNames.add(partialFile.getName());
+                    return createDestinationFile(fileNameWithExtension, null);
+                }
+            } catch (IOException ignored) {
+            }
+            if (takenNames != null) {
+                takenNames.add(partialFile.getName());
+            }
+            return destinationFile;
+        }
+    }
+
+    private Set<String> getTakenNames() {
+        Set<String> takenNames = new HashSet<>();
+        String[] names = targetDirectory.list();
+        if (names != null) {
+            Collections.addAll(takenNames, names);
+        }
+
+        return takenNames;
+    }
+
+    private File findFreeDestinationFile(String fileNameWithExtension, Set<String> takenNames) {
         String destinationPath = targetDirectory.getAbsolutePath();
         String currentMillis = String.valueOf(System.currentTimeMillis());
         if (fileNameWithExtension == null || fileNameWithExtension.isEmpty()) {
@@ -79,13 +700,13 @@ public class FileReceiverProtocol {
         File destinationFile = new File(destinationPath, fileNameWithExtension);
         int attempts = 0;
         final int MAX_ATTEMPTS = 100;
-        while (destinationFile.exists() && attempts < MAX_ATTEMPTS) {
+        while (isDestinationFileTaken(destinationFile, takenNames) && attempts < MAX_ATTEMPTS) {
             String incrementedFileName = fileName + "(" + (attempts + 1) + ")." + extension;
             destinationFile = new File(destinationPath, incrementedFileName);
             attempts++;
         }
 
-        if (attempts == MAX_ATTEMPTS && destinationFile.exists()) {
+        if (attempts == MAX_ATTEMPTS && isDestinationFileTaken(destinationFile, takenNames)) {
             destinationFile = new File(
                     destinationPath, fileName + "_" + currentMillis + "." + extension);
         }
@@ -93,8 +714,31 @@ public class FileReceiverProtocol {
         return destinationFile;
     }
 
-    private FileReceiver createFileReceiver(final Transfer transfer, final Callback callback) {
-        FileReceiver.Callback fileReceiverCallback = new FileReceiver.Callback() {
+    private boolean isDestinationFileTaken(File destinationFile, Set<String> takenNames) {
+        File partialFile = TransferCheckpoint.getPartialFile(destinationFile);
+        if (takenNames != null) {
+            return takenNames.contains(destinationFile.getName()) || takenNames.contains(partialFile.getName());
+        }
+
+        return destinationFile.exists() || partialFile.exists();
+    }
+
+    private FileReceiver createFileReceiver(Transfer transfer, TransferCheckpoint checkpoint,
+                                            AtomicBoolean received, Callback callback) {
+        FileReceiver fileReceiver = new FileReceiver();
+        fileReceiver.setThrottle(new BandwidthThrottle(transfer.getDevice().getAddress(), transfer));
+        fileReceiver.setAdmissionController(admissionController);
+        fileReceiver.setCallback(createFileReceiverCallback(transfer, checkpoint, fileReceiver, received, callback));
+        return fileReceiver;
+    }
+
+    //When received is given, a complete file is only flagged there and stored once its checksum is verified
+    private FileReceiver.Callback createFileReceiverCallback(final Transfer transfer,
+                                                             final TransferCheckpoint checkpoint,
+                                                             final FileReceiver fileReceiver,
+                                                             final AtomicBoolean received,
+                                                             final Callback callback) {
+        return new FileReceiver.Callback() {
             @Override
             public void onStart() {
                 transfer.setStatus(Transfer.TransferStatus.TRANSFERRING);
@@ -103,8 +747,7 @@ public class FileReceiverProtocol {
 
             @Override
             public void onFailure(Exception e) {
-                transfer.setStatus(Transfer.TransferStatus.FAILED);
-                callback.onFailure(transfer, e);
+                failReceivedFile(transfer, fileReceiver, e);
             }
 
             @Override
@@ -113,13 +756,59 @@ public class FileReceiverProtocol {
                 callback.onProgressUpdated(transfer);
             }
 
+            @Override
+            public void onCommitted(long committedBytes) {
+                checkpoint.setCommittedBytes(committedBytes);
+                try {
+                    checkpointStore.save(checkpoint);
+                } catch (IOException ignored) {
+                }
+            }
+
             @Override
             public void onSuccess(File file) {
-                transfer.setStatus(Transfer.TransferStatus.COMPLETED);
-                callback.onSuccess(transfer, file);
+                if (received != null) {
+                    received.set(true);
+                    return;
+                }
+                storeReceivedFile(transfer, checkpoint, fileReceiver);
             }
         };
-        return new FileReceiver(fileReceiverCallback);
+    }
+
+    private boolean storeReceivedFile(Transfer transfer, TransferCheckpoint checkpoint, FileReceiver fileReceiver) {
+        checkpointStore.delete(checkpoint);
+        File targetFile = checkpoint.getTargetFile();
+        if (!checkpoint.getPartialFile().renameTo(targetFile)) {
+            failReceivedFile(transfer, fileReceiver,
+                    new IOException("The file " + targetFile.getName() + " cannot be stored"));
+            return false;
+        }
+        indexStoredFile(targetFile);
+        updateStatistics(transfer, fileReceiver);
+        transfer.setStatus(Transfer.TransferStatus.COMPLETED);
+        callback.onSuccess(transfer, targetFile);
+        return true;
+    }
+
+    private void indexStoredFile(File file) {
+        if (contentIndex != null) {
+            contentIndex.add(file);
+        }
+    }
+
+    private void failReceivedFile(Transfer transfer, FileReceiver fileReceiver, Exception e) {
+        updateStatistics(transfer, fileReceiver);
+        transfer.setStatus(Transfer.TransferStatus.FAILED);
+        callback.onFailure(transfer, e);
+    }
+
+    private void updateStatistics(Transfer transfer, FileReceiver fileReceiver) {
+        if (fileReceiver == null) return;
+
+        transfer.setTransferredBytes(fileReceiver.getTransferredBytes());
+        transfer.setWireBytes(fileReceiver.getWireBytes());
+        transfer.setTransferTime(fileReceiver.getElapsedTime());
     }
 
     public interface Callback {
@@ -0,0 +1,301 @@
+package com.afa.devicesfiletransfer.services.transfer.receiver;
+
+import com.afa.devicesfiletransfer.ConfigProperties;
+import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+import com.afa.devicesfiletransfer.domain.model.TransferFile;
+import com.afa.devicesfiletransfer.domain.model.TransferFileLocal;
+import com.afa.devicesfiletransfer.services.discovery.NetworkDataProvider;
+import com.afa.devicesfiletransfer.services.discovery.Subnet;
+import com.afa.devicesfiletransfer.services.transfer.RelayReport;
+import com.afa.devicesfiletransfer.services.transfer.TransferProtocol;
+import com.afa.devicesfiletransfer.services.transfer.sender.FileSenderProtocol;
+import com.afa.devicesfiletransfer.services.transfer.sender.RelaySession;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+//Forwards the files received for a relay to the first device of every branch after this one, while they are
+//still being received. The files waiting for a branch are sent together, so small files keep being batched.
+//The reports of the devices reached from here are written back to the device the relay was set up by
+public class RelayForwarder {
+    private static final ConcurrentMap<String, RelayForwarder> forwarders = new ConcurrentHashMap<>();
+    //Queued by finish in every branch after the last file, each connection of the branch puts it back for the next
+    private static final TransferFile END = new TransferFileLocal(new File(""));
+    //Reports go back through every relay before this one, a few per second are enough to follow a file
+    private static final long PROGRESS_REPORT_INTERVAL = 500;
+    private final String relayId;
+    private final String key;
+    private final int branchesCount;
+    private final List<Device> nextDevices;
+    private final DataOutputStream reportStream;
+    private final List<Branch> branches;
+
+    private RelayForwarder(String relayId, InetAddress localAddress, int branchesCount, List<Device> nextDevices,
+                           DataOutputStream reportStream) {
+        this.relayId = relayId;
+        this.key = getKey(relayId, localAddress);
+        this.branchesCount = branchesCount;
+        this.nextDevices = nextDevices;
+        this.reportStream = reportStream;
+        branches = new ArrayList<>(branchesCount);
+    }
+
+    //The relay is found by the address this device was reached on, as the sessions joined to it reach the same one
+    public static RelayForwarder find(String relayId, InetAddress localAddress) {
+        return forwarders.get(getKey(relayId, localAddress));
+    }
+
+    private static String getKey(String relayId, InetAddress localAddress) {
+        return relayId + "@" + localAddress.getHostAddress();
+    }
+
+    //Reads the devices the files are forwarded to, as sent by RelaySession. Returns null when any of them is out of
+    //the networks of this device, so a relay can only be used to reach the devices around it
+    public static RelayForwarder readPlan(DataInputStream inputStream, DataOutputStream reportStream,
+                                          InetAddress localAddress) throws IOException {
+        String relayId = TransferProtocol.readString(inputStream);
+        int branchesCount = inputStream.readByte();
+        int devicesCount = inputStream.readInt();
+        if (branchesCount < 1 || devicesCount < 0 || devicesCount > TransferProtocol.MAX_RELAY_DEVICES) {
+            throw new ProtocolException("Invalid relay of " + devicesCount + " devices in " + branchesCount +
+                    " branches");
+        }
+
+        List<Device> nextDevices = new ArrayList<>(devicesCount);
+        for (int i = 0; i < devicesCount; i++) {
+            String name = TransferProtocol.readString(inputStream);
+            String os = TransferProtocol.readString(inputStream);
+            //Addresses are sent as numeric addresses, so they are parsed without any lookup
+            InetAddress address = InetAddress.getByName(TransferProtocol.readString(inputStream));
+            nextDevices.add(new Device(name, os, address));
+        }
+        if (!areLocalDevices(nextDevices)) return null;
+
+        return new RelayForwarder(relayId, localAddress, branchesCount, nextDevices, reportStream);
+    }
+
+    private static boolean areLocalDevices(List<Device> devices) {
+        Set<Subnet> subnets = new NetworkDataProvider().getSubnets();
+        for (Device device : devices) {
+            //Loopback addresses never leave this device
+            if (device.getAddress().isLoopbackAddress()) continue;
+
+            boolean local = false;
+            for (Subnet subnet : subnets) {
+                if (subnet.containsHost(device.getAddress())) {
+                    local = true;
+                    break;
+                }
+            }
+            if (!local) return false;
+        }
+        return true;
+    }
+
+    //Sets up the relay in the first device of every branch that has more devices, and starts forwarding. A branch
+    //whose relay cannot be set up only gets the files in its first device. Returns false when this device is
+    //already part of the relay, as a device listed twice would forward the files in a loop
+    public boolean start() {
+        if (forwarders.putIfAbsent(key, this) != null) return false;
+
+        int branchesSize = (nextDevices.size() + branchesCount - 1) / Math.max(1, branchesCount);
+        for (int start = 0; start < nextDevices.size(); start += branchesSize) {
+            List<Device> branchDevices = nextDevices.subList(start, Math.min(nextDevices.size(), start + branchesSize));
+            Branch branch = new Branch(branchDevices.get(0));
+            List<Device> relayedDevices = branchDevices.subList(1, branchDevices.size());
+            if (!relayedDevices.isEmpty()) {
+                try {
+                    branch.relaySession = RelaySession.open(branch.device, relayId, relayedDevices, branchesCount);
+                    branch.relaySession.readReports(new RelaySession.Listener() {
+                        @Override
+                        public void onReport(RelayReport report) {
+                            writeReport(report);
+                        }
+                    });
+                } catch (IOException ignored) {
+                }
+            }
+            branches.add(branch);
+        }
+
+        for (Branch branch : branches) {
+            for (int i = 0; i < ConfigProperties.MAX_CONCURRENT_FILES_PER_DEVICE; i++) {
+                branch.startConnection();
+            }
+        }
+        return true;
+    }
+
+    public void forward(TransferFile file) {
+        for (Branch branch : branches) {
+            branch.pendingFiles.add(file);
+        }
+    }
+
+    //Called once every file has been sent to this relay. Returns when every file has been forwarded, and the
+    //relays after this one have ended their reports
+    public void finish() {
+        for (Branch branch : branches) {
+            branch.pendingFiles.add(END);
+        }
+        try {
+            for (Branch branch : branches) {
+                for (Thread connection : branch.connections) {
+                    connection.join();
+                }
+            }
+            for (Branch branch : branches) {
+                if (branch.relaySession != null) {
+                    branch.relaySession.finish();
+                    branch.relaySession.awaitReports();
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Branch branch : branches) {
+                for (Thread connection : branch.connections) {
+                    connection.interrupt();
+                }
+                if (branch.relaySession != null) {
+                    branch.relaySession.close();
+                }
+            }
+            Thread.currentThread().interrupt();
+        } finally {
+            forwarders.remove(key);
+            writeReport(RelayReport.end());
+        }
+    }
+
+    //Reports are lost along with the connection they are written to, the files are forwarded anyway
+    private void writeReport(RelayReport report) {
+        synchronized (reportStream) {
+            try {
+                report.write(reportStream);
+                reportStream.flush();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private class Branch {
+        private final Device device;
+        private final BlockingQueue<TransferFile> pendingFiles;
+        private final List<Thread> connections;
+        private RelaySession relaySession;
+
+        private Branch(Device device) {
+            this.device = device;
+            pendingFiles = new LinkedBlockingQueue<>();
+            connections = new ArrayList<>();
+        }
+
+        private void startConnection() {
+            Thread connection = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    forwardPendingFiles();
+                }
+            });
+            connections.add(connection);
+            connection.start();
+        }
+
+        private void forwardPendingFiles() {
+            try {
+                while (true) {
+                    TransferFile file = pendingFiles.take();
+                    if (file == END) {
+                        pendingFiles.add(END);
+                        return;
+                    }
+
+                    List<TransferFile> files = new ArrayList<>();
+                    files.add(file);
+                    pendingFiles.drainTo(files, TransferProtocol.MAX_BATCH_FILES - 1);
+                    boolean ended = files.remove(END);
+                    if (ended) {
+                        pendingFiles.add(END);
+                    }
+                    forwardFiles(files);
+                    if (ended) return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void forwardFiles(List<TransferFile> files) {
+            final Set<TransferFile> finishedFiles = Collections.newSetFromMap(
+                    new ConcurrentHashMap<TransferFile, Boolean>());
+            final ConcurrentMap<TransferFile, Long> progressReportTimes = new ConcurrentHashMap<>();
+            final String deviceAddress = device.getIpAddress();
+            FileSenderProtocol fileSenderProtocol = new FileSenderProtocol(device, files,
+                    new FileSenderProtocol.Callback() {
+                        @Override
+                        public void onInitializationFailure(FileSenderProtocol fileSenderProtocol) {
+                        }
+
+                        @Override
+                        public void onTransferInitializationFailure(Transfer transfer, Exception e) {
+                            onFailure(transfer, e);
+                        }
+
+                        @Override
+                        public void onStart(Transfer transfer) {
+                            progressReportTimes.put(transfer.getFile(), System.nanoTime());
+                            writeReport(RelayReport.progress(deviceAddress, transfer.getFile().getName(), 0));
+                        }
+
+                        @Override
+                        public void onFailure(Transfer transfer, Exception e) {
+                            finishedFiles.add(transfer.getFile());
+                            writeReport(RelayReport.failure(deviceAddress, transfer.getFile().getName(),
+                                    e.getMessage()));
+                        }
+
+                        @Override
+                        public void onProgressUpdated(Transfer transfer) {
+                            long now = System.nanoTime();
+                            Long lastReportTime = progressReportTimes.get(transfer.getFile());
+                            if (lastReportTime != null && now - lastReportTime
+                                    < TimeUnit.MILLISECONDS.toNanos(PROGRESS_REPORT_INTERVAL)) return;
+
+                            progressReportTimes.put(transfer.getFile(), now);
+                            writeReport(RelayReport.progress(deviceAddress, transfer.getFile().getName(),
+                                    transfer.getProgress()));
+                        }
+
+                        @Override
+                        public void onSuccess(Transfer transfer, TransferFile file) {
+                            finishedFiles.add(transfer.getFile());
+                            writeReport(RelayReport.success(deviceAddress, transfer.getFile().getName()));
+                        }
+                    });
+            if (relaySession != null) {
+                fileSenderProtocol.joinRelay(relayId);
+            }
+            fileSenderProtocol.send();
+
+            for (TransferFile file : files) {
+                if (!finishedFiles.contains(file)) {
+                    writeReport(RelayReport.failure(deviceAddress, file.getName(),
+                            "Could not connect to " + device.getAddress()));
+                }
+            }
+        }
+    }
+}
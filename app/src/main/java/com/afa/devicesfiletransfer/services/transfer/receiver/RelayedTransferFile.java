@@ -0,0 +1,166 @@
+package com.afa.devicesfiletransfer.services.transfer.receiver;
+
+import com.afa.devicesfiletransfer.domain.model.TransferFile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+//A file forwarded by a relay while it is still being received. Its streams follow the partial file as it grows,
+//and hold back its last byte until the file is stored, so the next device never completes a file that turns out
+//to be corrupted here
+public class RelayedTransferFile implements TransferFile {
+    private static final long POLL_INTERVAL = 20;
+    private final String name;
+    private final long length;
+    private final File partialFile;
+    private final File targetFile;
+    private final long lastModified;
+    private final FileReceiver fileReceiver;
+    private boolean stored;
+    private boolean failed;
+
+    //The partial file is renamed to the target file once stored. It is written by the file receiver given, and may
+    //have been allocated whole beforehand, so only the bytes the receiver has written are read
+    public RelayedTransferFile(String name, long length, File partialFile, File targetFile,
+                               FileReceiver fileReceiver) {
+        this.name = name;
+        this.length = length;
+        this.partialFile = partialFile;
+        this.targetFile = targetFile;
+        this.fileReceiver = fileReceiver;
+        lastModified = System.currentTimeMillis();
+    }
+
+    //A file already stored, forwarded with the name it was sent with
+    public static RelayedTransferFile fromStoredFile(String name, File file) {
+        RelayedTransferFile relayedFile = new RelayedTransferFile(name, file.length(), file, file, null);
+        relayedFile.finish(true);
+        return relayedFile;
+    }
+
+    public synchronized void finish(boolean stored) {
+        this.stored = stored;
+        failed = !stored;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized boolean exists() {
+        return !failed;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getPath() {
+        return targetFile.getPath();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public InputStream getInputStream() throws FileNotFoundException {
+        return new FollowingInputStream(openReader());
+    }
+
+    //Only a stored file can be read out of order
+    @Override
+    public FileChannel getChannel() throws IOException {
+        synchronized (this) {
+            if (!stored) return null;
+        }
+
+        return new RandomAccessFile(targetFile, "r").getChannel();
+    }
+
+    private RandomAccessFile openReader() throws FileNotFoundException {
+        try {
+            return new RandomAccessFile(partialFile, "r");
+        } catch (FileNotFoundException e) {
+            synchronized (this) {
+                if (!stored) throw e;
+            }
+            return new RandomAccessFile(targetFile, "r");
+        }
+    }
+
+    //Returns how far the file can be read, waiting while nothing beyond the position has been received yet
+    private synchronized long waitForBytes(RandomAccessFile reader, long position) throws IOException {
+        while (true) {
+            if (failed) throw new IOException("The file " + name + " could not be received by the relay");
+            if (stored) return length;
+
+            //Buffered writes reach the file after the receiver counts them
+            long writtenBytes = reader.length();
+            if (fileReceiver != null) {
+                writtenBytes = Math.min(writtenBytes, fileReceiver.getReceivedBytes());
+            }
+            long receivedBytes = Math.min(writtenBytes, length - 1);
+            if (receivedBytes > position) return receivedBytes;
+
+            try {
+                wait(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the relayed file");
+            }
+        }
+    }
+
+    private class FollowingInputStream extends InputStream {
+        private final RandomAccessFile reader;
+        private long position;
+
+        private FollowingInputStream(RandomAccessFile reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) return 0;
+            if (position >= length) return -1;
+
+            long readableBytes = waitForBytes(reader, position);
+            reader.seek(position);
+            int read = reader.read(buffer, offset, (int) Math.min(count, readableBytes - position));
+            if (read > 0) position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            if (count <= 0) return 0;
+
+            long skipped = Math.min(count, waitForBytes(reader, position) - position);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
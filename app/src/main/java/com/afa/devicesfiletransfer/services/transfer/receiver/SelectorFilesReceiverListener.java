@@ -0,0 +1,252 @@
+package com.afa.devicesfiletransfer.services.transfer.receiver;
+
+import com.afa.devicesfiletransfer.services.transfer.TransferProtocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//Listener that reads the session headers of every inbound connection from a single selector thread, so no thread
+//is blocked on a connection until it can be served. Sessions and stripes beyond the limits of the admission
+//controller are answered as busy, with the delay after which the sender should try again, instead of waiting
+//unnoticed in a queue. Once accepted, a connection is served by a blocking thread with a read timeout
+public class SelectorFilesReceiverListener {
+    private static final long SELECT_TIMEOUT = 1000;
+    //Time given to a new connection to send its session header
+    private static final long HEADER_TIMEOUT = 10000;
+    //Time given to the sender to read a refusal and close the connection
+    private static final long CLOSE_TIMEOUT = 5000;
+    private final int port;
+    private final AdmissionController admissionController;
+    private final Callback callback;
+    private final AtomicBoolean listening;
+    private ServerSocketChannel serverSocketChannel;
+    private Selector selector;
+    private ExecutorService sessionsExecutor;
+    private ExecutorService stripesExecutor;
+
+    public SelectorFilesReceiverListener(int port, AdmissionController admissionController, Callback callback) {
+        this.port = port;
+        this.admissionController = admissionController;
+        this.callback = callback;
+        this.listening = new AtomicBoolean(false);
+    }
+
+    public void start() throws IOException {
+        if (listening.get()) throw new IllegalStateException("Listener already listening");
+
+        selector = Selector.open();
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.socket().bind(new InetSocketAddress(port));
+        serverSocketChannel.configureBlocking(false);
+        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        sessionsExecutor = Executors.newFixedThreadPool(admissionController.getMaxSessions());
+        //Stripes are bounded by the admission controller too, their threads are only kept while they are in use
+        stripesExecutor = Executors.newCachedThreadPool();
+        listening.set(true);
+        try {
+            while (listening.get()) {
+                selector.select(SELECT_TIMEOUT);
+                List<PendingConnection> acceptedConnections = new ArrayList<>();
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key, acceptedConnections);
+                    }
+                }
+                closeExpiredConnections();
+                if (!acceptedConnections.isEmpty()) {
+                    //Cancelled keys are only released on the next selection, channels cannot block before that
+                    selector.selectNow();
+                    for (PendingConnection connection : acceptedConnections) {
+                        dispatch(connection);
+                    }
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    public void stop() {
+        listening.set(false);
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel socketChannel = serverSocketChannel.accept();
+            if (socketChannel == null) return;
+
+            socketChannel.configureBlocking(false);
+            socketChannel.register(selector, SelectionKey.OP_READ, new PendingConnection(socketChannel));
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void read(SelectionKey key, List<PendingConnection> acceptedConnections) {
+        PendingConnection connection = (PendingConnection) key.attachment();
+        try {
+            if (connection.refused) {
+                //Whatever the sender wrote after its header is discarded until it closes the connection
+                connection.buffer.clear();
+                if (connection.socketChannel.read(connection.buffer) == -1) {
+                    closeQuietly(connection.socketChannel);
+                }
+                return;
+            }
+
+            if (connection.socketChannel.read(connection.buffer) == -1) {
+                closeQuietly(connection.socketChannel);
+                return;
+            }
+            if (connection.buffer.hasRemaining()) return;
+
+            byte sessionType;
+            try {
+                sessionType = TransferProtocol.readSessionHeader(
+                        new DataInputStream(new ByteArrayInputStream(connection.buffer.array())));
+            } catch (ProtocolException e) {
+                refuse(connection, TransferProtocol.HANDSHAKE_UNSUPPORTED_VERSION, null);
+                return;
+            }
+
+            boolean acquired = sessionType == TransferProtocol.SESSION_STRIPE ?
+                    admissionController.tryAcquireStripe() : admissionController.tryAcquireSession();
+            if (!acquired) {
+                refuse(connection, TransferProtocol.HANDSHAKE_BUSY, admissionController.getRetryDelay());
+                return;
+            }
+            connection.sessionType = sessionType;
+            key.cancel();
+            acceptedConnections.add(connection);
+        } catch (IOException e) {
+            closeQuietly(connection.socketChannel);
+        }
+    }
+
+    //The answer fits in the socket buffer of a connection that has not been answered yet
+    private void refuse(PendingConnection connection, byte response, Integer retryDelay) throws IOException {
+        ByteBuffer answer = ByteBuffer.allocate(5);
+        answer.put(response);
+        if (retryDelay != null) {
+            answer.putInt(retryDelay);
+        }
+        answer.flip();
+        connection.socketChannel.write(answer);
+        connection.socketChannel.socket().shutdownOutput();
+        connection.refused = true;
+        connection.deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        connection.buffer = ByteBuffer.allocate(1024);
+    }
+
+    private void dispatch(final PendingConnection connection) {
+        final boolean stripe = connection.sessionType == TransferProtocol.SESSION_STRIPE;
+        try {
+            connection.socketChannel.configureBlocking(true);
+        } catch (IOException e) {
+            closeQuietly(connection.socketChannel);
+            release(stripe);
+            return;
+        }
+
+        final Socket socket = connection.socketChannel.socket();
+        ExecutorService executor = stripe ? stripesExecutor : sessionsExecutor;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callback.onSessionAccepted(socket, connection.sessionType);
+                } finally {
+                    closeQuietly(connection.socketChannel);
+                    release(stripe);
+                }
+            }
+        });
+    }
+
+    private void release(boolean stripe) {
+        if (stripe) {
+            admissionController.releaseStripe();
+        } else {
+            admissionController.releaseSession();
+        }
+    }
+
+    private void closeExpiredConnections() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (key.isValid() && attachment instanceof PendingConnection
+                    && ((PendingConnection) attachment).deadline < now) {
+                closeQuietly(((PendingConnection) attachment).socketChannel);
+            }
+        }
+    }
+
+    private void close() {
+        listening.set(false);
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof PendingConnection) {
+                closeQuietly(((PendingConnection) key.attachment()).socketChannel);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            serverSocketChannel.close();
+        } catch (IOException ignored) {
+        }
+        sessionsExecutor.shutdownNow();
+        stripesExecutor.shutdownNow();
+    }
+
+    private void closeQuietly(SocketChannel socketChannel) {
+        try {
+            socketChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class PendingConnection {
+        private final SocketChannel socketChannel;
+        private ByteBuffer buffer;
+        private long deadline;
+        private boolean refused;
+        private byte sessionType;
+
+        private PendingConnection(SocketChannel socketChannel) {
+            this.socketChannel = socketChannel;
+            this.buffer = ByteBuffer.allocate(TransferProtocol.SESSION_HEADER_LENGTH);
+            this.deadline = System.currentTimeMillis() + HEADER_TIMEOUT;
+        }
+    }
+
+    public interface Callback {
+        void onSessionAccepted(Socket socket, byte sessionType);
+    }
+}
@@ -0,0 +1,120 @@
+package com.afa.devicesfiletransfer.services.transfer.receiver;
+
+import com.afa.devicesfiletransfer.services.transfer.BandwidthThrottle;
+import com.afa.devicesfiletransfer.services.transfer.TransferChecksum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StripedTransfer {
+    private final static int BUFFER_SIZE = 256 * 1024;
+    private final long fileSize;
+    private final byte checksumAlgorithm;
+    private final FileReceiver.Callback callback;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileWriter;
+    private final AtomicLong receivedCount;
+    private BandwidthThrottle throttle;
+    private AdmissionController admissionController;
+    private volatile boolean failed;
+    private int currentPercentage;
+
+    public StripedTransfer(File targetFile, long fileSize, byte checksumAlgorithm,
+                           FileReceiver.Callback callback) throws IOException {
+        this.fileSize = fileSize;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.callback = callback;
+        this.receivedCount = new AtomicLong(0);
+        this.randomAccessFile = new RandomAccessFile(targetFile, "rw");
+        try {
+            randomAccessFile.setLength(fileSize);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+        this.fileWriter = randomAccessFile.getChannel();
+    }
+
+    //Every stripe is held by a share of the throttle, so the limit applies to the whole file
+    public void setThrottle(BandwidthThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    //Every write to the disk holds one of its writers, so the stripes of a file compete with other files for them
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    public byte getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    public boolean receive(ReadableByteChannel inputChannel, long offset, long length, TransferChecksum checksum) {
+        if (failed || offset < 0 || length < 0 || offset + length > fileSize) return false;
+
+        BandwidthThrottle stripeThrottle = throttle != null ? throttle.share() : null;
+        int bufferSize = stripeThrottle != null && stripeThrottle.isLimited() ?
+                BandwidthThrottle.THROTTLED_CHUNK_SIZE : BUFFER_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(bufferSize, Math.max(length, 1)));
+        long position = offset;
+        long end = offset + length;
+        try {
+            while (position < end) {
+                if (failed || Thread.interrupted()) return false;
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int received = inputChannel.read(buffer);
+                if (received == -1) {
+                    failed = true;
+                    return false;
+                }
+
+                buffer.flip();
+                checksum.update(buffer);
+                if (admissionController != null) admissionController.acquireWriter();
+                try {
+                    while (buffer.hasRemaining()) {
+                        position += fileWriter.write(buffer, position);
+                    }
+                } finally {
+                    if (admissionController != null) admissionController.releaseWriter();
+                }
+                receivedCount.getAndAdd(received);
+                updateProgress();
+                if (stripeThrottle != null) stripeThrottle.throttle(received);
+            }
+            return true;
+        } catch (IOException e) {
+            failed = true;
+            return false;
+        }
+    }
+
+    public boolean isComplete() {
+        return !failed && receivedCount.get() == fileSize;
+    }
+
+    public void fail() {
+        failed = true;
+    }
+
+    public void close() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private synchronized void updateProgress() {
+        int receivedPercentage = fileSize == 0 ? 100 : (int) ((receivedCount.get() * 100) / fileSize);
+        if (callback != null && currentPercentage < receivedPercentage) {
+            currentPercentage = receivedPercentage;
+            callback.onProgressUpdated(currentPercentage);
+        }
+    }
+}
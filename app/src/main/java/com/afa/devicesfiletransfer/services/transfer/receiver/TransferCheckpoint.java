@@ -0,0 +1,46 @@
+package com.afa.devicesfiletransfer.services.transfer.receiver;
+
+import java.io.File;
+
+public class TransferCheckpoint {
+    static final String PARTIAL_FILE_SUFFIX = ".part";
+    private final String key;
+    private final File targetFile;
+    private final long fileSize;
+    private long committedBytes;
+
+    public TransferCheckpoint(String key, File targetFile, long fileSize, long committedBytes) {
+        this.key = key;
+        this.targetFile = targetFile;
+        this.fileSize = fileSize;
+        this.committedBytes = committedBytes;
+    }
+
+    public static File getPartialFile(File targetFile) {
+        return new File(targetFile.getPath() + PARTIAL_FILE_SUFFIX);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public File getTargetFile() {
+        return targetFile;
+    }
+
+    public File getPartialFile() {
+        return getPartialFile(targetFile);
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getCommittedBytes() {
+        return committedBytes;
+    }
+
+    public void setCommittedBytes(long committedBytes) {
+        this.committedBytes = committedBytes;
+    }
+}
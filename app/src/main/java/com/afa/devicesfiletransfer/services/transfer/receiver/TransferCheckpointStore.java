@@ -0,0 +1,149 @@
+package com.afa.devicesfiletransfer.services.transfer.receiver;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+//Checkpoints of the files that can be resumed, kept in a directory of the app. The partial file of a checkpoint
+//takes the full size of the file in the target directory, so a transfer not resumed within the maximum age is
+//given up and both are deleted
+public class TransferCheckpointStore {
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(3);
+    private static final long CLEANUP_INTERVAL = TimeUnit.HOURS.toMillis(1);
+    private static final ConcurrentMap<File, TransferCheckpointStore> stores = new ConcurrentHashMap<>();
+    private final File directory;
+    private final Map<File, Long> cleanupTimes;
+
+    private TransferCheckpointStore(File directory) {
+        this.directory = directory;
+        this.cleanupTimes = new HashMap<>();
+    }
+
+    public static TransferCheckpointStore getInstance(File directory) {
+        File key = directory.getAbsoluteFile();
+        TransferCheckpointStore store = stores.get(key);
+        if (store == null) {
+            TransferCheckpointStore newStore = new TransferCheckpointStore(key);
+            store = stores.putIfAbsent(key, newStore);
+            if (store == null) {
+                store = newStore;
+            }
+        }
+
+        return store;
+    }
+
+    public static String createKey(String deviceName, String fileId) {
+        return deviceName + "/" + fileId;
+    }
+
+    public synchronized TransferCheckpoint find(String key, long fileSize) {
+        File checkpointFile = getCheckpointFile(key);
+        if (!checkpointFile.exists()) return null;
+
+        TransferCheckpoint checkpoint;
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(checkpointFile))) {
+            String storedKey = inputStream.readUTF();
+            File targetFile = new File(inputStream.readUTF());
+            long storedFileSize = inputStream.readLong();
+            long committedBytes = inputStream.readLong();
+            checkpoint = new TransferCheckpoint(storedKey, targetFile, storedFileSize, committedBytes);
+        } catch (IOException e) {
+            checkpointFile.delete();
+            return null;
+        }
+
+        File partialFile = checkpoint.getPartialFile();
+        if (!checkpoint.getKey().equals(key) || checkpoint.getFileSize() != fileSize
+                || !partialFile.exists() || partialFile.length() < checkpoint.getCommittedBytes()) {
+            delete(checkpoint);
+            return null;
+        }
+
+        return checkpoint;
+    }
+
+    public synchronized void save(TransferCheckpoint checkpoint) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the checkpoints directory");
+        }
+
+        File checkpointFile = getCheckpointFile(checkpoint.getKey());
+        File temporaryFile = new File(checkpointFile.getPath() + ".tmp");
+        try (FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile)) {
+            DataOutputStream outputStream = new DataOutputStream(fileOutputStream);
+            outputStream.writeUTF(checkpoint.getKey());
+            outputStream.writeUTF(checkpoint.getTargetFile().getAbsolutePath());
+            outputStream.writeLong(checkpoint.getFileSize());
+            outputStream.writeLong(checkpoint.getCommittedBytes());
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        }
+        if (!temporaryFile.renameTo(checkpointFile)) {
+            throw new IOException("Cannot store the checkpoint of " + checkpoint.getTargetFile().getName());
+        }
+    }
+
+    public synchronized void delete(TransferCheckpoint checkpoint) {
+        getCheckpointFile(checkpoint.getKey()).delete();
+    }
+
+    //Deletes the checkpoints and the partial files of the target directory not written for longer than the maximum
+    //age. Looked for at most once per cleanup interval, a file being received is written far more often
+    public void removeStale(File targetDirectory) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Long cleanupTime = cleanupTimes.get(targetDirectory);
+            if (cleanupTime != null && now - cleanupTime < CLEANUP_INTERVAL) return;
+            cleanupTimes.put(targetDirectory, now);
+
+            File[] checkpointFiles = directory.listFiles();
+            if (checkpointFiles != null) {
+                for (File checkpointFile : checkpointFiles) {
+                    if (now - checkpointFile.lastModified() > MAX_AGE) {
+                        checkpointFile.delete();
+                    }
+                }
+            }
+        }
+
+        //Partial files are not written under the lock, the ones of other stores are left alone by their age too
+        File[] files = targetDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.getName().endsWith(TransferCheckpoint.PARTIAL_FILE_SUFFIX) && file.isFile()
+                    && now - file.lastModified() > MAX_AGE) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getCheckpointFile(String key) {
+        return new File(directory, hash(key));
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+            byte[] digest = messageDigest.digest(key.getBytes(Charset.forName("UTF-8")));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -1,20 +1,48 @@
 package com.afa.devicesfiletransfer.services.transfer.sender;
 
 import com.afa.devicesfiletransfer.domain.model.TransferFile;
+import com.afa.devicesfiletransfer.services.transfer.BandwidthThrottle;
+import com.afa.devicesfiletransfer.services.transfer.CompressionCodec;
+import com.afa.devicesfiletransfer.services.transfer.DeltaCodec;
+import com.afa.devicesfiletransfer.services.transfer.TransferChecksum;
 
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class FileSender {
     private final static int BUFFER_SIZE = 8192;
+    private final static long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+    private final static int HASHED_BUFFER_SIZE = 256 * 1024;
+    //A delta that matches less than a tenth of the first bytes is given up, the rest is sent as literal data
+    private final static long DELTA_PROBE_LENGTH = 4 * 1024 * 1024;
+    private final static int MIN_DELTA_MATCH_PERCENTAGE = 10;
+    private final static ThreadLocal<ByteBuffer> hashedBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(HASHED_BUFFER_SIZE);
+        }
+    };
     private final TransferFile file;
     private final AtomicBoolean sending;
     private Callback callback;
+    private TransferChecksum checksum;
+    private BandwidthThrottle throttle;
     private AtomicLong sentCount;
+    private long fileSize;
+    private long startOffset;
+    private long wireCount;
+    private long throttledWireCount;
+    private long startTime;
 
     public FileSender(TransferFile file) {
         this.file = file;
@@ -31,46 +59,124 @@ public class FileSender {
         this.callback = callback;
     }
 
+    //The checksum is updated with every byte sent. The file is then read into a direct buffer and hashed there
+    //instead of being transferred by the kernel, unless the checksum is left unset
+    public void setChecksum(TransferChecksum checksum) {
+        this.checksum = checksum;
+    }
+
+    public void setThrottle(BandwidthThrottle throttle) {
+        this.throttle = throttle;
+    }
+
     public boolean isSending() {
         return sending.get();
     }
 
     public int getSentPercentage() {
-        return (int) ((sentCount.get() * 100) / file.length());
+        if (fileSize == 0) return 100;
+
+        return (int) ((sentCount.get() * 100) / fileSize);
+    }
+
+    public long getTransferredBytes() {
+        return sentCount.get() - startOffset;
+    }
+
+    public long getWireBytes() {
+        return wireCount;
+    }
+
+    //Milliseconds since the file data started to be sent
+    public long getElapsedTime() {
+        return (System.nanoTime() - startTime) / 1000000;
     }
 
     public void send(OutputStream outputStream) {
+        send(outputStream, 0);
+    }
+
+    public void send(OutputStream outputStream, long offset) {
         if (sending.get()) throw new IllegalStateException("Already sending the file");
 
-        sending.set(true);
-        if (callback != null)
-            callback.onStart();
+        start(offset);
         try (InputStream fileReader = file.getInputStream()) {
-            DataOutputStream output = new DataOutputStream(outputStream);
-            byte[] buffer = new byte[BUFFER_SIZE];
-            sentCount.set(0);
-            int sent;
-            int currentPercentage = 0;
-
-            while ((sent = fileReader.read(buffer, 0, getRemaining())) != -1
-                    && sentCount.get() < file.length()) {
-                if (!sending.get() || Thread.interrupted()) return;
-                output.write(buffer, 0, sent);
-                sentCount.getAndAdd(sent);
-
-                int sentPercentage = getSentPercentage();
-                if (callback != null && currentPercentage < sentPercentage) {
-                    currentPercentage = sentPercentage;
-                    callback.onProgressUpdated(currentPercentage);
-                }
+            skip(fileReader, offset);
+            if (pump(fileReader, outputStream)) {
+                notifyResult();
             }
-            if (callback != null) {
-                if (sentCount.get() == file.length()) {
-                    callback.onSuccess(file);
-                } else {
-                    callback.onFailure(new Exception("The file has not been completely transferred"));
+        } catch (IOException e) {
+            sending.set(false);
+            if (callback != null)
+                callback.onFailure(e);
+        } finally {
+            sending.set(false);
+        }
+    }
+
+    public void send(WritableByteChannel outputChannel) {
+        send(outputChannel, 0);
+    }
+
+    public void send(WritableByteChannel outputChannel, long offset) {
+        if (sending.get()) throw new IllegalStateException("Already sending the file");
+
+        start(offset);
+        try {
+            FileChannel fileChannel = file.getChannel();
+            boolean completed;
+            if (fileChannel != null) {
+                try (FileChannel fileReader = fileChannel) {
+                    completed = checksum != null ?
+                            transferHashed(fileReader, outputChannel) : transfer(fileReader, outputChannel);
+                }
+            } else {
+                try (InputStream fileReader = file.getInputStream()) {
+                    skip(fileReader, offset);
+                    completed = pump(fileReader, Channels.newOutputStream(outputChannel));
                 }
             }
+            if (completed) {
+                notifyResult();
+            }
+        } catch (IOException e) {
+            sending.set(false);
+            if (callback != null)
+                callback.onFailure(e);
+        } finally {
+            sending.set(false);
+        }
+    }
+
+    public void sendCompressed(OutputStream outputStream, long offset) {
+        if (sending.get()) throw new IllegalStateException("Already sending the file");
+
+        start(offset);
+        CompressionCodec codec = new CompressionCodec();
+        try (InputStream fileReader = file.getInputStream()) {
+            skip(fileReader, offset);
+            if (deflate(fileReader, new DataOutputStream(outputStream), codec)) {
+                notifyResult();
+            }
+        } catch (IOException e) {
+            sending.set(false);
+            if (callback != null)
+                callback.onFailure(e);
+        } finally {
+            codec.end();
+            sending.set(false);
+        }
+    }
+
+    //Sends the file as literal data and references to the blocks of the receiver copy described by the codec
+    public void sendDelta(OutputStream outputStream, DeltaCodec codec) {
+        if (sending.get()) throw new IllegalStateException("Already sending the file");
+
+        start(0);
+        try (InputStream fileReader = file.getInputStream()) {
+            if (delta(fileReader, new DataOutputStream(outputStream), codec)) {
+                notifyResult();
+            }
         } catch (IOException e) {
             sending.set(false);
             if (callback != null)
@@ -84,8 +190,296 @@ public class FileSender {
         sending.set(false);
     }
 
+    private void start(long offset) {
+        sending.set(true);
+        sentCount.set(offset);
+        startOffset = offset;
+        wireCount = 0;
+        throttledWireCount = 0;
+        startTime = System.nanoTime();
+        fileSize = file.length();
+        if (callback != null)
+            callback.onStart();
+    }
+
+    private void skip(InputStream fileReader, long offset) throws IOException {
+        long remaining = offset;
+        byte[] buffer = null;
+        while (remaining > 0) {
+            long skipped = fileReader.skip(remaining);
+            if (skipped <= 0) {
+                if (buffer == null) buffer = new byte[BUFFER_SIZE];
+                int read = fileReader.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) throw new EOFException("The file is shorter than the resume offset");
+                skipped = read;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private boolean pump(InputStream fileReader, OutputStream outputStream) throws IOException {
+        DataOutputStream output = new DataOutputStream(outputStream);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int sent;
+        int currentPercentage = 0;
+
+        while ((sent = fileReader.read(buffer, 0, getRemaining())) != -1
+                && sentCount.get() < fileSize) {
+            if (!sending.get() || Thread.currentThread().isInterrupted()) return false;
+            output.write(buffer, 0, sent);
+            if (checksum != null) checksum.update(buffer, 0, sent);
+            sentCount.getAndAdd(sent);
+            wireCount += sent;
+            currentPercentage = updateProgress(currentPercentage);
+            throttle(wireCount);
+        }
+        if (sentCount.get() < fileSize) throw shorterFile();
+
+        return true;
+    }
+
+    private boolean transfer(FileChannel fileReader, WritableByteChannel outputChannel) throws IOException {
+        int currentPercentage = 0;
+
+        while (sentCount.get() < fileSize) {
+            if (!sending.get() || Thread.currentThread().isInterrupted()) return false;
+            //A throttled transfer is paced in small chunks instead of waiting long after every large one
+            long chunkSize = throttle != null && throttle.isLimited() ?
+                    BandwidthThrottle.THROTTLED_CHUNK_SIZE : TRANSFER_CHUNK_SIZE;
+            long count = Math.min(chunkSize, fileSize - sentCount.get());
+            long sent = fileReader.transferTo(sentCount.get(), count, outputChannel);
+            if (sent <= 0) throw shorterFile();
+            sentCount.getAndAdd(sent);
+            wireCount += sent;
+            currentPercentage = updateProgress(currentPercentage);
+            throttle(wireCount);
+        }
+
+        return true;
+    }
+
+    private boolean transferHashed(FileChannel fileReader, WritableByteChannel outputChannel) throws IOException {
+        ByteBuffer buffer = hashedBuffer.get();
+        int currentPercentage = 0;
+
+        while (sentCount.get() < fileSize) {
+            if (!sending.get() || Thread.currentThread().isInterrupted()) return false;
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), fileSize - sentCount.get()));
+            int read = fileReader.read(buffer, sentCount.get());
+            if (read <= 0) throw shorterFile();
+
+            buffer.flip();
+            checksum.update(buffer);
+            while (buffer.hasRemaining()) {
+                outputChannel.write(buffer);
+            }
+            sentCount.getAndAdd(read);
+            wireCount += read;
+            currentPercentage = updateProgress(currentPercentage);
+            throttle(wireCount);
+        }
+
+        return true;
+    }
+
+    private boolean deflate(InputStream fileReader, DataOutputStream output,
+                            CompressionCodec codec) throws IOException {
+        byte[] buffer = new byte[CompressionCodec.CHUNK_SIZE];
+        int currentPercentage = 0;
+
+        try {
+            while (sentCount.get() < fileSize) {
+                if (!sending.get() || Thread.currentThread().isInterrupted()) return false;
+                int read = readChunk(fileReader, buffer, (int) Math.min(buffer.length, fileSize - sentCount.get()));
+                if (read <= 0) throw shorterFile();
+                codec.writeChunk(output, buffer, read);
+                if (checksum != null) checksum.update(buffer, 0, read);
+                sentCount.getAndAdd(read);
+                currentPercentage = updateProgress(currentPercentage);
+                throttle(codec.getWireBytes());
+            }
+            codec.writeEnd(output);
+            output.flush();
+        } finally {
+            wireCount = codec.getWireBytes();
+        }
+
+        return true;
+    }
+
+    //Slides a block sized window over the file, the bytes left behind without a matching block are sent as literals
+    private boolean delta(InputStream fileReader, DataOutputStream output, DeltaCodec codec) throws IOException {
+        int blockSize = codec.getBlockSize();
+        byte[] buffer = new byte[2 * (DeltaCodec.LITERAL_SIZE + blockSize)];
+        int literalStart = 0;
+        int windowStart = 0;
+        int end = 0;
+        int weakChecksum = 0;
+        boolean weakChecksumValid = false;
+        boolean endOfFile = false;
+        long matchedBytes = 0;
+        int currentPercentage = 0;
+
+        try {
+            while (true) {
+                if (!sending.get() || Thread.currentThread().isInterrupted()) return false;
+                //The window must be followed by the byte it rolls over
+                if (!endOfFile && end - windowStart <= blockSize) {
+                    if (sentCount.get() >= DELTA_PROBE_LENGTH
+                            && matchedBytes * 100 < sentCount.get() * MIN_DELTA_MATCH_PERCENTAGE) {
+                        writeLiterals(output, codec, buffer, literalStart, end);
+                        return sendLiterals(fileReader, output, codec);
+                    }
+                    if (end == buffer.length) {
+                        System.arraycopy(buffer, literalStart, buffer, 0, end - literalStart);
+                        windowStart -= literalStart;
+                        end -= literalStart;
+                        literalStart = 0;
+                    }
+                    int read = fileReader.read(buffer, end, (int) Math.min(buffer.length - end, fileSize - sentCount.get()));
+                    if (read <= 0) throw shorterFile();
+                    if (checksum != null) checksum.update(buffer, end, read);
+                    end += read;
+                    sentCount.getAndAdd(read);
+                    currentPercentage = updateProgress(currentPercentage);
+                    endOfFile = sentCount.get() == fileSize;
+                    throttle(codec.getWireBytes());
+                    continue;
+                }
+
+                int windowLength = end - windowStart;
+                if (windowLength < blockSize) {
+                    //The tail can only match the last block of the receiver copy
+                    if (windowLength > 0 && codec.isLastBlockLength(windowLength)) {
+                        int block = codec.findBlock(DeltaCodec.weakChecksum(buffer, windowStart, windowLength),
+                                buffer, windowStart, windowLength);
+                        if (block != -1) {
+                            writeLiterals(output, codec, buffer, literalStart, windowStart);
+                            codec.writeBlock(output, block);
+                            matchedBytes += windowLength;
+                            literalStart = end;
+                        }
+                    }
+                    writeLiterals(output, codec, buffer, literalStart, end);
+                    break;
+                }
+
+                if (!weakChecksumValid) {
+                    weakChecksum = DeltaCodec.weakChecksum(buffer, windowStart, blockSize);
+                    weakChecksumValid = true;
+                }
+                int block = codec.findBlock(weakChecksum, buffer, windowStart, blockSize);
+                if (block != -1) {
+                    writeLiterals(output, codec, buffer, literalStart, windowStart);
+                    codec.writeBlock(output, block);
+                    matchedBytes += blockSize;
+                    windowStart += blockSize;
+                    literalStart = windowStart;
+                    weakChecksumValid = false;
+                    continue;
+                }
+
+                if (windowLength > blockSize) {
+                    weakChecksum = DeltaCodec.rollWeakChecksum(weakChecksum, blockSize,
+                            buffer[windowStart], buffer[windowStart + blockSize]);
+                } else {
+                    weakChecksumValid = false;
+                }
+                windowStart++;
+                if (windowStart - literalStart == DeltaCodec.LITERAL_SIZE) {
+                    codec.writeLiteral(output, buffer, literalStart, DeltaCodec.LITERAL_SIZE);
+                    literalStart = windowStart;
+                }
+            }
+            codec.writeEnd(output);
+            output.flush();
+        } finally {
+            wireCount = codec.getWireBytes();
+        }
+
+        return true;
+    }
+
+    //Sends the rest of the file as literal data, without looking for blocks of the receiver copy
+    private boolean sendLiterals(InputStream fileReader, DataOutputStream output, DeltaCodec codec) throws IOException {
+        byte[] buffer = new byte[DeltaCodec.LITERAL_SIZE];
+        int currentPercentage = getSentPercentage();
+
+        try {
+            while (sentCount.get() < fileSize) {
+                if (!sending.get() || Thread.currentThread().isInterrupted()) return false;
+                int read = readChunk(fileReader, buffer, (int) Math.min(buffer.length, fileSize - sentCount.get()));
+                if (read <= 0) throw shorterFile();
+                codec.writeLiteral(output, buffer, 0, read);
+                if (checksum != null) checksum.update(buffer, 0, read);
+                sentCount.getAndAdd(read);
+                currentPercentage = updateProgress(currentPercentage);
+                throttle(codec.getWireBytes());
+            }
+            codec.writeEnd(output);
+            output.flush();
+        } finally {
+            wireCount = codec.getWireBytes();
+        }
+
+        return true;
+    }
+
+    private void writeLiterals(DataOutputStream output, DeltaCodec codec, byte[] buffer,
+                               int start, int end) throws IOException {
+        for (int offset = start; offset < end; offset += DeltaCodec.LITERAL_SIZE) {
+            codec.writeLiteral(output, buffer, offset, Math.min(DeltaCodec.LITERAL_SIZE, end - offset));
+        }
+    }
+
+    //A file that shrinks while it is sent cannot be completed, and the receiver is still waiting for the bytes
+    //announced, so the connection is given up instead of reporting a result
+    private EOFException shorterFile() {
+        return new EOFException("The file " + file.getName() + " is shorter than announced");
+    }
+
+    private int readChunk(InputStream fileReader, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = fileReader.read(buffer, read, length - read);
+            if (count == -1) break;
+            read += count;
+        }
+
+        return read;
+    }
+
+    //Takes the bytes written to the connection so far, the throttle is given the ones written since the last call
+    private void throttle(long wireBytes) throws InterruptedIOException {
+        if (throttle == null) return;
+
+        throttle.throttle(wireBytes - throttledWireCount);
+        throttledWireCount = wireBytes;
+    }
+
+    private int updateProgress(int currentPercentage) {
+        int sentPercentage = getSentPercentage();
+        if (callback != null && currentPercentage < sentPercentage) {
+            callback.onProgressUpdated(sentPercentage);
+            return sentPercentage;
+        }
+
+        return currentPercentage;
+    }
+
+    private void notifyResult() {
+        if (callback != null) {
+            if (sentCount.get() == fileSize) {
+                callback.onSuccess(file);
+            } else {
+                callback.onFailure(new Exception("The file has not been completely transferred"));
+            }
+        }
+    }
+
     private int getRemaining() {
-        long remaining = (file.length() - sentCount.get());
+        long remaining = (fileSize - sentCount.get());
         if (remaining > BUFFER_SIZE) {
             return BUFFER_SIZE;
         }
@@ -5,26 +5,78 @@ import com.afa.devicesfiletransfer.domain.model.Device;
 import com.afa.devicesfiletransfer.domain.model.DeviceFactory;
 import com.afa.devicesfiletransfer.domain.model.Transfer;
 import com.afa.devicesfiletransfer.domain.model.TransferFile;
-import com.google.gson.Gson;
+import com.afa.devicesfiletransfer.services.transfer.BandwidthThrottle;
+import com.afa.devicesfiletransfer.services.transfer.CompressionCodec;
+import com.afa.devicesfiletransfer.services.transfer.DeltaCodec;
+import com.afa.devicesfiletransfer.services.transfer.ReceiverBusyException;
+import com.afa.devicesfiletransfer.services.transfer.TransferChecksum;
+import com.afa.devicesfiletransfer.services.transfer.TransferProtocol;
+import com.afa.devicesfiletransfer.util.file.FileUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class FileSenderProtocol {
+    private static final int CONNECTION_TIMEOUT = 3000;
+    private static final int MAX_RECONNECTION_ATTEMPTS = 3;
+    private static final long RECONNECTION_DELAY = 1000;
+    private static final int MAX_BUSY_RETRIES = 30;
+    private static final long STRIPING_THRESHOLD = 64 * 1024 * 1024;
+    private static final int HEADER_BUFFER_SIZE = 8192;
+    private static final long SMALL_FILE_THRESHOLD = 256 * 1024;
+    private static final long MAX_BATCH_SIZE = 4 * 1024 * 1024;
+    //Smaller files are cheaper to send whole than to describe with block signatures
+    private static final long DELTA_THRESHOLD = 1024 * 1024;
+    private static final int MAX_CONTENT_HASHES = 256;
+    //Content hashes of the files last asked for by any receiver, by file id, so a file offered again or to
+    //another device is not hashed again
+    private static final Map<String, byte[]> contentHashes = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_CONTENT_HASHES;
+        }
+    };
     private final Device remoteDevice;
-    private Device currentDevice;
     private final List<TransferFile> files;
     private Callback callback;
     private boolean isSending;
+    private boolean stripingEnabled;
+    private boolean compressionEnabled;
+    private boolean strongChecksumsEnabled;
+    private boolean deduplicationEnabled;
+    private boolean deltaEnabled;
+    private boolean verificationEnabled;
+    private int maxConcurrentFiles;
+    private TransferScheduler scheduler;
+    private TransferScheduler.Priority priority;
+    private List<Device> relayDevices;
+    private int relayBranchesCount;
+    private String relayId;
 
     public FileSenderProtocol(Device remoteDevice, List<TransferFile> files) {
         isSending = false;
+        verificationEnabled = true;
+        maxConcurrentFiles = 1;
+        priority = TransferScheduler.Priority.USER;
+        relayDevices = Collections.emptyList();
         this.remoteDevice = remoteDevice;
         this.files = files;
     }
@@ -42,71 +94,714 @@ public class FileSenderProtocol {
         return remoteDevice;
     }
 
+    //Counts the transfers to the devices reached through the relay too
     public int getTransfersCount() {
-        return files.size();
+        return files.size() * (1 + relayDevices.size());
     }
 
     public boolean isSending() {
         return isSending;
     }
 
+    public void setStripingEnabled(boolean stripingEnabled) {
+        this.stripingEnabled = stripingEnabled;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    //Verifies files with SHA-256 instead of CRC32
+    public void setStrongChecksumsEnabled(boolean strongChecksumsEnabled) {
+        this.strongChecksumsEnabled = strongChecksumsEnabled;
+    }
+
+    //Offers every file for deduplication, so the receiver can skip the ones it already has. A file is only hashed
+    //when the receiver has files of its size
+    public void setDeduplicationEnabled(boolean deduplicationEnabled) {
+        this.deduplicationEnabled = deduplicationEnabled;
+    }
+
+    //Sends modified files as the differences with the older copy the receiver holds, if any
+    public void setDeltaEnabled(boolean deltaEnabled) {
+        this.deltaEnabled = deltaEnabled;
+    }
+
+    //Unverified files are sent straight from the disk to the connection by the kernel, without reading them
+    public void setVerificationEnabled(boolean verificationEnabled) {
+        this.verificationEnabled = verificationEnabled;
+    }
+
+    public void setMaxConcurrentFiles(int maxConcurrentFiles) {
+        this.maxConcurrentFiles = maxConcurrentFiles;
+    }
+
+    //Files are taken from the scheduler shared with the sendings to other devices. Without one, the files of
+    //this sending are sent in order of priority as fast as the connections to the device allow
+    public void setScheduler(TransferScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public void setPriority(TransferScheduler.Priority priority) {
+        this.priority = priority;
+    }
+
+    //The receiver forwards the files to these devices as it receives them. They are split in as many branches as
+    //given, each one relayed again by its first device, and their transfers are notified as the relays report them
+    public void setRelayDevices(List<Device> relayDevices, int branchesCount) {
+        this.relayDevices = relayDevices;
+        this.relayBranchesCount = Math.max(1, branchesCount);
+    }
+
+    //The files are sent to be forwarded by a relay already set up in the receiver, used by the relays themselves
+    public void joinRelay(String relayId) {
+        this.relayId = relayId;
+    }
+
     public void send() {
-        try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(remoteDevice.getAddress(), ConfigProperties.TRANSFER_SERVICE_PORT), 3000);
-            InetAddress currentDeviceAddress = socket.getLocalAddress();
-            currentDevice = DeviceFactory.getCurrentDevice(currentDeviceAddress);
-            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-
-            isSending = true;
-            outputStream.writeInt(files.size());
-            for (TransferFile file : files) {
-                final Transfer transfer = new Transfer(
-                        remoteDevice, file, 0, false);
-                if (!file.exists()) {
-                    transfer.setStatus(Transfer.TransferStatus.FAILED);
-                    if (callback != null) {
-                        callback.onTransferInitializationFailure(transfer,
-                                new FileNotFoundException("File " + file.getPath() + " doesn´t " +
-                                        "exists or cannot be accessed"));
-                    }
-                    continue;
+        if (remoteDevice.isLegacy()) {
+            failLegacyDevice();
+            return;
+        }
+
+        isSending = true;
+        RelaySession relaySession = null;
+        RelayTransfers relayTransfers = null;
+        if (!relayDevices.isEmpty()) {
+            relayTransfers = new RelayTransfers(relayDevices, files, callback);
+            relaySession = openRelaySession(relayTransfers);
+        }
+        int connectionsCount = Math.max(1, Math.min(maxConcurrentFiles, files.size()));
+        TransferScheduler sendingScheduler = scheduler != null ? scheduler
+                : new TransferScheduler(connectionsCount, connectionsCount);
+        List<Transfer> transfers = new ArrayList<>(files.size());
+        for (TransferFile file : files) {
+            transfers.add(new Transfer(remoteDevice, file, 0, false));
+        }
+        TransferScheduler.TransferQueue transferQueue = sendingScheduler.createQueue(remoteDevice, transfers, priority);
+        AtomicBoolean connected = new AtomicBoolean(false);
+        try {
+            if (connectionsCount == 1) {
+                sendFiles(transferQueue, connected);
+            } else {
+                sendFilesConcurrently(connectionsCount, transferQueue, connected);
+            }
+        } finally {
+            //Files left by connections that could not connect, and by interrupted ones, are never sent
+            List<Transfer> unsentTransfers = transferQueue.close();
+            if (connected.get()) {
+                for (Transfer transfer : unsentTransfers) {
+                    failTransfer(transfer, new IOException("Could not connect to " + remoteDevice.getAddress()));
                 }
-                final FileSender fileSender = createFileSender(transfer, callback);
+            }
+            if (relayTransfers != null) {
+                finishRelay(relaySession, relayTransfers, connected.get());
+            }
+            isSending = false;
+        }
+
+        if (!connected.get() && callback != null) {
+            callback.onInitializationFailure(this);
+        }
+    }
+
+    //Devices of older versions never answer the session header, so they are not connected to at all
+    private void failLegacyDevice() {
+        IOException e = new IOException("The device " + remoteDevice.getName() +
+                " runs an older version that cannot receive files from this one");
+        for (TransferFile file : files) {
+            failTransfer(new Transfer(remoteDevice, file, 0, false), e);
+        }
+        if (!relayDevices.isEmpty()) {
+            new RelayTransfers(relayDevices, files, callback).finish(e.getMessage());
+        }
+    }
+
+    //Without a relay the files are only sent to the receiver, and the transfers to the other devices fail at the end
+    private RelaySession openRelaySession(RelayTransfers relayTransfers) {
+        String newRelayId = UUID.randomUUID().toString();
+        try {
+            RelaySession relaySession = RelaySession.open(remoteDevice, newRelayId, relayDevices, relayBranchesCount);
+            relaySession.readReports(relayTransfers);
+            relayId = newRelayId;
+            return relaySession;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    //Waits for the reports of every device reached through the relay, once every file has been sent to it
+    private void finishRelay(RelaySession relaySession, RelayTransfers relayTransfers, boolean connected) {
+        if (relaySession != null) {
+            relaySession.finish();
+            try {
+                relaySession.awaitReports();
+            } catch (InterruptedException e) {
+                relaySession.close();
+                Thread.currentThread().interrupt();
+            }
+        }
+        //Without any connection every transfer is notified as not initialized at once
+        if (connected) {
+            relayTransfers.finish(relaySession != null ? "The file did not reach the device through the relay"
+                    : "Could not set up the relay through " + remoteDevice.getAddress());
+        }
+    }
 
+    private void sendFilesConcurrently(int connectionsCount, final TransferScheduler.TransferQueue transferQueue,
+                                       final AtomicBoolean connected) {
+        List<Thread> connections = new ArrayList<>();
+        for (int i = 0; i < connectionsCount; i++) {
+            Thread connection = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sendFiles(transferQueue, connected);
+                }
+            });
+            connections.add(connection);
+            connection.start();
+        }
+
+        try {
+            for (Thread connection : connections) {
+                connection.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread connection : connections) {
+                connection.interrupt();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //A connection is opened once the scheduler gives a turn to this device, and closed when it gives the next
+    //turn to another one. The transfers taken hold the turn until they are answered
+    private void sendFiles(TransferScheduler.TransferQueue transferQueue, AtomicBoolean anyConnected) {
+        boolean connected = false;
+        int reconnectionAttempts = 0;
+        int busyRetries = 0;
+        Transfer currentTransfer = null;
+        List<Transfer> batch = new ArrayList<>();
+        while (true) {
+            if (currentTransfer == null && batch.isEmpty()) {
                 try {
-                    sendFileData(file, outputStream);
-                    fileSender.send(outputStream);
-                } catch (IOException e) {
-                    if (callback != null) {
-                        callback.onFailure(transfer, e);
+                    currentTransfer = takeTransfer(transferQueue.take(), transferQueue, batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (currentTransfer == null && batch.isEmpty()) return;
+            }
+
+            try (SocketChannel socketChannel = SocketChannel.open()) {
+                Socket socket = socketChannel.socket();
+                //Frames are flushed whole, so they do not need to wait for the previous file to be acknowledged
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(remoteDevice.getAddress(), ConfigProperties.TRANSFER_SERVICE_PORT), CONNECTION_TIMEOUT);
+                socket.setSoTimeout(TransferProtocol.READ_TIMEOUT);
+                connected = true;
+                anyConnected.set(true);
+                DataOutputStream outputStream = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(), HEADER_BUFFER_SIZE));
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                byte capabilities = sendSessionHeader(socket.getLocalAddress(), inputStream, outputStream);
+                busyRetries = 0;
+                while (true) {
+                    if (currentTransfer == null && batch.isEmpty()) {
+                        currentTransfer = takeTransfer(transferQueue.poll(), transferQueue, batch);
+                        if (currentTransfer == null && batch.isEmpty()) break;
+                    }
+
+                    if (!batch.isEmpty()) {
+                        sendBatch(batch, TransferProtocol.getChecksumAlgorithm(capabilities), inputStream, outputStream);
+                        releaseTransfers(transferQueue, null, batch);
+                    } else {
+                        TransferFile file = currentTransfer.getFile();
+                        if (!file.exists()) {
+                            currentTransfer.setStatus(Transfer.TransferStatus.FAILED);
+                            if (callback != null) {
+                                callback.onTransferInitializationFailure(currentTransfer,
+                                        new FileNotFoundException("File " + file.getPath() + " doesn´t " +
+                                                "exists or cannot be accessed"));
+                            }
+                        } else {
+                            sendFile(currentTransfer, inputStream, outputStream, socketChannel, capabilities);
+                        }
+                        releaseTransfers(transferQueue, currentTransfer, batch);
+                        currentTransfer = null;
                     }
+                    reconnectionAttempts = 0;
+                }
+                outputStream.writeByte(TransferProtocol.FRAME_END);
+                outputStream.flush();
+            } catch (ReceiverBusyException e) {
+                //Nothing has been sent through a refused connection, so its files wait for another turn
+                putBackTransfers(transferQueue, currentTransfer, batch);
+                currentTransfer = null;
+                if (++busyRetries > MAX_BUSY_RETRIES || !waitToRetry(e.getRetryDelay())) {
+                    notifyInterruptedTransfers(transferQueue, null, batch, e);
+                    return;
+                }
+            } catch (IOException e) {
+                //Files not sent yet are left to the other connections of the session
+                if (!connected) {
+                    putBackTransfers(transferQueue, currentTransfer, batch);
+                    return;
+                }
+
+                if (++reconnectionAttempts > MAX_RECONNECTION_ATTEMPTS || !waitToReconnect(reconnectionAttempts)) {
+                    notifyInterruptedTransfers(transferQueue, currentTransfer, batch, e);
+                    return;
                 }
             }
-        } catch (IOException e) {
+        }
+    }
+
+    //Returns the transfer taken, unless it is sent in a batch along with the next small files
+    private Transfer takeTransfer(Transfer transfer, TransferScheduler.TransferQueue transferQueue, List<Transfer> batch) {
+        if (transfer == null || !isBatchable(transfer.getFile())) return transfer;
+
+        fillBatch(batch, transfer, transferQueue);
+        return null;
+    }
+
+    private boolean isBatchable(TransferFile file) {
+        return file.exists() && file.length() <= SMALL_FILE_THRESHOLD;
+    }
+
+    //Files are queued smallest first, so the batch ends with the first file that is not small
+    private void fillBatch(List<Transfer> batch, Transfer firstTransfer, TransferScheduler.TransferQueue transferQueue) {
+        batch.add(firstTransfer);
+        long batchSize = firstTransfer.getFile().length();
+        while (batch.size() < TransferProtocol.MAX_BATCH_FILES && batchSize < MAX_BATCH_SIZE) {
+            Transfer transfer = transferQueue.pollNotLongerThan(SMALL_FILE_THRESHOLD);
+            if (transfer == null) return;
+            if (!transfer.getFile().exists()) {
+                transfer.setStatus(Transfer.TransferStatus.FAILED);
+                if (callback != null) {
+                    callback.onTransferInitializationFailure(transfer,
+                            new FileNotFoundException("File " + transfer.getFile().getPath() + " doesn´t " +
+                                    "exists or cannot be accessed"));
+                }
+                continue;
+            }
+
+            batch.add(transfer);
+            batchSize += transfer.getFile().length();
+        }
+    }
+
+    //Ends the turn held by the transfer, or by the batch, once answered
+    private void releaseTransfers(TransferScheduler.TransferQueue transferQueue, Transfer transfer, List<Transfer> batch) {
+        long sentBytes = transfer != null ? transfer.getWireBytes() : 0;
+        for (Transfer batchedTransfer : batch) {
+            sentBytes += batchedTransfer.getWireBytes();
+        }
+        batch.clear();
+        transferQueue.release(sentBytes);
+    }
+
+    private void putBackTransfers(TransferScheduler.TransferQueue transferQueue, Transfer transfer, List<Transfer> batch) {
+        if (transfer == null && batch.isEmpty()) return;
+
+        if (transfer != null) {
+            transferQueue.putBack(transfer);
+        }
+        for (Transfer batchedTransfer : batch) {
+            transferQueue.putBack(batchedTransfer);
+        }
+        batch.clear();
+        transferQueue.release(0);
+    }
+
+    private void sendBatch(List<Transfer> batch, byte checksumAlgorithm, DataInputStream inputStream,
+                           DataOutputStream outputStream) throws IOException {
+        List<Transfer> readTransfers = new ArrayList<>(batch.size());
+        List<byte[]> contents = new ArrayList<>(batch.size());
+        for (Transfer transfer : batch) {
+            //Transfers already answered before a reconnection are not sent again
+            if (transfer.getStatus() == Transfer.TransferStatus.FAILED
+                    || transfer.getStatus() == Transfer.TransferStatus.COMPLETED) continue;
+            try {
+                contents.add(readContent(transfer.getFile()));
+                readTransfers.add(transfer);
+            } catch (IOException e) {
+                transfer.setStatus(Transfer.TransferStatus.FAILED);
+                if (callback != null) {
+                    callback.onTransferInitializationFailure(transfer, e);
+                }
+            }
+        }
+        if (readTransfers.isEmpty()) return;
+
+        //Batched files are only held by the global and device limits
+        BandwidthThrottle throttle = new BandwidthThrottle(remoteDevice.getAddress(), null);
+        long startTime = System.nanoTime();
+        outputStream.writeByte(TransferProtocol.FRAME_BATCH);
+        outputStream.writeInt(readTransfers.size());
+        for (int i = 0; i < readTransfers.size(); i++) {
+            Transfer transfer = readTransfers.get(i);
+            TransferFile file = transfer.getFile();
+            byte[] content = contents.get(i);
+            TransferProtocol.writeString(outputStream, file.getName());
+            outputStream.writeLong(content.length);
+            TransferProtocol.writeString(outputStream, getFileId(file));
+            outputStream.write(content);
+            TransferChecksum checksum = TransferChecksum.create(checksumAlgorithm);
+            checksum.update(content, 0, content.length);
+            checksum.write(outputStream);
+            throttle.throttle(content.length);
+            if (transfer.getStatus() == Transfer.TransferStatus.NOT_STARTED) {
+                transfer.setStatus(Transfer.TransferStatus.TRANSFERRING);
+                if (callback != null) {
+                    callback.onStart(transfer);
+                }
+            }
+        }
+        outputStream.flush();
+
+        long transferTime = (System.nanoTime() - startTime) / 1000000;
+        for (int i = 0; i < readTransfers.size(); i++) {
+            Transfer transfer = readTransfers.get(i);
+            transfer.setTransferredBytes(contents.get(i).length);
+            transfer.setWireBytes(contents.get(i).length);
+            transfer.setTransferTime(transferTime);
+            byte result = inputStream.readByte();
+            if (result == TransferProtocol.BATCH_FILE_STORED) {
+                transfer.setProgress(100);
+                transfer.setStatus(Transfer.TransferStatus.COMPLETED);
+                if (callback != null) {
+                    callback.onSuccess(transfer, transfer.getFile());
+                }
+            } else if (result == TransferProtocol.BATCH_FILE_NO_SPACE) {
+                failTransfer(transfer, new IOException("There is no room in the receiver for the file " +
+                        transfer.getFile().getName()));
+            } else {
+                failTransfer(transfer, new IOException("The receiver cannot store the file " +
+                        transfer.getFile().getName()));
+            }
+        }
+    }
+
+    private byte[] readContent(TransferFile file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        try (InputStream fileReader = file.getInputStream()) {
+            new DataInputStream(fileReader).readFully(content);
+        }
+
+        return content;
+    }
+
+    private void sendFile(Transfer transfer, DataInputStream inputStream, DataOutputStream outputStream,
+                          SocketChannel socketChannel, byte capabilities) throws IOException {
+        TransferFile file = transfer.getFile();
+        String transferId = isStripingSuitable(file) ? UUID.randomUUID().toString() : null;
+        boolean compression = (capabilities & TransferProtocol.CAPABILITY_COMPRESSION) != 0;
+        boolean compressed = transferId == null && compression && isCompressionSuitable(file);
+        byte checksumAlgorithm = TransferProtocol.getChecksumAlgorithm(capabilities);
+        byte flags = 0;
+        if (transferId != null) flags |= TransferProtocol.FLAG_STRIPED;
+        if (compressed) flags |= TransferProtocol.FLAG_COMPRESSED;
+        if ((capabilities & TransferProtocol.CAPABILITY_DEDUPLICATION) != 0) flags |= TransferProtocol.FLAG_HASHED;
+        if ((capabilities & TransferProtocol.CAPABILITY_DELTA) != 0 && file.length() >= DELTA_THRESHOLD) {
+            flags |= TransferProtocol.FLAG_DELTA;
+        }
+        long offset;
+        int busyRetries = 0;
+        while (true) {
+            outputStream.writeByte(TransferProtocol.FRAME_FILE);
+            sendFileFrame(file, flags, transferId, outputStream);
+            outputStream.flush();
+            offset = inputStream.readLong();
+            if (offset == TransferProtocol.CONTENT_HASH_REQUESTED) {
+                sendContentHash(file, outputStream);
+                offset = inputStream.readLong();
+            }
+            if (offset != TransferProtocol.FILE_BUSY) break;
+
+            //The receiver is taking other files, this one is offered again once the delay it asked for has passed
+            ReceiverBusyException busyException = new ReceiverBusyException(inputStream.readInt());
+            if (++busyRetries > MAX_BUSY_RETRIES || !waitToRetry(busyException.getRetryDelay())) {
+                failTransfer(transfer, busyException);
+                return;
+            }
+        }
+        if (offset == TransferProtocol.FILE_REJECTED) {
+            failTransfer(transfer, new IOException("The receiver cannot store the file " + file.getName()));
+            return;
+        }
+        if (offset == TransferProtocol.FILE_NO_SPACE) {
+            failTransfer(transfer, new IOException("There is no room in the receiver for the file " + file.getName()));
+            return;
+        }
+        if (offset == TransferProtocol.FILE_ALREADY_RECEIVED) {
+            completeDuplicatedTransfer(transfer);
+            return;
+        }
+        DeltaCodec deltaCodec = null;
+        if (offset == TransferProtocol.DELTA_SIGNATURES) {
+            deltaCodec = DeltaCodec.readSignatures(inputStream);
+            offset = 0;
+        }
+        if (offset < 0 || offset > file.length()) {
+            throw new IOException("Invalid resume offset " + offset + " for " + file.getName());
+        }
+
+        if (transferId != null && deltaCodec == null) {
+            sendStripedFile(transfer, transferId, checksumAlgorithm, outputStream);
+            return;
+        }
+
+        AtomicReference<IOException> connectionFailure = new AtomicReference<>();
+        AtomicBoolean sent = new AtomicBoolean(false);
+        FileSender fileSender = createFileSender(transfer, connectionFailure, sent);
+        TransferChecksum checksum = TransferChecksum.create(checksumAlgorithm);
+        if (checksumAlgorithm != TransferChecksum.NONE) {
+            fileSender.setChecksum(checksum);
+        }
+        if (deltaCodec != null) {
+            fileSender.sendDelta(outputStream, deltaCodec);
+        } else if (compressed) {
+            fileSender.sendCompressed(outputStream, offset);
+        } else {
+            fileSender.send(socketChannel, offset);
+        }
+        if (connectionFailure.get() != null) {
+            throw connectionFailure.get();
+        }
+        //An interrupted file leaves the receiver in the middle of its data, so the connection is given up
+        if (!sent.get()) {
+            throw new InterruptedIOException("The sending of " + file.getName() + " was interrupted");
+        }
+
+        checksum.write(outputStream);
+        outputStream.flush();
+        if (inputStream.readBoolean()) {
+            transfer.setStatus(Transfer.TransferStatus.COMPLETED);
             if (callback != null) {
-                callback.onInitializationFailure(this);
+                callback.onSuccess(transfer, file);
             }
+        } else {
+            failTransfer(transfer, new IOException("The file " + file.getName() + " was corrupted in transit"));
+        }
+    }
+
+    private void completeDuplicatedTransfer(Transfer transfer) {
+        if (transfer.getStatus() == Transfer.TransferStatus.NOT_STARTED) {
+            transfer.setStatus(Transfer.TransferStatus.TRANSFERRING);
+            if (callback != null) {
+                callback.onStart(transfer);
+            }
+        }
+        transfer.setProgress(100);
+        transfer.setStatus(Transfer.TransferStatus.COMPLETED);
+        if (callback != null) {
+            callback.onSuccess(transfer, transfer.getFile());
+        }
+    }
+
+    private void sendStripedFile(Transfer transfer, String transferId, byte checksumAlgorithm,
+                                 DataOutputStream outputStream) throws IOException {
+        TransferFile file = transfer.getFile();
+        StripeTuner stripeTuner = StripeTuner.getInstance(remoteDevice.getAddress());
+        int stripesCount = stripeTuner.getStripesCount();
+        FileSender.Callback fileSenderCallback = createFileSenderCallback(transfer, null, null, null);
+        StripedFileSender stripedFileSender = new StripedFileSender(file,
+                new InetSocketAddress(remoteDevice.getAddress(), ConfigProperties.TRANSFER_SERVICE_PORT),
+                transferId, stripesCount, checksumAlgorithm, fileSenderCallback);
+        stripedFileSender.setThrottle(new BandwidthThrottle(remoteDevice.getAddress(), transfer));
+
+        long startTime = System.nanoTime();
+        boolean sent = stripedFileSender.send();
+        outputStream.writeBoolean(sent);
+        outputStream.flush();
+        if (sent) {
+            long elapsedTime = System.nanoTime() - startTime;
+            stripeTuner.onTransferFinished(stripesCount, file.length(), elapsedTime);
+            transfer.setTransferredBytes(file.length());
+            transfer.setWireBytes(file.length());
+            transfer.setTransferTime(elapsedTime / 1000000);
+            fileSenderCallback.onSuccess(file);
+        } else {
+            fileSenderCallback.onFailure(new Exception("The file has not been completely transferred",
+                    stripedFileSender.getFailure()));
+        }
+    }
+
+    private boolean isStripingSuitable(TransferFile file) {
+        if (!stripingEnabled || file.length() < STRIPING_THRESHOLD) return false;
+
+        try (FileChannel fileChannel = file.getChannel()) {
+            return fileChannel != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean isCompressionSuitable(TransferFile file) {
+        if (FileUtils.isCompressed(file.getName())) return false;
+
+        //The first chunk is taken as a sample of the whole file
+        byte[] sample = new byte[CompressionCodec.CHUNK_SIZE];
+        CompressionCodec codec = new CompressionCodec();
+        try (InputStream fileReader = file.getInputStream()) {
+            int read = 0;
+            int count;
+            while (read < sample.length && (count = fileReader.read(sample, read, sample.length - read)) != -1) {
+                read += count;
+            }
+            return codec.isCompressible(sample, read);
+        } catch (IOException e) {
+            return false;
         } finally {
-            isSending = false;
+            codec.end();
         }
     }
 
-    private void sendFileData(TransferFile file, DataOutputStream outputStream) throws IOException {
-        outputStream.writeUTF(new Gson().toJson(currentDevice));
-        outputStream.writeUTF(file.getName());
+    //Returns the capabilities accepted by the receiver
+    private byte sendSessionHeader(InetAddress currentDeviceAddress, DataInputStream inputStream,
+                                      DataOutputStream outputStream) throws IOException {
+        Device currentDevice = DeviceFactory.getCurrentDevice(currentDeviceAddress);
+        TransferProtocol.writeSessionHeader(outputStream, TransferProtocol.SESSION_FILES);
+        TransferProtocol.writeString(outputStream, currentDevice.getName());
+        TransferProtocol.writeString(outputStream, currentDevice.getOs());
+        byte capabilities = 0;
+        if (compressionEnabled) capabilities |= TransferProtocol.CAPABILITY_COMPRESSION;
+        if (strongChecksumsEnabled) capabilities |= TransferProtocol.CAPABILITY_SHA256;
+        if (deduplicationEnabled) capabilities |= TransferProtocol.CAPABILITY_DEDUPLICATION;
+        if (deltaEnabled) capabilities |= TransferProtocol.CAPABILITY_DELTA;
+        if (relayId != null) capabilities |= TransferProtocol.CAPABILITY_RELAY;
+        if (!verificationEnabled) capabilities |= TransferProtocol.CAPABILITY_UNVERIFIED;
+        outputStream.writeByte(capabilities);
+        outputStream.flush();
+        TransferProtocol.readHandshakeResponse(inputStream);
+
+        byte acceptedCapabilities = inputStream.readByte();
+        if ((acceptedCapabilities & TransferProtocol.CAPABILITY_RELAY) != 0) {
+            TransferProtocol.writeString(outputStream, relayId);
+        }
+        return acceptedCapabilities;
+    }
+
+    private void sendFileFrame(TransferFile file, byte flags, String transferId,
+                               DataOutputStream outputStream) throws IOException {
+        TransferProtocol.writeString(outputStream, file.getName());
         outputStream.writeLong(file.length());
+        outputStream.writeByte(flags);
+        TransferProtocol.writeString(outputStream, getFileId(file));
+        if ((flags & TransferProtocol.FLAG_DELTA) != 0) {
+            outputStream.writeLong(file.lastModified());
+        }
+        if (transferId != null) {
+            TransferProtocol.writeString(outputStream, transferId);
+        }
     }
 
-    private FileSender createFileSender(final Transfer transfer, final Callback callback) {
-        FileSender.Callback fileSenderCallback = new FileSender.Callback() {
+    private String getFileId(TransferFile file) {
+        return file.getPath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    //A file that cannot be read is answered without a hash, so it is sent as if the receiver had no copy
+    private void sendContentHash(TransferFile file, DataOutputStream outputStream) throws IOException {
+        byte[] contentHash = getContentHash(file);
+        outputStream.writeBoolean(contentHash != null);
+        if (contentHash != null) {
+            outputStream.write(contentHash);
+        }
+        outputStream.flush();
+    }
+
+    private byte[] getContentHash(TransferFile file) {
+        String fileId = getFileId(file);
+        synchronized (contentHashes) {
+            byte[] contentHash = contentHashes.get(fileId);
+            if (contentHash != null) return contentHash;
+        }
+
+        byte[] contentHash;
+        try (InputStream fileReader = file.getInputStream()) {
+            contentHash = TransferChecksum.computeContentHash(fileReader);
+        } catch (IOException e) {
+            return null;
+        }
+        synchronized (contentHashes) {
+            contentHashes.put(fileId, contentHash);
+        }
+        return contentHash;
+    }
+
+    private boolean waitToReconnect(int reconnectionAttempt) {
+        return waitToRetry(RECONNECTION_DELAY * reconnectionAttempt);
+    }
+
+    private boolean waitToRetry(long delay) {
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void notifyInterruptedTransfers(TransferScheduler.TransferQueue transferQueue, Transfer interruptedTransfer,
+                                            List<Transfer> batch, Exception e) {
+        if (interruptedTransfer != null || !batch.isEmpty()) {
+            if (interruptedTransfer != null) {
+                failTransfer(interruptedTransfer, e);
+            }
+            for (Transfer transfer : batch) {
+                failTransfer(transfer, e);
+            }
+            releaseTransfers(transferQueue, interruptedTransfer, batch);
+        }
+
+        for (Transfer transfer : transferQueue.drain()) {
+            failTransfer(transfer, e);
+        }
+    }
+
+    private void failTransfer(Transfer transfer, Exception e) {
+        boolean started = transfer.getStatus() != Transfer.TransferStatus.NOT_STARTED;
+        transfer.setStatus(Transfer.TransferStatus.FAILED);
+        if (callback != null) {
+            if (started) {
+                callback.onFailure(transfer, e);
+            } else {
+                callback.onTransferInitializationFailure(transfer, e);
+            }
+        }
+    }
+
+    private FileSender createFileSender(Transfer transfer, AtomicReference<IOException> connectionFailure,
+                                        AtomicBoolean sent) {
+        FileSender fileSender = new FileSender(transfer.getFile());
+        fileSender.setThrottle(new BandwidthThrottle(remoteDevice.getAddress(), transfer));
+        fileSender.setCallback(createFileSenderCallback(transfer, fileSender, connectionFailure, sent));
+        return fileSender;
+    }
+
+    //When sent is given, a complete file is only flagged there and reported once the receiver verifies it
+    private FileSender.Callback createFileSenderCallback(final Transfer transfer, final FileSender fileSender,
+                                                         final AtomicReference<IOException> connectionFailure,
+                                                         final AtomicBoolean sent) {
+        return new FileSender.Callback() {
             @Override
             public void onStart() {
-                transfer.setStatus(Transfer.TransferStatus.TRANSFERRING);
-                callback.onStart(transfer);
+                //A resumed transfer has already been notified in the previous connection
+                if (transfer.getStatus() == Transfer.TransferStatus.NOT_STARTED) {
+                    transfer.setStatus(Transfer.TransferStatus.TRANSFERRING);
+                    callback.onStart(transfer);
+                }
             }
 
             @Override
             public void onFailure(Exception e) {
+                updateStatistics(transfer, fileSender);
+                if (connectionFailure != null && e instanceof IOException) {
+                    connectionFailure.set((IOException) e);
+                    return;
+                }
                 transfer.setStatus(Transfer.TransferStatus.FAILED);
                 callback.onFailure(transfer, e);
             }
@@ -119,11 +814,24 @@ public class FileSenderProtocol {
 
             @Override
             public void onSuccess(TransferFile file) {
+                updateStatistics(transfer, fileSender);
+                if (sent != null) {
+                    sent.set(true);
+                    return;
+                }
                 transfer.setStatus(Transfer.TransferStatus.COMPLETED);
                 callback.onSuccess(transfer, file);
             }
         };
-        return new FileSender(transfer.getFile(), fileSenderCallback);
+    }
+
+    //A transfer resumed after a reconnection accumulates the figures of every connection
+    private void updateStatistics(Transfer transfer, FileSender fileSender) {
+        if (fileSender == null) return;
+
+        transfer.setTransferredBytes(transfer.getTransferredBytes() + fileSender.getTransferredBytes());
+        transfer.setWireBytes(transfer.getWireBytes() + fileSender.getWireBytes());
+        transfer.setTransferTime(transfer.getTransferTime() + fileSender.getElapsedTime());
     }
 
     public interface Callback {
@@ -12,6 +12,8 @@ public interface FileSenderServiceInteractor {
 
     List<Transfer> getInProgressTransfers();
 
+    TransferScheduler.Statistics getSchedulerStatistics();
+
     void receive();
 
     void stop();
@@ -6,5 +6,6 @@ import com.afa.devicesfiletransfer.domain.model.TransferFile;
 import java.util.List;
 
 public interface FileSenderServiceLauncher {
-    void send(List<Device> devices, List<TransferFile> files);
+    //Relayed files are sent to the first device only, which forwards them to the others
+    void send(List<Device> devices, List<TransferFile> files, TransferScheduler.Priority priority, boolean relayed);
 }
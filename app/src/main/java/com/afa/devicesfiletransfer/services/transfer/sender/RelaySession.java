@@ -0,0 +1,122 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import com.afa.devicesfiletransfer.ConfigProperties;
+import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.services.transfer.RelayReport;
+import com.afa.devicesfiletransfer.services.transfer.TransferProtocol;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+//Sets up a relay in a device, which forwards the files it receives in the sessions joined to the relay to the
+//next devices. These are split in branches, each one relayed again by its first device, so the files reach
+//every device in as many hops as the tree is deep. The reports of every device reached are read from here
+public class RelaySession {
+    private static final int CONNECTION_TIMEOUT = 3000;
+    private static final int HEADER_BUFFER_SIZE = 8192;
+    private final String relayId;
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+    private Thread reportsReader;
+
+    private RelaySession(String relayId, Socket socket) throws IOException {
+        this.relayId = relayId;
+        this.socket = socket;
+        inputStream = new DataInputStream(socket.getInputStream());
+        outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), HEADER_BUFFER_SIZE));
+    }
+
+    //Returns once the relay, and every relay after it, is ready to forward the files
+    public static RelaySession open(Device relayDevice, String relayId, List<Device> nextDevices,
+                                    int branchesCount) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(relayDevice.getAddress(), ConfigProperties.TRANSFER_SERVICE_PORT),
+                    CONNECTION_TIMEOUT);
+            socket.setSoTimeout(TransferProtocol.READ_TIMEOUT);
+            RelaySession relaySession = new RelaySession(relayId, socket);
+            relaySession.sendPlan(nextDevices, branchesCount);
+            return relaySession;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public String getRelayId() {
+        return relayId;
+    }
+
+    private void sendPlan(List<Device> nextDevices, int branchesCount) throws IOException {
+        TransferProtocol.writeSessionHeader(outputStream, TransferProtocol.SESSION_RELAY);
+        outputStream.flush();
+        TransferProtocol.readHandshakeResponse(inputStream);
+        TransferProtocol.writeString(outputStream, relayId);
+        outputStream.writeByte(branchesCount);
+        outputStream.writeInt(nextDevices.size());
+        for (Device device : nextDevices) {
+            TransferProtocol.writeString(outputStream, device.getName() != null ? device.getName() : "");
+            TransferProtocol.writeString(outputStream, device.getOs() != null ? device.getOs() : "");
+            TransferProtocol.writeString(outputStream, device.getIpAddress());
+        }
+        outputStream.flush();
+        if (inputStream.readByte() != TransferProtocol.RELAY_READY) {
+            throw new IOException("The device " + socket.getInetAddress().getHostAddress() + " does not relay files");
+        }
+        //Reports come as the files reach the devices, which takes as long as sending them
+        socket.setSoTimeout(0);
+    }
+
+    //The reports are read in their own thread until the relay ends them, or the connection is lost
+    public void readReports(final Listener listener) {
+        reportsReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RelayReport report;
+                    while ((report = RelayReport.read(inputStream)).getType() != TransferProtocol.REPORT_END) {
+                        listener.onReport(report);
+                    }
+                } catch (IOException ignored) {
+                } finally {
+                    close();
+                }
+            }
+        });
+        reportsReader.start();
+    }
+
+    //Tells the relay that every file has been sent, it ends the reports once they have been forwarded
+    public void finish() {
+        try {
+            outputStream.writeByte(TransferProtocol.RELAY_FILES_END);
+            outputStream.flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    public void awaitReports() throws InterruptedException {
+        if (reportsReader != null) {
+            reportsReader.join();
+        }
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public interface Listener {
+        void onReport(RelayReport report);
+    }
+}
@@ -0,0 +1,94 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+import com.afa.devicesfiletransfer.domain.model.TransferFile;
+import com.afa.devicesfiletransfer.services.transfer.RelayReport;
+import com.afa.devicesfiletransfer.services.transfer.TransferProtocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//Transfers of the files to the devices reached through a relay, kept up to date with the reports of the relays.
+//A failure is only reported once the relay ends, since a file sent again by a relay can still reach the device
+class RelayTransfers implements RelaySession.Listener {
+    private final FileSenderProtocol.Callback callback;
+    private final List<Transfer> transfers;
+    //Reports name the files, so of several files with the same name only the first one can be followed
+    private final Map<String, Transfer> transfersByKey;
+    private final Map<String, String> failures;
+
+    RelayTransfers(List<Device> devices, List<TransferFile> files, FileSenderProtocol.Callback callback) {
+        this.callback = callback;
+        transfers = new ArrayList<>(devices.size() * files.size());
+        transfersByKey = new HashMap<>();
+        failures = new HashMap<>();
+        for (Device device : devices) {
+            for (TransferFile file : files) {
+                Transfer transfer = new Transfer(device, file, 0, false);
+                transfers.add(transfer);
+                String key = getKey(device.getIpAddress(), file.getName());
+                if (!transfersByKey.containsKey(key)) {
+                    transfersByKey.put(key, transfer);
+                }
+            }
+        }
+    }
+
+    private static String getKey(String deviceAddress, String fileName) {
+        return deviceAddress + "/" + fileName;
+    }
+
+    //Called from the thread reading the reports only
+    @Override
+    public void onReport(RelayReport report) {
+        String key = getKey(report.getDeviceAddress(), report.getFileName());
+        Transfer transfer = transfersByKey.get(key);
+        if (transfer == null || transfer.getStatus() == Transfer.TransferStatus.COMPLETED) return;
+
+        if (report.getType() == TransferProtocol.REPORT_FAILURE) {
+            failures.put(key, report.getMessage());
+            return;
+        }
+
+        failures.remove(key);
+        if (transfer.getStatus() == Transfer.TransferStatus.NOT_STARTED) {
+            transfer.setStatus(Transfer.TransferStatus.TRANSFERRING);
+            if (callback != null) {
+                callback.onStart(transfer);
+            }
+        }
+        transfer.setProgress(report.getProgress());
+        if (report.getType() == TransferProtocol.REPORT_SUCCESS) {
+            transfer.setTransferredBytes(transfer.getFile().length());
+            transfer.setStatus(Transfer.TransferStatus.COMPLETED);
+            if (callback != null) {
+                callback.onSuccess(transfer, transfer.getFile());
+            }
+        } else if (callback != null) {
+            callback.onProgressUpdated(transfer);
+        }
+    }
+
+    //Fails the transfers that have not been completed once no more reports can come
+    void finish(String reason) {
+        for (Transfer transfer : transfers) {
+            if (transfer.getStatus() == Transfer.TransferStatus.COMPLETED) continue;
+
+            String failure = failures.get(getKey(transfer.getDeviceIpAddress(), transfer.getFile().getName()));
+            Exception e = new IOException(failure != null ? failure : reason);
+            boolean started = transfer.getStatus() != Transfer.TransferStatus.NOT_STARTED;
+            transfer.setStatus(Transfer.TransferStatus.FAILED);
+            if (callback != null) {
+                if (started) {
+                    callback.onFailure(transfer, e);
+                } else {
+                    callback.onTransferInitializationFailure(transfer, e);
+                }
+            }
+        }
+    }
+}
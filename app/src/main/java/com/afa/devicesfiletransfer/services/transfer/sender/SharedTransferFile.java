@@ -0,0 +1,440 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import com.afa.devicesfiletransfer.domain.model.TransferFile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+//A file sent to several devices at once. Its details are read once. Seekable sources are then read by every
+//sending on its own, as the kernel already shares the pages read among them, whether through channels or streams.
+//Sources that can only be read as a stream, like some content providers, are read once: the streams of every
+//sending are served from a ring with the last chunks read, filled by whichever stream is ahead. A stream that
+//falls behind the ring never holds back the others, it reads the chunks dropped from the ring since it fell behind,
+//which are spilled to a temporary file up to a limit, and reads the source again on its own past them
+public class SharedTransferFile implements TransferFile {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int RING_CHUNKS = 64;
+    private static final long MAX_SPILL_BYTES = 256L * 1024 * 1024;
+    private final TransferFile file;
+    private final File spillDirectory;
+    private final Object ringLock = new Object();
+    private boolean detailsLoaded;
+    private boolean exists;
+    private String name;
+    private String path;
+    private long length;
+    private long lastModified;
+    private Boolean seekable;
+    //Chunk i of the source is kept in ring[i % RING_CHUNKS] while it is between firstChunk and the bytes read
+    private byte[][] ring;
+    private byte[] spareChunk;
+    private long firstChunk;
+    private long readBytes;
+    private boolean sourceEnded;
+    private boolean sourceBeingRead;
+    private InputStream sourceReader;
+    //The spill file holds the bytes of the source from spillStart to spillEnd
+    private File spillFile;
+    private RandomAccessFile spillWriter;
+    private long spillStart;
+    private long spillEnd;
+    private boolean spillDropped;
+    private final List<SharedInputStream> openStreams = new ArrayList<>();
+    private boolean closed;
+
+    //Without a spill directory, streams behind the ring always read the source again on their own
+    public SharedTransferFile(TransferFile file, File spillDirectory) {
+        this.file = file;
+        this.spillDirectory = spillDirectory;
+    }
+
+    @Override
+    public boolean exists() {
+        loadDetails();
+        return exists;
+    }
+
+    @Override
+    public String getName() {
+        loadDetails();
+        return name;
+    }
+
+    @Override
+    public String getPath() {
+        loadDetails();
+        return path;
+    }
+
+    @Override
+    public long length() {
+        loadDetails();
+        return length;
+    }
+
+    @Override
+    public long lastModified() {
+        loadDetails();
+        return lastModified;
+    }
+
+    @Override
+    public InputStream getInputStream() throws FileNotFoundException {
+        if (isSeekable()) return file.getInputStream();
+
+        synchronized (ringLock) {
+            if (closed) throw new FileNotFoundException("The file " + getName() + " is no longer shared");
+
+            if (ring == null) {
+                //The chunks dropped with a previous ring are only available from the spill file or the source
+                ring = new byte[RING_CHUNKS][];
+                firstChunk = (readBytes + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            }
+            SharedInputStream inputStream = new SharedInputStream();
+            openStreams.add(inputStream);
+            return inputStream;
+        }
+    }
+
+    @Override
+    public FileChannel getChannel() throws IOException {
+        return file.getChannel();
+    }
+
+    //Called once every sending has finished, later streams fail
+    public void close() {
+        synchronized (ringLock) {
+            closed = true;
+            releaseRing();
+            closeSource();
+        }
+    }
+
+    private synchronized boolean isSeekable() {
+        if (seekable == null) {
+            try (FileChannel fileChannel = file.getChannel()) {
+                seekable = fileChannel != null;
+            } catch (IOException e) {
+                seekable = false;
+            }
+        }
+        return seekable;
+    }
+
+    private synchronized void loadDetails() {
+        if (detailsLoaded) return;
+
+        exists = file.exists();
+        name = file.getName();
+        path = file.getPath();
+        length = file.length();
+        lastModified = file.lastModified();
+        detailsLoaded = true;
+    }
+
+    //Reads the next chunk of the source into the ring, called by the stream that has reached the end of it
+    private void readNextChunk() throws IOException {
+        byte[] chunk;
+        long chunkStart;
+        byte[] droppedChunk = null;
+        long droppedChunkStart = 0;
+        synchronized (ringLock) {
+            chunk = spareChunk != null ? spareChunk : new byte[CHUNK_SIZE];
+            spareChunk = null;
+            chunkStart = readBytes;
+            //The chunk this one replaces in the ring stays there, and unchanged, until this one has been read
+            long droppedChunkIndex = chunkStart / CHUNK_SIZE - RING_CHUNKS;
+            if (ring != null && droppedChunkIndex >= firstChunk
+                    && shouldSpill(droppedChunkIndex * CHUNK_SIZE)) {
+                droppedChunk = ring[(int) (droppedChunkIndex % RING_CHUNKS)];
+                droppedChunkStart = droppedChunkIndex * CHUNK_SIZE;
+            }
+            if (sourceReader == null) {
+                sourceReader = file.getInputStream();
+            }
+        }
+
+        int read = 0;
+        IOException failure = null;
+        try {
+            int count;
+            while (read < CHUNK_SIZE && (count = sourceReader.read(chunk, read, CHUNK_SIZE - read)) != -1) {
+                read += count;
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        if (droppedChunk != null) {
+            spill(droppedChunk, droppedChunkStart);
+        }
+
+        synchronized (ringLock) {
+            sourceBeingRead = false;
+            ringLock.notifyAll();
+            if (failure != null) throw failure;
+
+            if (read < CHUNK_SIZE) {
+                sourceEnded = true;
+                closeSource();
+            }
+            if (read == 0 || ring == null) return;
+
+            long chunkIndex = chunkStart / CHUNK_SIZE;
+            int slot = (int) (chunkIndex % RING_CHUNKS);
+            if (chunkIndex - firstChunk >= RING_CHUNKS) {
+                spareChunk = ring[slot];
+                firstChunk = chunkIndex - RING_CHUNKS + 1;
+            }
+            ring[slot] = chunk;
+            readBytes = chunkStart + read;
+        }
+    }
+
+    //Spilling starts with the first chunk dropped from the ring while a stream still needs it, and goes on with
+    //every chunk dropped after it until the limit is reached
+    private boolean shouldSpill(long chunkStart) {
+        if (spillDirectory == null || spillDropped) return false;
+        if (spillWriter != null) return spillEnd == chunkStart && spillEnd - spillStart < MAX_SPILL_BYTES;
+
+        //Streams already behind the ring, like those opened late, read the source on their own
+        for (SharedInputStream inputStream : openStreams) {
+            long position = inputStream.position;
+            if (position >= chunkStart && position < chunkStart + CHUNK_SIZE) return true;
+        }
+        return false;
+    }
+
+    //A failure to spill is not passed on to the stream filling the ring, the streams behind it read the source
+    //again instead
+    private void spill(byte[] chunk, long position) {
+        try {
+            RandomAccessFile writer;
+            long filePosition;
+            synchronized (ringLock) {
+                if (closed || spillDropped) return;
+
+                if (spillWriter == null) {
+                    spillFile = File.createTempFile("shared", ".spill", spillDirectory);
+                    spillWriter = new RandomAccessFile(spillFile, "rw");
+                    spillStart = position;
+                    spillEnd = position;
+                }
+                writer = spillWriter;
+                filePosition = position - spillStart;
+            }
+            writer.seek(filePosition);
+            writer.write(chunk);
+            synchronized (ringLock) {
+                spillEnd = position + chunk.length;
+            }
+        } catch (IOException e) {
+            synchronized (ringLock) {
+                dropSpill();
+            }
+        }
+    }
+
+    //Streams already reading the spill file keep reading it, it is deleted once they close it
+    private void dropSpill() {
+        spillDropped = true;
+        if (spillWriter != null) {
+            try {
+                spillWriter.close();
+            } catch (IOException ignored) {
+            }
+            spillWriter = null;
+        }
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+    }
+
+    //Opens a reader for a stream that fell behind the ring, positioned where the stream is
+    private InputStream openBehindReader(long position) throws IOException {
+        synchronized (ringLock) {
+            if (spillFile != null && position >= spillStart && position < spillEnd) {
+                try {
+                    return new SpillInputStream(new RandomAccessFile(spillFile, "r"), position - spillStart,
+                            spillEnd - spillStart);
+                } catch (FileNotFoundException e) {
+                    dropSpill();
+                }
+            }
+        }
+
+        InputStream reader = file.getInputStream();
+        long remaining = position;
+        byte[] buffer = null;
+        while (remaining > 0) {
+            long skipped = reader.skip(remaining);
+            if (skipped <= 0) {
+                if (buffer == null) buffer = new byte[CHUNK_SIZE];
+                int read = reader.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) break;
+                skipped = read;
+            }
+            remaining -= skipped;
+        }
+        return reader;
+    }
+
+    private void releaseRing() {
+        ring = null;
+        spareChunk = null;
+    }
+
+    private void closeSource() {
+        if (sourceReader != null) {
+            try {
+                sourceReader.close();
+            } catch (IOException ignored) {
+            }
+            sourceReader = null;
+        }
+        if (closed) {
+            dropSpill();
+        }
+    }
+
+    private class SharedInputStream extends InputStream {
+        //Moved on without the ring lock while reading behind the ring
+        private volatile long position;
+        private InputStream behindReader;
+        private boolean streamClosed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (streamClosed) throw new IOException("Stream closed");
+            if (length == 0) return 0;
+
+            while (true) {
+                if (behindReader != null) {
+                    int count = behindReader.read(buffer, offset, length);
+                    if (count > 0) position += count;
+                    //The spill file ends where the source was when it was opened, the ring may go on from there
+                    if (count != -1 || !(behindReader instanceof SpillInputStream)) return count;
+
+                    behindReader.close();
+                    behindReader = null;
+                }
+
+                boolean readSource = false;
+                synchronized (ringLock) {
+                    if (ring == null) throw new IOException("The file " + getName() + " is no longer shared");
+
+                    //Fallen behind the ring, or opened after the ring dropped the chunks it needs. A ring opened
+                    //after the end of the source starts past its last partial chunk, which is not behind
+                    boolean behind = position < Math.min(firstChunk * CHUNK_SIZE, readBytes);
+                    if (!behind && position < readBytes) {
+                        byte[] chunk = ring[(int) ((position / CHUNK_SIZE) % RING_CHUNKS)];
+                        int chunkOffset = (int) (position % CHUNK_SIZE);
+                        int count = (int) Math.min(length, Math.min(CHUNK_SIZE - chunkOffset, readBytes - position));
+                        System.arraycopy(chunk, chunkOffset, buffer, offset, count);
+                        position += count;
+                        return count;
+                    }
+                    if (!behind) {
+                        if (sourceEnded) return -1;
+                        if (sourceBeingRead) {
+                            try {
+                                ringLock.wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Interrupted while waiting for the file");
+                            }
+                            continue;
+                        }
+                        sourceBeingRead = true;
+                        readSource = true;
+                    }
+                }
+
+                if (readSource) {
+                    readNextChunk();
+                } else {
+                    behindReader = openBehindReader(position);
+                }
+            }
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            if (count <= 0) return 0;
+            if (behindReader != null) {
+                long skipped = behindReader.skip(count);
+                position += skipped;
+                return skipped;
+            }
+
+            //A position beyond the bytes read is reached by reading the source up to it
+            long skipped = Math.min(count, Math.max(0, length() - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (streamClosed) return;
+
+            streamClosed = true;
+            if (behindReader != null) {
+                behindReader.close();
+            }
+            synchronized (ringLock) {
+                openStreams.remove(this);
+                //The ring is kept for the streams still to come until the whole source has been read
+                if (openStreams.isEmpty() && sourceEnded) {
+                    releaseRing();
+                }
+            }
+        }
+    }
+
+    //Reads the part of the spill file written when it was opened
+    private static class SpillInputStream extends InputStream {
+        private final RandomAccessFile spillReader;
+        private long position;
+        private final long end;
+
+        private SpillInputStream(RandomAccessFile spillReader, long position, long end) {
+            this.spillReader = spillReader;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (position >= end) return -1;
+
+            spillReader.seek(position);
+            int count = spillReader.read(buffer, offset, (int) Math.min(length, end - position));
+            if (count > 0) position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            spillReader.close();
+        }
+    }
+}
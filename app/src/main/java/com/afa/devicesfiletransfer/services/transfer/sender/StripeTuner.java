@@ -0,0 +1,68 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class StripeTuner {
+    private static final int MIN_STRIPES = 2;
+    private static final int MAX_STRIPES = 8;
+    private static final double IMPROVEMENT_THRESHOLD = 1.1;
+    private static final int TRANSFERS_BETWEEN_EXPLORATIONS = 8;
+    private static final int MAX_TUNERS = 64;
+    //Tuners of the devices last sent to, a device forgotten starts again from the fewest stripes
+    private static final Map<InetAddress, StripeTuner> tuners = new LinkedHashMap<InetAddress, StripeTuner>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, StripeTuner> eldest) {
+            return size() > MAX_TUNERS;
+        }
+    };
+    private int bestStripes;
+    private double bestThroughput;
+    private int nextStripes;
+    private int transfersSinceExploration;
+
+    private StripeTuner() {
+        bestStripes = MIN_STRIPES;
+        nextStripes = MIN_STRIPES;
+        transfersSinceExploration = TRANSFERS_BETWEEN_EXPLORATIONS - 1;
+    }
+
+    public static StripeTuner getInstance(InetAddress address) {
+        synchronized (tuners) {
+            StripeTuner tuner = tuners.get(address);
+            if (tuner == null) {
+                tuner = new StripeTuner();
+                tuners.put(address, tuner);
+            }
+            return tuner;
+        }
+    }
+
+    public synchronized int getStripesCount() {
+        return nextStripes;
+    }
+
+    public synchronized void onTransferFinished(int stripes, long bytes, long elapsedNanos) {
+        if (elapsedNanos <= 0) return;
+
+        double throughput = bytes / (elapsedNanos / 1e9);
+        if (stripes > bestStripes) {
+            if (throughput > bestThroughput * IMPROVEMENT_THRESHOLD) {
+                bestStripes = stripes;
+                bestThroughput = throughput;
+                nextStripes = Math.min(stripes * 2, MAX_STRIPES);
+            } else {
+                nextStripes = bestStripes;
+            }
+            transfersSinceExploration = 0;
+        } else if (stripes == bestStripes) {
+            bestThroughput = throughput;
+            transfersSinceExploration++;
+            if (bestStripes < MAX_STRIPES && transfersSinceExploration >= TRANSFERS_BETWEEN_EXPLORATIONS) {
+                nextStripes = Math.min(bestStripes * 2, MAX_STRIPES);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import com.afa.devicesfiletransfer.domain.model.TransferFile;
+import com.afa.devicesfiletransfer.services.transfer.BandwidthThrottle;
+import com.afa.devicesfiletransfer.services.transfer.TransferChecksum;
+import com.afa.devicesfiletransfer.services.transfer.TransferProtocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StripedFileSender {
+    private static final int CONNECTION_TIMEOUT = 3000;
+    private final static int BUFFER_SIZE = 256 * 1024;
+    private final TransferFile file;
+    private final InetSocketAddress address;
+    private final String transferId;
+    private final int stripesCount;
+    private final byte checksumAlgorithm;
+    private final AtomicBoolean sending;
+    private final AtomicLong sentCount;
+    private FileSender.Callback callback;
+    private BandwidthThrottle throttle;
+    private volatile IOException failure;
+    private long fileSize;
+    private int currentPercentage;
+
+    public StripedFileSender(TransferFile file, InetSocketAddress address, String transferId,
+                             int stripesCount, byte checksumAlgorithm, FileSender.Callback callback) {
+        this.file = file;
+        this.address = address;
+        this.transferId = transferId;
+        this.stripesCount = stripesCount;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.callback = callback;
+        this.sending = new AtomicBoolean(false);
+        this.sentCount = new AtomicLong(0);
+    }
+
+    //Every stripe is held by a share of the throttle, so the limit applies to the whole file
+    public void setThrottle(BandwidthThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public IOException getFailure() {
+        return failure;
+    }
+
+    public void cancel() {
+        sending.set(false);
+    }
+
+    public boolean send() {
+        if (sending.get()) throw new IllegalStateException("Already sending the file");
+
+        sending.set(true);
+        sentCount.set(0);
+        currentPercentage = 0;
+        failure = null;
+        fileSize = file.length();
+        if (callback != null)
+            callback.onStart();
+
+        long stripeLength = (fileSize + stripesCount - 1) / stripesCount;
+        List<Thread> stripes = new ArrayList<>();
+        for (int i = 0; i < stripesCount; i++) {
+            final long offset = i * stripeLength;
+            final long length = Math.min(stripeLength, fileSize - offset);
+            if (length <= 0) break;
+
+            Thread stripe = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sendStripe(offset, length);
+                }
+            });
+            stripes.add(stripe);
+            stripe.start();
+        }
+
+        try {
+            for (Thread stripe : stripes) {
+                stripe.join();
+            }
+        } catch (InterruptedException e) {
+            sending.set(false);
+            for (Thread stripe : stripes) {
+                stripe.interrupt();
+            }
+            Thread.currentThread().interrupt();
+        }
+
+        boolean completed = sending.get() && failure == null && sentCount.get() == fileSize;
+        sending.set(false);
+        return completed;
+    }
+
+    private void sendStripe(long offset, long length) {
+        try (SocketChannel socketChannel = SocketChannel.open();
+             FileChannel fileReader = file.getChannel()) {
+            if (fileReader == null) throw new IOException("The file " + file.getName() + " is not seekable");
+
+            Socket socket = socketChannel.socket();
+            socket.connect(address, CONNECTION_TIMEOUT);
+            socket.setSoTimeout(TransferProtocol.READ_TIMEOUT);
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            TransferProtocol.writeSessionHeader(outputStream, TransferProtocol.SESSION_STRIPE);
+            TransferProtocol.writeString(outputStream, transferId);
+            outputStream.writeLong(offset);
+            outputStream.writeLong(length);
+            outputStream.flush();
+            TransferProtocol.readHandshakeResponse(inputStream);
+
+            //Each range is read once into a direct buffer, hashed where it is and written to the socket
+            TransferChecksum checksum = TransferChecksum.create(checksumAlgorithm);
+            BandwidthThrottle stripeThrottle = throttle != null ? throttle.share() : null;
+            int bufferSize = stripeThrottle != null && stripeThrottle.isLimited() ?
+                    BandwidthThrottle.THROTTLED_CHUNK_SIZE : BUFFER_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(bufferSize, Math.max(length, 1)));
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                if (!sending.get() || Thread.interrupted()) throw new InterruptedIOException("Transfer cancelled");
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = fileReader.read(buffer, position);
+                if (read <= 0) throw new EOFException("The file " + file.getName() + " is shorter than announced");
+
+                buffer.flip();
+                checksum.update(buffer);
+                while (buffer.hasRemaining()) {
+                    socketChannel.write(buffer);
+                }
+                position += read;
+                sentCount.getAndAdd(read);
+                updateProgress();
+                if (stripeThrottle != null) stripeThrottle.throttle(read);
+            }
+            checksum.write(outputStream);
+            outputStream.flush();
+
+            if (!inputStream.readBoolean()) {
+                throw new IOException("The receiver could not store the range at " + offset);
+            }
+        } catch (IOException e) {
+            failure = e;
+            sending.set(false);
+        }
+    }
+
+    private synchronized void updateProgress() {
+        int sentPercentage = fileSize == 0 ? 100 : (int) ((sentCount.get() * 100) / fileSize);
+        if (callback != null && currentPercentage < sentPercentage) {
+            currentPercentage = sentPercentage;
+            callback.onProgressUpdated(currentPercentage);
+        }
+    }
+}
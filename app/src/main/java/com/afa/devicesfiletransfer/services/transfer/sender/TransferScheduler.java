@@ -0,0 +1,435 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+//Decides which file is sent next and how many files are sent at once to all the devices. Files sent by the
+//user go before background ones and smaller files before larger ones, the devices take turns by the bytes
+//they are given, and the number of files sent at once follows the throughput measured with it
+public class TransferScheduler {
+    //Bytes a device is given on every turn it cannot afford its next file
+    private static final long QUANTUM = 4 * 1024 * 1024;
+    private static final long SAMPLE_PERIOD = 2000L * 1000000;
+    private static final double IMPROVEMENT_THRESHOLD = 1.1;
+    private static final int SAMPLES_BETWEEN_EXPLORATIONS = 8;
+    private static final double WAIT_TIME_WEIGHT = 0.2;
+    private final int maxConcurrentTransfers;
+    private final List<DeviceShare> devices;
+    private final Map<Device, DeviceShare> devicesByTarget;
+    private int nextDevice;
+    private int runningTransfers;
+    private int concurrencyLimit;
+    private long sequence;
+    private double averageWaitTime;
+    private int bestConcurrencyLimit;
+    private double bestThroughput;
+    private long sampleStartTime;
+    private long sampleBytes;
+    private boolean sampleSaturated;
+    private int samplesSinceExploration;
+
+    public enum Priority {
+        BACKGROUND, USER
+    }
+
+    public TransferScheduler(int minConcurrentTransfers, int maxConcurrentTransfers) {
+        this.concurrencyLimit = Math.max(1, minConcurrentTransfers);
+        this.maxConcurrentTransfers = Math.max(concurrencyLimit, maxConcurrentTransfers);
+        devices = new ArrayList<>();
+        devicesByTarget = new HashMap<>();
+        bestConcurrencyLimit = concurrencyLimit;
+        sampleStartTime = System.nanoTime();
+        samplesSinceExploration = SAMPLES_BETWEEN_EXPLORATIONS - 1;
+    }
+
+    public TransferQueue createQueue(Device device, List<Transfer> transfers, Priority priority) {
+        //File lengths are read before taking the lock, they may need a round trip to a content provider
+        List<Entry> entries = new ArrayList<>(transfers.size());
+        for (Transfer transfer : transfers) {
+            entries.add(new Entry(transfer, transfer.getFile().exists() ? transfer.getFile().length() : 0));
+        }
+
+        synchronized (this) {
+            DeviceShare deviceShare = devicesByTarget.get(device);
+            if (deviceShare == null) {
+                deviceShare = new DeviceShare();
+                devicesByTarget.put(device, deviceShare);
+                devices.add(deviceShare);
+            }
+            TransferQueue queue = new TransferQueue(device, deviceShare, priority);
+            deviceShare.queues.add(queue);
+            for (Entry entry : entries) {
+                queue.enqueue(entry);
+            }
+
+            return queue;
+        }
+    }
+
+    public synchronized Statistics getStatistics() {
+        long now = System.nanoTime();
+        int queuedTransfers = 0;
+        long oldestEnqueueTime = now;
+        Map<Device, Integer> queuedTransfersByDevice = new HashMap<>();
+        for (Map.Entry<Device, DeviceShare> device : devicesByTarget.entrySet()) {
+            int deviceQueuedTransfers = 0;
+            for (TransferQueue queue : device.getValue().queues) {
+                deviceQueuedTransfers += queue.pending.size() + queue.granted.size();
+                for (Entry entry : queue.pending) {
+                    oldestEnqueueTime = Math.min(oldestEnqueueTime, entry.enqueueTime);
+                }
+                for (Entry entry : queue.granted) {
+                    oldestEnqueueTime = Math.min(oldestEnqueueTime, entry.enqueueTime);
+                }
+            }
+            queuedTransfers += deviceQueuedTransfers;
+            queuedTransfersByDevice.put(device.getKey(), deviceQueuedTransfers);
+        }
+
+        return new Statistics(queuedTransfers, runningTransfers, concurrencyLimit, (long) averageWaitTime,
+                (now - oldestEnqueueTime) / 1000000, queuedTransfersByDevice);
+    }
+
+    private void dispatch() {
+        boolean anyGranted = false;
+        while (runningTransfers < concurrencyLimit) {
+            TransferQueue queue = nextQueue();
+            if (queue == null) break;
+
+            queue.granted.add(queue.pending.poll());
+            runningTransfers++;
+            anyGranted = true;
+        }
+        if (runningTransfers >= concurrencyLimit && nextEligiblePriority() != null) {
+            sampleSaturated = true;
+        }
+        if (anyGranted) {
+            notifyAll();
+        }
+    }
+
+    //Deficit round robin among the devices with files of the highest priority waiting for a connection
+    private TransferQueue nextQueue() {
+        Priority priority = nextEligiblePriority();
+        if (priority == null) return null;
+
+        while (true) {
+            nextDevice = nextDevice % devices.size();
+            DeviceShare device = devices.get(nextDevice);
+            TransferQueue queue = device.getEligibleQueue(priority);
+            if (queue == null) {
+                //A device does not keep what it was given while it has nothing to send
+                if (!device.hasPending()) device.deficit = 0;
+                nextDevice++;
+                continue;
+            }
+
+            long length = queue.pending.peek().length;
+            if (device.deficit >= length) {
+                device.deficit -= length;
+                return queue;
+            }
+            device.deficit += QUANTUM;
+            nextDevice++;
+        }
+    }
+
+    private Priority nextEligiblePriority() {
+        Priority priority = null;
+        for (DeviceShare device : devices) {
+            for (TransferQueue queue : device.queues) {
+                if (queue.isEligible() && (priority == null || queue.priority.compareTo(priority) > 0)) {
+                    priority = queue.priority;
+                }
+            }
+        }
+
+        return priority;
+    }
+
+    private void updateConcurrencyLimit() {
+        long now = System.nanoTime();
+        long elapsedTime = now - sampleStartTime;
+        if (elapsedTime < SAMPLE_PERIOD) return;
+
+        double throughput = sampleBytes / (elapsedTime / 1e9);
+        boolean saturated = sampleSaturated;
+        sampleStartTime = now;
+        sampleBytes = 0;
+        sampleSaturated = false;
+        //Only while files are waiting for a turn does the throughput say whether more files at once would help
+        if (!saturated) return;
+
+        if (concurrencyLimit > bestConcurrencyLimit) {
+            if (throughput > bestThroughput * IMPROVEMENT_THRESHOLD) {
+                bestConcurrencyLimit = concurrencyLimit;
+                bestThroughput = throughput;
+                concurrencyLimit = Math.min(concurrencyLimit + 1, maxConcurrentTransfers);
+            } else {
+                concurrencyLimit = bestConcurrencyLimit;
+            }
+            samplesSinceExploration = 0;
+        } else {
+            bestThroughput = throughput;
+            samplesSinceExploration++;
+            if (concurrencyLimit < maxConcurrentTransfers && samplesSinceExploration >= SAMPLES_BETWEEN_EXPLORATIONS) {
+                concurrencyLimit++;
+            }
+        }
+    }
+
+    private void recordWaitTime(Entry entry) {
+        long waitTime = (System.nanoTime() - entry.enqueueTime) / 1000000;
+        averageWaitTime = averageWaitTime == 0 ? waitTime :
+                averageWaitTime + WAIT_TIME_WEIGHT * (waitTime - averageWaitTime);
+    }
+
+    //The files of a sending to a device, taken by its connections once the scheduler gives them a turn
+    public class TransferQueue {
+        private final Device device;
+        private final DeviceShare deviceShare;
+        private final Priority priority;
+        private final PriorityQueue<Entry> pending;
+        //Turns given to connections of this queue that have not taken them yet
+        private final ArrayDeque<Entry> granted;
+        private int waitingConnections;
+
+        private TransferQueue(Device device, DeviceShare deviceShare, Priority priority) {
+            this.device = device;
+            this.deviceShare = deviceShare;
+            this.priority = priority;
+            pending = new PriorityQueue<>();
+            granted = new ArrayDeque<>();
+        }
+
+        //Waits for a turn, returns null once there are no more files. Every transfer taken must be released
+        public Transfer take() throws InterruptedException {
+            synchronized (TransferScheduler.this) {
+                waitingConnections++;
+                try {
+                    dispatch();
+                    while (granted.isEmpty()) {
+                        if (pending.isEmpty()) return null;
+                        TransferScheduler.this.wait();
+                    }
+
+                    return takeGranted();
+                } finally {
+                    waitingConnections--;
+                    returnUnclaimedTurns();
+                }
+            }
+        }
+
+        //Returns null when there are no more files or it is not the turn of this queue
+        public Transfer poll() {
+            synchronized (TransferScheduler.this) {
+                waitingConnections++;
+                try {
+                    dispatch();
+                    return granted.isEmpty() ? null : takeGranted();
+                } finally {
+                    waitingConnections--;
+                    returnUnclaimedTurns();
+                }
+            }
+        }
+
+        //Takes the next file without a turn of its own if it is not longer than the given length, so it can
+        //travel along with the file taken with the last turn
+        public Transfer pollNotLongerThan(long length) {
+            synchronized (TransferScheduler.this) {
+                Entry entry = pending.peek();
+                if (entry == null || entry.length > length) return null;
+
+                pending.poll();
+                deviceShare.deficit -= entry.length;
+                recordWaitTime(entry);
+                return entry.transfer;
+            }
+        }
+
+        //Ends the turn of a transfer taken with take or poll
+        public void release(long sentBytes) {
+            synchronized (TransferScheduler.this) {
+                runningTransfers--;
+                sampleBytes += sentBytes;
+                updateConcurrencyLimit();
+                dispatch();
+            }
+        }
+
+        //Queues again a transfer taken but not sent, it does not end its turn
+        public void putBack(Transfer transfer) {
+            synchronized (TransferScheduler.this) {
+                enqueue(new Entry(transfer, transfer.getFile().exists() ? transfer.getFile().length() : 0));
+            }
+        }
+
+        public boolean hasPending() {
+            synchronized (TransferScheduler.this) {
+                return !pending.isEmpty() || !granted.isEmpty();
+            }
+        }
+
+        //Removes the transfers not taken yet
+        public List<Transfer> drain() {
+            synchronized (TransferScheduler.this) {
+                List<Transfer> transfers = new ArrayList<>(pending.size() + granted.size());
+                for (Entry entry : granted) {
+                    transfers.add(entry.transfer);
+                    runningTransfers--;
+                }
+                granted.clear();
+                while (!pending.isEmpty()) {
+                    transfers.add(pending.poll().transfer);
+                }
+                dispatch();
+
+                return transfers;
+            }
+        }
+
+        //Removes the queue from the scheduler and returns the transfers not taken yet
+        public List<Transfer> close() {
+            synchronized (TransferScheduler.this) {
+                List<Transfer> transfers = drain();
+                deviceShare.queues.remove(this);
+                if (deviceShare.queues.isEmpty()) {
+                    devices.remove(deviceShare);
+                    devicesByTarget.remove(device);
+                }
+
+                return transfers;
+            }
+        }
+
+        private void enqueue(Entry entry) {
+            entry.sequence = sequence++;
+            pending.add(entry);
+            dispatch();
+        }
+
+        private Transfer takeGranted() {
+            Entry entry = granted.poll();
+            recordWaitTime(entry);
+            return entry.transfer;
+        }
+
+        //A connection interrupted while waiting leaves turns nobody will take
+        private void returnUnclaimedTurns() {
+            boolean returned = false;
+            while (granted.size() > waitingConnections) {
+                pending.add(granted.pollLast());
+                runningTransfers--;
+                returned = true;
+            }
+            if (returned) {
+                dispatch();
+            }
+        }
+
+        private boolean isEligible() {
+            return !pending.isEmpty() && waitingConnections > granted.size();
+        }
+    }
+
+    private static class DeviceShare {
+        private final List<TransferQueue> queues = new ArrayList<>();
+        private long deficit;
+
+        //The queue of the given priority with the best next file among the ones with a connection waiting
+        private TransferQueue getEligibleQueue(Priority priority) {
+            TransferQueue eligibleQueue = null;
+            for (TransferQueue queue : queues) {
+                if (queue.priority != priority || !queue.isEligible()) continue;
+                if (eligibleQueue == null || queue.pending.peek().compareTo(eligibleQueue.pending.peek()) < 0) {
+                    eligibleQueue = queue;
+                }
+            }
+
+            return eligibleQueue;
+        }
+
+        private boolean hasPending() {
+            for (TransferQueue queue : queues) {
+                if (!queue.pending.isEmpty()) return true;
+            }
+
+            return false;
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final Transfer transfer;
+        private final long length;
+        private final long enqueueTime;
+        private long sequence;
+
+        private Entry(Transfer transfer, long length) {
+            this.transfer = transfer;
+            this.length = length;
+            this.enqueueTime = System.nanoTime();
+        }
+
+        @Override
+        public int compareTo(Entry entry) {
+            if (length != entry.length) return length < entry.length ? -1 : 1;
+
+            return sequence < entry.sequence ? -1 : (sequence == entry.sequence ? 0 : 1);
+        }
+    }
+
+    public static class Statistics {
+        private final int queuedTransfersCount;
+        private final int runningTransfersCount;
+        private final int concurrencyLimit;
+        private final long averageWaitTime;
+        private final long longestWaitTime;
+        private final Map<Device, Integer> queuedTransfersByDevice;
+
+        private Statistics(int queuedTransfersCount, int runningTransfersCount, int concurrencyLimit,
+                           long averageWaitTime, long longestWaitTime, Map<Device, Integer> queuedTransfersByDevice) {
+            this.queuedTransfersCount = queuedTransfersCount;
+            this.runningTransfersCount = runningTransfersCount;
+            this.concurrencyLimit = concurrencyLimit;
+            this.averageWaitTime = averageWaitTime;
+            this.longestWaitTime = longestWaitTime;
+            this.queuedTransfersByDevice = Collections.unmodifiableMap(queuedTransfersByDevice);
+        }
+
+        public int getQueuedTransfersCount() {
+            return queuedTransfersCount;
+        }
+
+        public int getRunningTransfersCount() {
+            return runningTransfersCount;
+        }
+
+        public int getConcurrencyLimit() {
+            return concurrencyLimit;
+        }
+
+        //Milliseconds waited by the last files taken, on average
+        public long getAverageWaitTime() {
+            return averageWaitTime;
+        }
+
+        //Milliseconds waited so far by the oldest file still queued
+        public long getLongestWaitTime() {
+            return longestWaitTime;
+        }
+
+        public Map<Device, Integer> getQueuedTransfersByDevice() {
+            return queuedTransfersByDevice;
+        }
+    }
+}
@@ -3,15 +3,17 @@ package com.afa.devicesfiletransfer.usecases;
 import com.afa.devicesfiletransfer.domain.model.Transfer;
 import com.afa.devicesfiletransfer.domain.repository.TransfersRepository;
 
-public class SaveTransferUseCase {
+import java.util.List;
+
+public class SaveTransfersUseCase {
     private final TransfersRepository repository;
 
-    public SaveTransferUseCase(TransfersRepository repository) {
+    public SaveTransfersUseCase(TransfersRepository repository) {
         this.repository = repository;
     }
 
-    public void execute(Transfer transfer, final Callback callback) {
-        repository.saveTransfer(transfer, new TransfersRepository.AddTransferCallback() {
+    public void execute(List<Transfer> transfers, final Callback callback) {
+        repository.saveTransfers(transfers, new TransfersRepository.AddTransferCallback() {
             @Override
             public void onSuccess() {
                 callback.onSuccess();
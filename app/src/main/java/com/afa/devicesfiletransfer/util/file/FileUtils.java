@@ -14,6 +14,11 @@ public class FileUtils {
     private static final List<String> videoExtensions =
             Arrays.asList("webm", "mpg", "mp2", "mpeg", "mpe", "mpv", "mp4", "m4p",
                     "m4v", "avi", "wmv", "mov", "qt", "flv", "swf", "avchd");
+    private static final List<String> uncompressedMediaExtensions =
+            Arrays.asList("wav", "aiff", "tif", "tiff", "bmp", "dib", "raw");
+    private static final List<String> archiveExtensions =
+            Arrays.asList("zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "apk", "jar", "docx",
+                    "xlsx", "pptx", "odt", "epub");
 
     public static FileType getFileType(String fileName) {
         String extension = getFileExtension(fileName);
@@ -42,6 +47,16 @@ public class FileUtils {
         return getFileType(fileName) == FileType.AUDIO;
     }
 
+    //Media and archives whose content is already compressed and would not shrink any further
+    public static boolean isCompressed(String fileName) {
+        String extension = getFileExtension(fileName);
+        if (archiveExtensions.contains(extension)) {
+            return true;
+        }
+
+        return getFileType(fileName) != FileType.OTHER && !uncompressedMediaExtensions.contains(extension);
+    }
+
     public static String getFileNameWithoutExtension(String fileName) {
         if (fileName == null || fileName.isEmpty())
             return "";
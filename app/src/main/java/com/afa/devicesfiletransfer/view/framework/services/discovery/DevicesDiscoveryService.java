@@ -4,7 +4,13 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkRequest;
+import android.net.wifi.WifiManager;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
@@ -16,8 +22,12 @@ import com.afa.devicesfiletransfer.services.discovery.DiscoveryProtocolListener;
 import com.afa.devicesfiletransfer.services.discovery.DiscoveryProtocolListenerFactory;
 import com.afa.devicesfiletransfer.services.discovery.DiscoveryProtocolSender;
 import com.afa.devicesfiletransfer.services.discovery.DiscoveryProtocolSenderFactory;
+import com.afa.devicesfiletransfer.services.discovery.NetworkDataProvider;
+import com.afa.devicesfiletransfer.services.discovery.PeerCache;
+import com.afa.devicesfiletransfer.services.discovery.UnicastDiscovery;
 import com.afa.devicesfiletransfer.view.framework.services.transfer.receiver.FileReceiverService;
 
+import java.io.File;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.List;
@@ -30,6 +40,9 @@ public class DevicesDiscoveryService extends Service {
     private final IBinder binder = new LocalBinder();
     private DiscoveryProtocolSender discoverySender;
     private DiscoveryProtocolListener discoveryListener;
+    private UnicastDiscovery unicastDiscovery;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private WifiManager.MulticastLock multicastLock;
     private List<DiscoveryProtocolListener.Callback> callbackReceivers = new ArrayList<>();
 
     public class LocalBinder extends Binder {
@@ -57,11 +70,75 @@ public class DevicesDiscoveryService extends Service {
     @Override
     public void onCreate() {
         discoverySender = DiscoveryProtocolSenderFactory.getDefault(ConfigProperties.DISCOVERY_SERVICE_PORT);
+        unicastDiscovery = new UnicastDiscovery(new NetworkDataProvider(),
+                new PeerCache(new File(getFilesDir(), "peers")), ConfigProperties.DISCOVERY_SERVICE_PORT,
+                ConfigProperties.DISCOVERY_SWEEP_RATE);
+        unicastDiscovery.setLegacyPacketsEnabled(ConfigProperties.DISCOVERY_LEGACY_PACKETS_ENABLED);
+        acquireMulticastLock();
         discoveryListener = createDiscoveryListener();
         discoveryListener.start();
+        registerNetworkCallback();
+        startHeartbeat();
         super.onCreate();
     }
 
+    //Broadcasts reach every device at once, the devices on networks that filter them are found one by one. Both
+    //leave alone a discovery asked for less than a second ago, and a sweep still going on, so asking again does not
+    //start them over
+    public void discover() throws SocketException {
+        discoverySender.discover();
+        unicastDiscovery.discover();
+    }
+
+    //Devices announce themselves now and then, so the others know they are still there. Heartbeats are not answered
+    private void startHeartbeat() {
+        try {
+            discoverySender.startAnnouncing(ConfigProperties.DISCOVERY_HEARTBEAT_INTERVAL);
+        } catch (SocketException ignored) {
+        }
+    }
+
+    //Wi-Fi drivers drop multicast packets to save battery unless some app asks for them
+    private void acquireMulticastLock() {
+        if (!ConfigProperties.DISCOVERY_MULTICAST_ENABLED) return;
+
+        WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        if (wifiManager == null) return;
+
+        multicastLock = wifiManager.createMulticastLock(DevicesDiscoveryService.class.getName());
+        multicastLock.setReferenceCounted(false);
+        multicastLock.acquire();
+    }
+
+    //The addresses of the device are read again, and the groups of new interfaces joined, whenever a network comes,
+    //goes or changes its addresses
+    private void registerNetworkCallback() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) return;
+
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                NetworkDataProvider.invalidate();
+                discoveryListener.onNetworksChanged();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                NetworkDataProvider.invalidate();
+                discoveryListener.onNetworksChanged();
+            }
+
+            @Override
+            public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                NetworkDataProvider.invalidate();
+                discoveryListener.onNetworksChanged();
+            }
+        };
+        connectivityManager.registerNetworkCallback(new NetworkRequest.Builder().build(), networkCallback);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         createNotificationChannel();
@@ -101,6 +178,7 @@ public class DevicesDiscoveryService extends Service {
 
                     @Override
                     public void discoveryRequestReceived(Device device) {
+                        unicastDiscovery.deviceFound(device.getAddress());
                         for (DiscoveryProtocolListener.Callback callback : callbackReceivers) {
                             callback.discoveryRequestReceived(device);
                         }
@@ -108,6 +186,7 @@ public class DevicesDiscoveryService extends Service {
 
                     @Override
                     public void discoveryResponseReceived(Device device) {
+                        unicastDiscovery.deviceFound(device.getAddress());
                         for (DiscoveryProtocolListener.Callback callback : callbackReceivers) {
                             callback.discoveryResponseReceived(device);
                         }
@@ -129,8 +208,18 @@ public class DevicesDiscoveryService extends Service {
 
     @Override
     public void onDestroy() {
+        unicastDiscovery.stop();
         noticeDisconnected();
+        discoverySender.close();
         discoveryListener.stop();
+        if (networkCallback != null) {
+            ConnectivityManager connectivityManager =
+                    (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+        }
+        if (multicastLock != null) {
+            multicastLock.release();
+        }
         super.onDestroy();
     }
 
@@ -47,7 +47,11 @@ public class DiscoveryServiceInteractorImpl implements DiscoveryServiceInteracto
 
     @Override
     public void discover() throws SocketException {
-        discoverySender.discover();
+        if (boundService != null) {
+            boundService.discover();
+        } else {
+            discoverySender.discover();
+        }
     }
 
     @Override
@@ -0,0 +1,97 @@
+package com.afa.devicesfiletransfer.view.framework.services.transfer;
+
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+import com.afa.devicesfiletransfer.usecases.SaveTransfersUseCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+//Saves the finished transfers from a single thread, in batches saved in a single transaction each. A batch is saved
+//once it is full, or once its first transfer has waited long enough, so many small files finishing at once cost a
+//few transactions instead of one each
+public class TransfersHistoryWriter {
+    private static final int MAX_BATCH_SIZE = 250;
+    private static final long MAX_BATCH_DELAY = 500;
+    //Queued by close, the transfers queued before it are saved and the writer ends
+    private static final Transfer END = new Transfer();
+    private final SaveTransfersUseCase saveTransfersUseCase;
+    private final Callback callback;
+    private final BlockingQueue<Transfer> pendingTransfers;
+    private final Thread writer;
+
+    public TransfersHistoryWriter(SaveTransfersUseCase saveTransfersUseCase, Callback callback) {
+        this.saveTransfersUseCase = saveTransfersUseCase;
+        this.callback = callback;
+        pendingTransfers = new LinkedBlockingQueue<>();
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        }, "TransfersHistoryWriter");
+        writer.start();
+    }
+
+    public void write(Transfer transfer) {
+        pendingTransfers.add(transfer);
+    }
+
+    //Returns at once, as it is called from the main thread. The transfers written before are saved right away by the
+    //writer, which ends after them
+    public void close() {
+        pendingTransfers.add(END);
+    }
+
+    private void writeBatches() {
+        boolean ended = false;
+        try {
+            while (!ended) {
+                Transfer transfer = pendingTransfers.take();
+                List<Transfer> batch = new ArrayList<>();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_DELAY);
+                while (transfer != null) {
+                    if (transfer == END) {
+                        ended = true;
+                        break;
+                    }
+                    batch.add(transfer);
+                    if (batch.size() >= MAX_BATCH_SIZE) break;
+
+                    transfer = pendingTransfers.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                save(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void save(final List<Transfer> batch) {
+        if (batch.isEmpty()) return;
+
+        saveTransfersUseCase.execute(batch, new SaveTransfersUseCase.Callback() {
+            @Override
+            public void onSuccess() {
+                if (callback != null) {
+                    callback.onSaved(batch);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (callback != null) {
+                    callback.onError(batch, e);
+                }
+            }
+        });
+    }
+
+    public interface Callback {
+        void onSaved(List<Transfer> transfers);
+
+        void onError(List<Transfer> transfers, Exception e);
+    }
+}
@@ -15,28 +15,30 @@ import com.afa.devicesfiletransfer.ConfigProperties;
 import com.afa.devicesfiletransfer.R;
 import com.afa.devicesfiletransfer.domain.model.Transfer;
 import com.afa.devicesfiletransfer.framework.repository.TransfersRoomDatabaseRepository;
+import com.afa.devicesfiletransfer.services.transfer.receiver.AdmissionController;
+import com.afa.devicesfiletransfer.services.transfer.receiver.ContentIndex;
 import com.afa.devicesfiletransfer.services.transfer.receiver.FileReceiverProtocol;
-import com.afa.devicesfiletransfer.services.transfer.receiver.FilesReceiverListener;
-import com.afa.devicesfiletransfer.usecases.SaveTransferUseCase;
+import com.afa.devicesfiletransfer.services.transfer.receiver.SelectorFilesReceiverListener;
+import com.afa.devicesfiletransfer.services.transfer.receiver.TransferCheckpointStore;
+import com.afa.devicesfiletransfer.usecases.SaveTransfersUseCase;
+import com.afa.devicesfiletransfer.view.framework.services.transfer.TransfersHistoryWriter;
 import com.afa.devicesfiletransfer.util.SystemUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
 public class FileReceiverService extends Service {
     private static final String CHANNEL_ID = FileReceiverService.class.getName() + "Channel";
-    private SaveTransferUseCase saveTransferUseCase;
-    private FilesReceiverListener filesReceiverListener;
-    private ThreadPoolExecutor fileReceivingExecutor;
+    private TransfersHistoryWriter transfersHistoryWriter;
+    private SelectorFilesReceiverListener filesReceiverListener;
+    private AdmissionController admissionController;
     private final IBinder binder = new FileReceiverService.LocalBinder();
     private List<FileReceiverProtocol.Callback> callbackReceivers = new ArrayList<>();
     private List<Transfer> inProgressTransfers = new ArrayList<>();
@@ -47,10 +49,6 @@ public class FileReceiverService extends Service {
         }
     }
 
-    public FileReceiverService() {
-        fileReceivingExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
-    }
-
     public void addCallbackReceiver(FileReceiverProtocol.Callback callbackReceiver) {
         if (!callbackReceivers.contains(callbackReceiver)) {
             callbackReceivers.add(callbackReceiver);
@@ -73,19 +71,27 @@ public class FileReceiverService extends Service {
 
     @Override
     public void onCreate() {
-        saveTransferUseCase = new SaveTransferUseCase(
-                new TransfersRoomDatabaseRepository(getApplicationContext()));
+        transfersHistoryWriter = new TransfersHistoryWriter(new SaveTransfersUseCase(
+                new TransfersRoomDatabaseRepository(getApplicationContext())), new TransfersHistoryWriter.Callback() {
+            @Override
+            public void onSaved(List<Transfer> transfers) {
+                Log.d("Transfers", transfers.size() + " transfers persisted");
+            }
 
-        filesReceiverListener = new FilesReceiverListener(ConfigProperties.TRANSFER_SERVICE_PORT, new FilesReceiverListener.Callback() {
             @Override
-            public void onTransferReceived(final InputStream inputStream) {
-                final FileReceiverProtocol fileReceiver = FileReceiverService.this.createFileReceiver();
-                fileReceivingExecutor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        fileReceiver.receive(inputStream);
-                    }
-                });
+            public void onError(List<Transfer> transfers, Exception e) {
+                Log.d("Transfers", "Could not persist " + transfers.size() + " transfers: " + e.getMessage());
+            }
+        });
+
+        admissionController = new AdmissionController(SystemUtils.getDownloadsDirectory(),
+                ConfigProperties.MAX_RECEIVING_SESSIONS, ConfigProperties.MAX_RECEIVING_IN_FLIGHT_BYTES,
+                ConfigProperties.MAX_DISK_WRITERS);
+        filesReceiverListener = new SelectorFilesReceiverListener(ConfigProperties.TRANSFER_SERVICE_PORT,
+                admissionController, new SelectorFilesReceiverListener.Callback() {
+            @Override
+            public void onSessionAccepted(Socket socket, byte sessionType) {
+                FileReceiverService.this.createFileReceiver().receive(socket, sessionType);
             }
         });
         new Thread(new Runnable() {
@@ -129,7 +135,13 @@ public class FileReceiverService extends Service {
     }
 
     private FileReceiverProtocol createFileReceiver() {
-        final FileReceiverProtocol fileReceiver = new FileReceiverProtocol(SystemUtils.getDownloadsDirectory());
+        File downloadsDirectory = SystemUtils.getDownloadsDirectory();
+        final FileReceiverProtocol fileReceiver = new FileReceiverProtocol(downloadsDirectory);
+        fileReceiver.setContentIndex(ContentIndex.getInstance(downloadsDirectory,
+                new File(getFilesDir(), "content-index")));
+        fileReceiver.setCheckpointStore(TransferCheckpointStore.getInstance(new File(getFilesDir(), "checkpoints")));
+        fileReceiver.setAdmissionController(admissionController);
+        fileReceiver.setRelayEnabled(ConfigProperties.RELAY_ENABLED);
         fileReceiver.setCallback(new FileReceiverProtocol.Callback() {
             @Override
             public void onInitializationFailure() {
@@ -177,23 +189,9 @@ public class FileReceiverService extends Service {
         return fileReceiver;
     }
 
-    private void persistTransfer(final Transfer transfer) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                saveTransferUseCase.execute(transfer, new SaveTransferUseCase.Callback() {
-                    @Override
-                    public void onSuccess() {
-                        Log.d("Transfers", "Received Transfer persisted");
-                    }
-
-                    @Override
-                    public void onError(Exception e) {
-                        Log.d("Transfers", "Could not persist received transfer: " + e.getMessage());
-                    }
-                });
-            }
-        }).start();
+    //Saved along with the other transfers finished by then
+    private void persistTransfer(Transfer transfer) {
+        transfersHistoryWriter.write(transfer);
     }
 
     private void notifySystemAboutNewFile(File file) {
@@ -211,7 +209,7 @@ public class FileReceiverService extends Service {
     @Override
     public void onDestroy() {
         filesReceiverListener.stop();
-        fileReceivingExecutor.shutdownNow();
+        transfersHistoryWriter.close();
         super.onDestroy();
     }
 }
@@ -11,19 +11,24 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.util.Log;
 
+import com.afa.devicesfiletransfer.ConfigProperties;
 import com.afa.devicesfiletransfer.R;
 import com.afa.devicesfiletransfer.domain.model.Device;
 import com.afa.devicesfiletransfer.domain.model.Transfer;
 import com.afa.devicesfiletransfer.domain.model.TransferFile;
 import com.afa.devicesfiletransfer.framework.repository.TransfersRoomDatabaseRepository;
 import com.afa.devicesfiletransfer.services.transfer.sender.FileSenderProtocol;
-import com.afa.devicesfiletransfer.usecases.SaveTransferUseCase;
+import com.afa.devicesfiletransfer.services.transfer.sender.SharedTransferFile;
+import com.afa.devicesfiletransfer.services.transfer.sender.TransferScheduler;
+import com.afa.devicesfiletransfer.usecases.SaveTransfersUseCase;
+import com.afa.devicesfiletransfer.view.framework.services.transfer.TransfersHistoryWriter;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.Nullable;
@@ -31,12 +36,13 @@ import androidx.core.app.NotificationCompat;
 
 public class FileSenderService extends Service {
     private static final String CHANNEL_ID = FileSenderService.class.getName() + "Channel";
-    private ThreadPoolExecutor fileSendingExecutor;
-    private SaveTransferUseCase saveTransferUseCase;
+    private ExecutorService fileSendingExecutor;
+    private TransferScheduler transferScheduler;
+    private TransfersHistoryWriter transfersHistoryWriter;
     private final IBinder binder = new FileSenderService.LocalBinder();
     private List<FileSenderProtocol.Callback> callbackReceivers = new ArrayList<>();
     private AtomicInteger notStartedTransfersCount = new AtomicInteger(0);
-    private List<Transfer> inProgressTransfers = new ArrayList<>();
+    private List<Transfer> inProgressTransfers = new CopyOnWriteArrayList<>();
 
     public class LocalBinder extends Binder {
         FileSenderService getService() {
@@ -45,7 +51,10 @@ public class FileSenderService extends Service {
     }
 
     public FileSenderService() {
-        fileSendingExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
+        //Sendings wait for their turn in the scheduler, which limits how many files are sent at once
+        fileSendingExecutor = Executors.newCachedThreadPool();
+        transferScheduler = new TransferScheduler(ConfigProperties.MIN_CONCURRENT_SENDING_FILES,
+                ConfigProperties.MAX_CONCURRENT_SENDING_FILES);
     }
 
     public void addCallbackReceiver(FileSenderProtocol.Callback callbackReceiver) {
@@ -62,6 +71,10 @@ public class FileSenderService extends Service {
         return Collections.unmodifiableList(inProgressTransfers);
     }
 
+    public TransferScheduler.Statistics getSchedulerStatistics() {
+        return transferScheduler.getStatistics();
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
@@ -70,8 +83,18 @@ public class FileSenderService extends Service {
 
     @Override
     public void onCreate() {
-        saveTransferUseCase = new SaveTransferUseCase(
-                new TransfersRoomDatabaseRepository(getApplicationContext()));
+        transfersHistoryWriter = new TransfersHistoryWriter(new SaveTransfersUseCase(
+                new TransfersRoomDatabaseRepository(getApplicationContext())), new TransfersHistoryWriter.Callback() {
+            @Override
+            public void onSaved(List<Transfer> transfers) {
+                Log.d("Transfers", transfers.size() + " transfers persisted");
+            }
+
+            @Override
+            public void onError(List<Transfer> transfers, Exception e) {
+                Log.d("Transfers", "Could not persist " + transfers.size() + " transfers: " + e.getMessage());
+            }
+        });
         super.onCreate();
     }
 
@@ -80,9 +103,16 @@ public class FileSenderService extends Service {
         Bundle bundle = intent.getExtras();
         final List<Device> devices = (List<Device>) bundle.getSerializable("devices");
         final List<TransferFile> files = (List<TransferFile>) bundle.getSerializable("files");
+        TransferScheduler.Priority priority = (TransferScheduler.Priority) bundle.getSerializable("priority");
+        if (priority == null) {
+            priority = TransferScheduler.Priority.USER;
+        }
 
-        for (final Device device : devices) {
-            final FileSenderProtocol fileSenderProtocol = createFileSender(device, files);
+        //With a relay the files are sent to the first device only, which forwards them to the others
+        if (bundle.getBoolean("relay") && devices.size() > 1) {
+            final FileSenderProtocol fileSenderProtocol = createFileSender(devices.get(0), files, priority);
+            fileSenderProtocol.setRelayDevices(new ArrayList<>(devices.subList(1, devices.size())),
+                    ConfigProperties.RELAY_BRANCHES);
             notStartedTransfersCount.getAndAdd(fileSenderProtocol.getTransfersCount());
             fileSendingExecutor.execute(new Runnable() {
                 @Override
@@ -90,8 +120,35 @@ public class FileSenderService extends Service {
                     fileSenderProtocol.send();
                 }
             });
+            showNotification();
+            return START_NOT_STICKY;
+        }
+
+        //The files sent to several devices are read once for all of them
+        final List<TransferFile> sentFiles = devices.size() > 1 ? shareFiles(files) : files;
+        final AtomicInteger pendingSendings = new AtomicInteger(devices.size());
+        for (final Device device : devices) {
+            final FileSenderProtocol fileSenderProtocol = createFileSender(device, sentFiles, priority);
+            notStartedTransfersCount.getAndAdd(fileSenderProtocol.getTransfersCount());
+            fileSendingExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fileSenderProtocol.send();
+                    } finally {
+                        if (pendingSendings.decrementAndGet() == 0) {
+                            closeSharedFiles(sentFiles);
+                        }
+                    }
+                }
+            });
         }
 
+        showNotification();
+        return START_NOT_STICKY;
+    }
+
+    private void showNotification() {
         createNotificationChannel();
         Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
                 .setContentTitle("Sender")
@@ -100,8 +157,23 @@ public class FileSenderService extends Service {
                 .build();
 
         startForeground(2, notification);
+    }
 
-        return START_NOT_STICKY;
+    private List<TransferFile> shareFiles(List<TransferFile> files) {
+        List<TransferFile> sharedFiles = new ArrayList<>(files.size());
+        for (TransferFile file : files) {
+            sharedFiles.add(new SharedTransferFile(file, getCacheDir()));
+        }
+
+        return sharedFiles;
+    }
+
+    private void closeSharedFiles(List<TransferFile> files) {
+        for (TransferFile file : files) {
+            if (file instanceof SharedTransferFile) {
+                ((SharedTransferFile) file).close();
+            }
+        }
     }
 
     private void createNotificationChannel() {
@@ -116,8 +188,17 @@ public class FileSenderService extends Service {
         }
     }
 
-    private FileSenderProtocol createFileSender(Device device, List<TransferFile> files) {
+    private FileSenderProtocol createFileSender(Device device, List<TransferFile> files,
+                                                TransferScheduler.Priority priority) {
         FileSenderProtocol fileSender = new FileSenderProtocol(device, files);
+        fileSender.setScheduler(transferScheduler);
+        fileSender.setPriority(priority);
+        fileSender.setStripingEnabled(true);
+        fileSender.setCompressionEnabled(true);
+        fileSender.setDeduplicationEnabled(true);
+        fileSender.setDeltaEnabled(true);
+        fileSender.setVerificationEnabled(ConfigProperties.TRANSFER_VERIFICATION_ENABLED);
+        fileSender.setMaxConcurrentFiles(ConfigProperties.MAX_CONCURRENT_FILES_PER_DEVICE);
         fileSender.setCallback(new FileSenderProtocol.Callback() {
             @Override
             public void onInitializationFailure(FileSenderProtocol fileSenderProtocol) {
@@ -178,25 +259,10 @@ public class FileSenderService extends Service {
         return fileSender;
     }
 
-    private void persistTransfer(final Transfer transfer) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                saveTransferUseCase.execute(transfer, new SaveTransferUseCase.Callback() {
-                    @Override
-                    public void onSuccess() {
-                        Log.d("Transfers", "Received Transfer persisted");
-                        finishServiceIfThereAreNoMoreTransfers();
-                    }
-
-                    @Override
-                    public void onError(Exception e) {
-                        Log.d("Transfers", "Could not persist received transfer: " + e.getMessage());
-                        finishServiceIfThereAreNoMoreTransfers();
-                    }
-                });
-            }
-        }).start();
+    //Saved along with the other transfers finished by then
+    private void persistTransfer(Transfer transfer) {
+        transfersHistoryWriter.write(transfer);
+        finishServiceIfThereAreNoMoreTransfers();
     }
 
     private void finishServiceIfThereAreNoMoreTransfers() {
@@ -213,6 +279,7 @@ public class FileSenderService extends Service {
     @Override
     public void onDestroy() {
         fileSendingExecutor.shutdownNow();
+        transfersHistoryWriter.close();
         super.onDestroy();
     }
 }
\ No newline at end of file
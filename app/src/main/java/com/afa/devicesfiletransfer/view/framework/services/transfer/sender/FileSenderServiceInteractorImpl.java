@@ -10,6 +10,7 @@ import com.afa.devicesfiletransfer.domain.model.Transfer;
 import com.afa.devicesfiletransfer.services.ServiceConnectionCallback;
 import com.afa.devicesfiletransfer.services.transfer.sender.FileSenderProtocol;
 import com.afa.devicesfiletransfer.services.transfer.sender.FileSenderServiceInteractor;
+import com.afa.devicesfiletransfer.services.transfer.sender.TransferScheduler;
 
 import java.util.List;
 
@@ -43,6 +44,15 @@ public class FileSenderServiceInteractorImpl implements FileSenderServiceInterac
         return boundService.getInProgressTransfers();
     }
 
+    @Override
+    public TransferScheduler.Statistics getSchedulerStatistics() {
+        if (!mBound) {
+            throw new IllegalStateException("The service has not been started");
+        }
+
+        return boundService.getSchedulerStatistics();
+    }
+
     @Override
     public void receive() {
         Intent serviceIntent = new Intent(context, FileSenderService.class);
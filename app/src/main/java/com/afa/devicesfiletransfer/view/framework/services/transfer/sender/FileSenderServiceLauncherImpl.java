@@ -8,6 +8,7 @@ import android.os.Bundle;
 import com.afa.devicesfiletransfer.domain.model.Device;
 import com.afa.devicesfiletransfer.domain.model.TransferFile;
 import com.afa.devicesfiletransfer.services.transfer.sender.FileSenderServiceLauncher;
+import com.afa.devicesfiletransfer.services.transfer.sender.TransferScheduler;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -20,11 +21,14 @@ public class FileSenderServiceLauncherImpl implements FileSenderServiceLauncher
     }
 
     @Override
-    public void send(List<Device> devices, List<TransferFile> files) {
+    public void send(List<Device> devices, List<TransferFile> files, TransferScheduler.Priority priority,
+                     boolean relayed) {
         Intent serviceIntent = new Intent(context, FileSenderService.class);
         Bundle bundle = new Bundle();
         bundle.putSerializable("devices", new ArrayList<>(devices));
         bundle.putSerializable("files", new ArrayList<>(files));
+        bundle.putSerializable("priority", priority);
+        bundle.putBoolean("relay", relayed);
         serviceIntent.putExtras(bundle);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             context.startForegroundService(serviceIntent);
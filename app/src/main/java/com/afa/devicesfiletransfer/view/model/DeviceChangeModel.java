@@ -0,0 +1,24 @@
+package com.afa.devicesfiletransfer.view.model;
+
+import com.afa.devicesfiletransfer.domain.model.Device;
+
+public class DeviceChangeModel {
+    public static final int ADDED = 0;
+    public static final int UPDATED = 1;
+    public static final int REMOVED = 2;
+    private int type;
+    private Device device;
+
+    public DeviceChangeModel(int type, Device device) {
+        this.type = type;
+        this.device = device;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public Device getDevice() {
+        return device;
+    }
+}
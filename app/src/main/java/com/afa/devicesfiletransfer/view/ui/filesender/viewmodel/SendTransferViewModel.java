@@ -1,5 +1,6 @@
 package com.afa.devicesfiletransfer.view.ui.filesender.viewmodel;
 
+import com.afa.devicesfiletransfer.ConfigProperties;
 import com.afa.devicesfiletransfer.domain.model.Device;
 import com.afa.devicesfiletransfer.domain.model.Pair;
 import com.afa.devicesfiletransfer.domain.model.Transfer;
@@ -7,6 +8,7 @@ import com.afa.devicesfiletransfer.domain.model.TransferFile;
 import com.afa.devicesfiletransfer.services.transfer.sender.FileSenderProtocol;
 import com.afa.devicesfiletransfer.services.transfer.sender.FileSenderServiceInteractor;
 import com.afa.devicesfiletransfer.services.transfer.sender.FileSenderServiceLauncher;
+import com.afa.devicesfiletransfer.services.transfer.sender.TransferScheduler;
 import com.afa.devicesfiletransfer.view.framework.livedata.LiveEvent;
 import com.afa.devicesfiletransfer.view.model.AlertModel;
 import com.afa.devicesfiletransfer.view.model.ErrorModel;
@@ -124,7 +126,8 @@ public class SendTransferViewModel extends ViewModel {
             return;
         }
 
-        fileSenderExecutor.send(devices, attachedFiles);
+        fileSenderExecutor.send(devices, attachedFiles, TransferScheduler.Priority.USER,
+                ConfigProperties.RELAY_ENABLED);
     }
 
     private void triggerSendTransferErrorEvent(Transfer transfer, ErrorModel error) {
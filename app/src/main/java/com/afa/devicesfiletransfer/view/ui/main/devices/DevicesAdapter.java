@@ -9,6 +9,7 @@ import android.widget.TextView;
 
 import com.afa.devicesfiletransfer.R;
 import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.view.model.DeviceChangeModel;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -36,6 +37,37 @@ public class DevicesAdapter extends RecyclerView.Adapter<DevicesAdapter.DevicesV
         notifyDataSetChanged();
     }
 
+    //Changes already shown, as the ones of devices taken before, are skipped
+    public void applyChanges(List<DeviceChangeModel> changes) {
+        for (DeviceChangeModel change : changes) {
+            int position = devices.indexOf(change.getDevice());
+            if (change.getType() == DeviceChangeModel.REMOVED) {
+                if (position != -1) {
+                    devices.remove(position);
+                    removeSelectedPosition(position);
+                    notifyItemRemoved(position);
+                }
+            } else if (position == -1) {
+                devices.add(change.getDevice());
+                notifyItemInserted(devices.size() - 1);
+            } else {
+                devices.set(position, change.getDevice());
+                notifyItemChanged(position);
+            }
+        }
+    }
+
+    //Selections are kept by position, so the ones after a removed device move back
+    private void removeSelectedPosition(int removedPosition) {
+        Set<Integer> positions = new HashSet<>();
+        for (Integer position : selectedPositions) {
+            if (position != removedPosition) {
+                positions.add(position > removedPosition ? position - 1 : position);
+            }
+        }
+        selectedPositions = positions;
+    }
+
     public void addDevice(Device device) {
         this.devices.add(device);
         notifyDataSetChanged();
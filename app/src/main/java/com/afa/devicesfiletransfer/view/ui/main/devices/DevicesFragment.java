@@ -163,10 +163,14 @@ public class DevicesFragment extends BaseFragment implements Backable {
                 currentDeviceIpTextView.setText(text);
             }
         });
-        devicesViewModel.getDevicesLiveData().observe(this, new Observer<List<Device>>() {
+        devicesAdapter.setDevices(devicesViewModel.takeDevices());
+        devicesViewModel.getDeviceChangesEvent().observe(this, new Observer<Void>() {
             @Override
-            public void onChanged(List<Device> devices) {
-                devicesAdapter.setDevices(devices);
+            public void onChanged(Void ignored) {
+                devicesAdapter.applyChanges(devicesViewModel.takeDeviceChanges());
+                if (devicesAdapter.getSelectedDevices().size() < 2) {
+                    sendFilesButton.setVisibility(View.INVISIBLE);
+                }
             }
         });
         devicesViewModel.getErrorEvent().observe(this, new Observer<ErrorModel>() {
@@ -1,12 +1,15 @@
 package com.afa.devicesfiletransfer.view.ui.main.devices.viewmodel;
 
+import com.afa.devicesfiletransfer.ConfigProperties;
 import com.afa.devicesfiletransfer.domain.model.Device;
 import com.afa.devicesfiletransfer.services.ServiceConnectionCallback;
+import com.afa.devicesfiletransfer.services.discovery.DeviceRegistry;
 import com.afa.devicesfiletransfer.services.discovery.DiscoveryProtocolListener;
 import com.afa.devicesfiletransfer.services.discovery.DiscoveryServiceInteractor;
 import com.afa.devicesfiletransfer.services.discovery.DiscoveryServiceLauncher;
 import com.afa.devicesfiletransfer.services.discovery.NetworkDataProvider;
 import com.afa.devicesfiletransfer.view.framework.livedata.LiveEvent;
+import com.afa.devicesfiletransfer.view.model.DeviceChangeModel;
 import com.afa.devicesfiletransfer.view.model.ErrorModel;
 
 import java.io.IOException;
@@ -22,8 +25,11 @@ import androidx.lifecycle.ViewModel;
 
 public class DevicesViewModel extends ViewModel {
     private final MutableLiveData<String> currentDeviceAddress;
-    private final List<Device> devices;
-    private final MutableLiveData<List<Device>> devicesLiveData;
+    private final DeviceRegistry deviceRegistry;
+    //Changes are taken by the view in the order they happened, as posting every one of them could drop some
+    private List<DeviceChangeModel> pendingDeviceChanges;
+    private final Object deviceChangesLock = new Object();
+    private final LiveEvent<Void> deviceChangesEvent;
     private final LiveEvent<Device> discoveryRequestReceivedEvent;
     private final LiveEvent<ErrorModel> errorEvent;
     private DiscoveryServiceLauncher discoveryServiceLauncher;
@@ -38,8 +44,26 @@ public class DevicesViewModel extends ViewModel {
                             DiscoveryServiceInteractor discoveryServiceInteractor) {
         currentDeviceAddress = new MutableLiveData<>();
         currentDeviceAddress.postValue(NOT_CONNECTED);
-        devices = new ArrayList<>();
-        devicesLiveData = new MutableLiveData<>();
+        pendingDeviceChanges = new ArrayList<>();
+        deviceChangesEvent = new LiveEvent<>();
+        deviceRegistry = new DeviceRegistry(ConfigProperties.DISCOVERY_DEVICE_TIME_TO_LIVE);
+        deviceRegistry.addListener(new DeviceRegistry.Listener() {
+            @Override
+            public void onDeviceAdded(Device device) {
+                addDeviceChange(new DeviceChangeModel(DeviceChangeModel.ADDED, device));
+            }
+
+            @Override
+            public void onDeviceUpdated(Device device) {
+                addDeviceChange(new DeviceChangeModel(DeviceChangeModel.UPDATED, device));
+            }
+
+            @Override
+            public void onDeviceRemoved(Device device) {
+                addDeviceChange(new DeviceChangeModel(DeviceChangeModel.REMOVED, device));
+            }
+        });
+        deviceRegistry.start();
         discoveryRequestReceivedEvent = new LiveEvent<>();
         errorEvent = new LiveEvent<>();
         this.discoveryServiceInteractor = discoveryServiceInteractor;
@@ -65,18 +89,17 @@ public class DevicesViewModel extends ViewModel {
 
             @Override
             public void discoveryRequestReceived(Device device) {
-                addOrUpdateDeviceIfAlreadyPresent(device);
+                deviceRegistry.seen(device);
             }
 
             @Override
             public void discoveryResponseReceived(Device device) {
-                addOrUpdateDeviceIfAlreadyPresent(device);
+                deviceRegistry.seen(device);
             }
 
             @Override
             public void discoveryDisconnect(Device device) {
-                devices.remove(device);
-                devicesLiveData.postValue(devices);
+                deviceRegistry.remove(device);
             }
         };
         this.discoveryServiceInteractor.setCallback(discoveryProtocolCallback);
@@ -86,8 +109,25 @@ public class DevicesViewModel extends ViewModel {
         return currentDeviceAddress;
     }
 
-    public MutableLiveData<List<Device>> getDevicesLiveData() {
-        return devicesLiveData;
+    //Triggered when there are changes to take
+    public LiveEvent<Void> getDeviceChangesEvent() {
+        return deviceChangesEvent;
+    }
+
+    public List<DeviceChangeModel> takeDeviceChanges() {
+        synchronized (deviceChangesLock) {
+            List<DeviceChangeModel> changes = pendingDeviceChanges;
+            pendingDeviceChanges = new ArrayList<>();
+            return changes;
+        }
+    }
+
+    //The devices known so far, for a view that has not taken any change yet
+    public List<Device> takeDevices() {
+        synchronized (deviceChangesLock) {
+            pendingDeviceChanges = new ArrayList<>();
+            return deviceRegistry.getDevices();
+        }
     }
 
     public LiveEvent<Device> getDiscoveryRequestReceivedEvent() {
@@ -117,23 +157,27 @@ public class DevicesViewModel extends ViewModel {
     }
 
     public void addDevice(Device device) {
-        addOrUpdateDeviceIfAlreadyPresent(device);
+        deviceRegistry.add(device);
     }
 
+    //Devices already known are kept, the ones that do not answer anymore expire
     public void discoverDevices() {
         try {
             discoveryServiceInteractor.discover();
-            devices.clear();
-            devicesLiveData.postValue(devices);
         } catch (SocketException e) {
             triggerErrorEvent("Discover error", e.getMessage());
         }
     }
 
-    private void addOrUpdateDeviceIfAlreadyPresent(Device device) {
-        devices.remove(device);
-        devices.add(device);
-        devicesLiveData.postValue(devices);
+    private void addDeviceChange(DeviceChangeModel change) {
+        boolean firstChange;
+        synchronized (deviceChangesLock) {
+            firstChange = pendingDeviceChanges.isEmpty();
+            pendingDeviceChanges.add(change);
+        }
+        if (firstChange) {
+            deviceChangesEvent.postValue(null);
+        }
     }
 
     private void updateCurrentDeviceAddress() {
@@ -167,6 +211,7 @@ public class DevicesViewModel extends ViewModel {
 
     @Override
     protected void onCleared() {
+        deviceRegistry.stop();
         discoveryServiceInteractor.setServiceConnectionCallback(null);
         discoveryServiceInteractor.setCallback(null);
         super.onCleared();
@@ -0,0 +1,53 @@
+package com.afa.devicesfiletransfer.framework.repository;
+
+import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+import com.afa.devicesfiletransfer.domain.model.TransferFileLocal;
+import com.afa.devicesfiletransfer.framework.database.entities.TransferEntity;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+//Time to map the transfer history to the entities it is saved as and back, as it is done on every load and save
+public class TransferEntityMapperBenchmark {
+    private static final int TRANSFERS_COUNT = 10000;
+    private static final int ROUNDS = 8;
+    private final List<Transfer> transfers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+
+        Device device = new Device("benchmark", "Android 10", InetAddress.getByAddress(new byte[]{10, 0, 0, 1}));
+        for (int i = 0; i < TRANSFERS_COUNT; i++) {
+            Transfer transfer = new Transfer(device,
+                    new TransferFileLocal(new File("/sdcard/Download/file" + i + ".jpg")), 100, i % 2 == 0);
+            transfer.setStatus(Transfer.TransferStatus.COMPLETED);
+            transfers.add(transfer);
+        }
+    }
+
+    @Test
+    public void mapHistory() {
+        for (int round = 0; round < ROUNDS; round++) {
+            long startTime = System.nanoTime();
+            List<TransferEntity> transferEntities = TransferEntityMapper.toEntities(transfers);
+            long entitiesTime = System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            List<Transfer> mappedTransfers = TransferEntityMapper.toTransfers(transferEntities);
+            long transfersTime = System.nanoTime() - startTime;
+            assertEquals(TRANSFERS_COUNT, mappedTransfers.size());
+            System.out.printf("round %d: %d to entities %5.1f ms, back to transfers %5.1f ms%n", round,
+                    TRANSFERS_COUNT, entitiesTime / 1e6, transfersTime / 1e6);
+        }
+    }
+}
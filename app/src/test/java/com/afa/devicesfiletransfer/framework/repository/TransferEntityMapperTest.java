@@ -0,0 +1,90 @@
+package com.afa.devicesfiletransfer.framework.repository;
+
+import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+import com.afa.devicesfiletransfer.domain.model.TransferFileLocal;
+import com.afa.devicesfiletransfer.framework.database.entities.DeviceEntity;
+import com.afa.devicesfiletransfer.framework.database.entities.TransferEntity;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransferEntityMapperTest {
+    private Transfer transfer;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        Device device = new Device("Pixel", "Android 10", InetAddress.getByAddress(new byte[]{10, 0, 0, 1}));
+        transfer = new Transfer(device, new TransferFileLocal(new File("/sdcard/Download/photo.jpg")), 40, true);
+        transfer.setDate(new Date(1000000));
+        transfer.setStatus(Transfer.TransferStatus.COMPLETED);
+    }
+
+    @Test
+    public void mapsEveryFieldToEntity() {
+        TransferEntity transferEntity = TransferEntityMapper.toEntity(transfer);
+
+        assertEquals("Pixel", transferEntity.getDevice().getName());
+        assertEquals("Android 10", transferEntity.getDevice().getOs());
+        assertEquals(transfer.getFilePath(), transferEntity.getFilePath());
+        assertEquals(40, transferEntity.getProgress());
+        assertEquals(new Date(1000000), transferEntity.getDate());
+        assertEquals("COMPLETED", transferEntity.getStatus());
+        assertTrue(transferEntity.isIncoming());
+    }
+
+    @Test
+    public void mapsEntityBackToTransfer() {
+        Transfer mappedTransfer = TransferEntityMapper.toTransfer(TransferEntityMapper.toEntity(transfer));
+
+        assertEquals("Pixel", mappedTransfer.getDeviceName());
+        assertEquals("Android 10", mappedTransfer.getDevice().getOs());
+        assertEquals(transfer.getFilePath(), mappedTransfer.getFilePath());
+        assertEquals("photo.jpg", mappedTransfer.getFile().getName());
+        assertEquals(40, mappedTransfer.getProgress());
+        assertEquals(transfer.getDate(), mappedTransfer.getDate());
+        assertEquals(Transfer.TransferStatus.COMPLETED, mappedTransfer.getStatus());
+        assertTrue(mappedTransfer.isIncoming());
+    }
+
+    @Test
+    public void savesMissingDeviceStringsEmpty() {
+        DeviceEntity deviceEntity = TransferEntityMapper.toEntity(new Device());
+
+        assertEquals("", deviceEntity.getName());
+        assertEquals("", deviceEntity.getOs());
+    }
+
+    @Test
+    public void mapsUnknownStatusToFailed() {
+        TransferEntity transferEntity = TransferEntityMapper.toEntity(transfer);
+        transferEntity.setStatus("PAUSED");
+
+        assertEquals(Transfer.TransferStatus.FAILED, TransferEntityMapper.toTransfer(transferEntity).getStatus());
+    }
+
+    @Test
+    public void mapsListsInOrder() {
+        Transfer otherTransfer = new Transfer(transfer.getDevice(),
+                new TransferFileLocal(new File("/sdcard/Download/video.mp4")), 0, false);
+        List<TransferEntity> transferEntities = TransferEntityMapper.toEntities(Arrays.asList(transfer, otherTransfer));
+        List<Transfer> transfers = TransferEntityMapper.toTransfers(transferEntities);
+
+        assertEquals(2, transfers.size());
+        assertEquals(transfer.getFilePath(), transfers.get(0).getFilePath());
+        assertEquals(otherTransfer.getFilePath(), transfers.get(1).getFilePath());
+        assertEquals(Transfer.TransferStatus.NOT_STARTED, transfers.get(1).getStatus());
+        assertFalse(transfers.get(1).isIncoming());
+    }
+}
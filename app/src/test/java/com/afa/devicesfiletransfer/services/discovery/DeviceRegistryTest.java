@@ -0,0 +1,138 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import com.afa.devicesfiletransfer.domain.model.Device;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceRegistryTest {
+    private final RecordingListener listener = new RecordingListener();
+    private Device device;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        device = new Device("phone", "Android", InetAddress.getByAddress(new byte[]{10, 0, 0, 1}));
+    }
+
+    @Test
+    public void notifiesOnlyChanges() {
+        DeviceRegistry registry = new DeviceRegistry(60000);
+        registry.addListener(listener);
+        registry.seen(device);
+        registry.seen(new Device("phone", "Android", device.getAddress()));
+        Device renamed = new Device("renamed", "Android", device.getAddress());
+        registry.seen(renamed);
+        registry.remove(renamed);
+        registry.remove(renamed);
+
+        assertEquals(Arrays.asList("added phone", "updated renamed", "removed renamed"), listener.events);
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void notifiesDevicesUpdatedFromOlderVersions() {
+        DeviceRegistry registry = new DeviceRegistry(60000);
+        registry.addListener(listener);
+        Device legacyDevice = new Device("phone", "Android", device.getAddress());
+        legacyDevice.setLegacy(true);
+        registry.seen(legacyDevice);
+        registry.seen(device);
+
+        assertEquals(Arrays.asList("added phone", "updated phone"), listener.events);
+        assertFalse(registry.getDevices().get(0).isLegacy());
+    }
+
+    @Test
+    public void keepsOneDeviceForEachAddress() throws UnknownHostException {
+        DeviceRegistry registry = new DeviceRegistry(60000);
+        Device otherDevice = new Device("laptop", "Linux", InetAddress.getByAddress(new byte[]{10, 0, 0, 2}));
+        registry.seen(device);
+        registry.seen(otherDevice);
+        registry.seen(new Device("phone", null, device.getAddress()));
+
+        assertEquals(2, registry.size());
+        assertTrue(registry.getDevices().contains(otherDevice));
+    }
+
+    @Test
+    public void expiresDevicesNotHeardOf() throws InterruptedException {
+        DeviceRegistry registry = new DeviceRegistry(50);
+        registry.addListener(listener);
+        registry.seen(device);
+        registry.expire();
+        assertEquals(1, registry.size());
+
+        Thread.sleep(100);
+        registry.expire();
+        assertEquals(0, registry.size());
+        assertEquals(Arrays.asList("added phone", "removed phone"), listener.events);
+    }
+
+    @Test
+    public void refreshesDevicesHeardOfAgain() throws InterruptedException {
+        DeviceRegistry registry = new DeviceRegistry(150);
+        registry.seen(device);
+        Thread.sleep(100);
+        registry.seen(device);
+        Thread.sleep(100);
+        registry.expire();
+
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void keepsDevicesAddedByHand() throws InterruptedException {
+        DeviceRegistry registry = new DeviceRegistry(50);
+        registry.add(device);
+        registry.seen(device);
+        Thread.sleep(100);
+        registry.expire();
+
+        assertEquals(Collections.singletonList(device), registry.getDevices());
+        assertSame(device, registry.getDevices().get(0));
+    }
+
+    @Test
+    public void expiresDevicesOnItsOwnOnceStarted() throws InterruptedException {
+        DeviceRegistry registry = new DeviceRegistry(60);
+        registry.seen(device);
+        registry.start();
+        try {
+            Thread.sleep(200);
+            assertEquals(0, registry.size());
+        } finally {
+            registry.stop();
+        }
+    }
+
+    private static class RecordingListener implements DeviceRegistry.Listener {
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onDeviceAdded(Device device) {
+            events.add("added " + device.getName());
+        }
+
+        @Override
+        public void onDeviceUpdated(Device device) {
+            events.add("updated " + device.getName());
+        }
+
+        @Override
+        public void onDeviceRemoved(Device device) {
+            events.add("removed " + device.getName());
+        }
+    }
+}
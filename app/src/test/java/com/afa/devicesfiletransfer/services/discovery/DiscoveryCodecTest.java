@@ -0,0 +1,117 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import com.afa.devicesfiletransfer.domain.model.DeviceProperties;
+import com.afa.devicesfiletransfer.domain.model.DiscoveryOperation;
+import com.google.gson.Gson;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DiscoveryCodecTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final DeviceProperties deviceProperties = new DeviceProperties("Pixel de Ana ñ", "Android 14");
+    private final DiscoveryCodec codec = new DiscoveryCodec();
+    private InetAddress address;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        address = InetAddress.getByAddress(new byte[]{10, 0, 0, 5});
+    }
+
+    @Test
+    public void decodesWhatIsEncoded() {
+        byte[] packet = DiscoveryCodec.encode(DiscoveryCodec.OPERATION_RESPONSE, deviceProperties);
+        byte[] data = new byte[DiscoveryCodec.MAX_PACKET_SIZE];
+        System.arraycopy(packet, 0, data, 3, packet.length);
+
+        assertTrue(codec.decode(address, data, 3, packet.length));
+        assertEquals(DiscoveryCodec.OPERATION_RESPONSE, codec.getOperation());
+        assertEquals(deviceProperties.getName(), codec.getName());
+        assertEquals(deviceProperties.getOs(), codec.getOs());
+        assertFalse(codec.isLegacy());
+    }
+
+    @Test
+    public void reusesStringsOfKnownDevice() {
+        byte[] packet = DiscoveryCodec.encode(DiscoveryCodec.OPERATION_DISCOVERY, deviceProperties);
+        codec.decode(address, packet, 0, packet.length);
+        String name = codec.getName();
+        codec.decode(address, packet, 0, packet.length);
+        assertSame(name, codec.getName());
+
+        byte[] renamed = DiscoveryCodec.encode(DiscoveryCodec.OPERATION_DISCOVERY,
+                new DeviceProperties("Renamed", "Android 14"));
+        codec.decode(address, renamed, 0, renamed.length);
+        assertEquals("Renamed", codec.getName());
+    }
+
+    @Test
+    public void sendsMissingStringsEmpty() {
+        byte[] packet = DiscoveryCodec.encode(DiscoveryCodec.OPERATION_DISCONNECT, new DeviceProperties(null, null));
+
+        assertTrue(codec.decode(address, packet, 0, packet.length));
+        assertEquals(DiscoveryCodec.OPERATION_DISCONNECT, codec.getOperation());
+        assertEquals("", codec.getName());
+        assertEquals("", codec.getOs());
+    }
+
+    @Test
+    public void truncatesLongStringsToFitPacket() {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < DiscoveryCodec.MAX_PACKET_SIZE; i++) {
+            name.append('a');
+        }
+        byte[] packet = DiscoveryCodec.encode(DiscoveryCodec.OPERATION_DISCOVERY,
+                new DeviceProperties(name.toString(), name.toString()));
+
+        assertTrue(packet.length <= DiscoveryCodec.MAX_PACKET_SIZE);
+        assertTrue(codec.decode(address, packet, 0, packet.length));
+    }
+
+    @Test
+    public void decodesPacketsOfOlderVersions() {
+        byte[] packet = new Gson().toJson(new DiscoveryOperation("disconnect", deviceProperties))
+                .getBytes(UTF_8);
+
+        assertTrue(codec.decode(address, packet, 0, packet.length));
+        assertEquals(DiscoveryCodec.OPERATION_DISCONNECT, codec.getOperation());
+        assertEquals(deviceProperties.getName(), codec.getName());
+        assertTrue(codec.isLegacy());
+    }
+
+    @Test
+    public void ignoresJsonCopiesOfBinaryPackets() {
+        byte[] packet = DiscoveryCodec.encodeLegacy(DiscoveryCodec.OPERATION_DISCOVERY, deviceProperties);
+        DiscoveryOperation discoveryOperation = new Gson().fromJson(new String(packet, UTF_8),
+                DiscoveryOperation.class);
+
+        assertEquals("discovery", discoveryOperation.getName());
+        assertEquals(deviceProperties.getName(), discoveryOperation.getDeviceProperties().getName());
+        assertFalse(codec.decode(address, packet, 0, packet.length));
+    }
+
+    @Test
+    public void rejectsOtherPackets() {
+        byte[] packet = DiscoveryCodec.encode(DiscoveryCodec.OPERATION_DISCOVERY, deviceProperties);
+        assertFalse(codec.decode(address, packet, 0, packet.length - 1));
+        assertFalse(codec.decode(address, new byte[]{1, 2, 3}, 0, 3));
+        assertFalse(codec.decode(address, packet, 0, 0));
+        assertFalse(codec.decode(address, "{oops".getBytes(), 0, 5));
+        assertFalse(codec.decode(address, "{}".getBytes(), 0, 2));
+
+        packet[5] = 9;
+        assertFalse(codec.decode(address, packet, 0, packet.length));
+        packet[5] = DiscoveryCodec.OPERATION_DISCOVERY;
+        packet[4] = DiscoveryCodec.VERSION + 1;
+        assertFalse(codec.decode(address, packet, 0, packet.length));
+    }
+}
@@ -0,0 +1,60 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import com.afa.devicesfiletransfer.domain.model.DeviceProperties;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+//Discovery packets from many peers checked against the addresses of the device and decoded per second, with the
+//snapshot of the interfaces shared and with the interfaces read again for every packet as before it was kept
+public class NetworkDataProviderBenchmark {
+    private static final int PEERS_COUNT = 200;
+    private static final long ROUND_TIME = 1000L * 1000000;
+    private static final int ROUNDS = 3;
+    private final InetAddress[] peers = new InetAddress[PEERS_COUNT];
+    private byte[] packet;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = InetAddress.getByAddress(new byte[]{10, 1, (byte) (i >>> 8), (byte) (i + 1)});
+        }
+        packet = DiscoveryCodec.encode(DiscoveryCodec.OPERATION_DISCOVERY,
+                new DeviceProperties("benchmark", "Android 14"));
+    }
+
+    @Test
+    public void comparePacketsPerSecond() {
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.printf("snapshot shared:         %10.0f packets/s%n", receive(false));
+            System.out.printf("interfaces every packet: %10.0f packets/s%n", receive(true));
+        }
+    }
+
+    private double receive(boolean invalidate) {
+        NetworkDataProvider networkDataProvider = new NetworkDataProvider();
+        DiscoveryCodec codec = new DiscoveryCodec();
+        long count = 0;
+        long startTime = System.nanoTime();
+        long elapsedTime;
+        do {
+            for (int i = 0; i < 100; i++) {
+                InetAddress peer = peers[(int) (count % peers.length)];
+                if (invalidate) NetworkDataProvider.invalidate();
+                if (!networkDataProvider.isCurrentDeviceAddress(peer)) {
+                    codec.decode(peer, packet, 0, packet.length);
+                }
+                count++;
+            }
+            elapsedTime = System.nanoTime() - startTime;
+        } while (elapsedTime < ROUND_TIME);
+
+        return count / (elapsedTime / 1e9);
+    }
+}
@@ -0,0 +1,72 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubnetTest {
+    @Test
+    public void listsNearestHostsFirst() throws UnknownHostException {
+        Subnet subnet = new Subnet(address("192.168.1.10"), 24);
+        assertEquals(Arrays.asList(address("192.168.1.11"), address("192.168.1.9"), address("192.168.1.12"),
+                address("192.168.1.8")), subnet.getNearestHosts(4));
+    }
+
+    @Test
+    public void listsEveryOtherHostOfSmallNetwork() throws UnknownHostException {
+        List<InetAddress> hosts = new Subnet(address("192.168.1.10"), 24).getNearestHosts(1000);
+        assertEquals(253, hosts.size());
+        assertFalse(hosts.contains(address("192.168.1.10")));
+        assertFalse(hosts.contains(address("192.168.1.0")));
+        assertFalse(hosts.contains(address("192.168.1.255")));
+        assertEquals(address("192.168.1.254"), hosts.get(hosts.size() - 1));
+    }
+
+    @Test
+    public void keepsToTheNetworkAtItsEdges() throws UnknownHostException {
+        assertEquals(Arrays.asList(address("10.0.0.2"), address("10.0.0.3")),
+                new Subnet(address("10.0.0.1"), 24).getNearestHosts(2));
+        assertEquals(Arrays.asList(address("10.0.0.253"), address("10.0.0.252")),
+                new Subnet(address("10.0.0.254"), 24).getNearestHosts(2));
+        assertEquals(Arrays.asList(address("10.0.0.2")), new Subnet(address("10.0.0.1"), 30).getNearestHosts(10));
+    }
+
+    @Test
+    public void sweepsLargeNetworkNearTheDevice() throws UnknownHostException {
+        List<InetAddress> hosts = new Subnet(address("10.20.30.40"), 8).getNearestHosts(1022);
+        assertEquals(1022, hosts.size());
+        assertEquals(address("10.20.32.39"), hosts.get(hosts.size() - 2));
+        assertEquals(address("10.20.28.41"), hosts.get(hosts.size() - 1));
+    }
+
+    @Test
+    public void hasNoHostsWithoutRoomForThem() throws UnknownHostException {
+        assertTrue(new Subnet(address("10.0.0.1"), 31).getNearestHosts(10).isEmpty());
+        assertTrue(new Subnet(address("10.0.0.1"), 32).getNearestHosts(10).isEmpty());
+        assertTrue(new Subnet(address("10.0.0.1"), -1).getNearestHosts(10).isEmpty());
+    }
+
+    @Test
+    public void containsOnlyHostsOfTheNetwork() throws UnknownHostException {
+        Subnet subnet = new Subnet(address("192.168.1.10"), 24);
+        assertTrue(subnet.containsHost(address("192.168.1.1")));
+        assertTrue(subnet.containsHost(address("192.168.1.254")));
+        assertFalse(subnet.containsHost(address("192.168.1.0")));
+        assertFalse(subnet.containsHost(address("192.168.1.255")));
+        assertFalse(subnet.containsHost(address("192.168.2.1")));
+        assertFalse(subnet.containsHost(InetAddress.getByName("::1")));
+        assertFalse(new Subnet(address("192.168.1.10"), 32).containsHost(address("192.168.1.10")));
+    }
+
+    private static Inet4Address address(String address) throws UnknownHostException {
+        return (Inet4Address) InetAddress.getByName(address);
+    }
+}
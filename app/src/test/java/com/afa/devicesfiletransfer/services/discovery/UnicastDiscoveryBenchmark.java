@@ -0,0 +1,143 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import com.afa.devicesfiletransfer.ConfigProperties;
+import com.afa.devicesfiletransfer.domain.model.DeviceProperties;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+//Time to the first and to the last device found by a sweep of 127.0.0.0/24, by the number of peers listening on
+//their own loopback addresses and how many of them were seen before. Loopback addresses other than 127.0.0.1 are
+//only routed like this on Linux
+public class UnicastDiscoveryBenchmark {
+    private static final int PORT = ConfigProperties.DISCOVERY_SERVICE_PORT;
+    private static final int PEERS_COUNT = 40;
+    private static final int[] CACHED_PEERS_COUNTS = {0, PEERS_COUNT / 2, PEERS_COUNT};
+    private final List<DatagramSocket> sockets = new ArrayList<>();
+    private final List<InetAddress> peers = new ArrayList<>();
+    private File peersFile;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+
+        peersFile = File.createTempFile("peers", "");
+        List<Integer> hosts = new ArrayList<>();
+        for (int host = 2; host < 255; host++) {
+            hosts.add(host);
+        }
+        Collections.shuffle(hosts, new Random(1));
+        byte[] response = DiscoveryCodec.encode(DiscoveryCodec.OPERATION_RESPONSE,
+                new DeviceProperties("peer", "Linux"));
+        for (int i = 0; i < PEERS_COUNT; i++) {
+            InetAddress peer = InetAddress.getByName("127.0.0." + hosts.get(i));
+            peers.add(peer);
+            startPeer(peer, response);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (DatagramSocket socket : sockets) {
+            socket.close();
+        }
+        if (peersFile != null) {
+            peersFile.delete();
+        }
+    }
+
+    @Test
+    public void compareCachedPeers() throws Exception {
+        final UnicastDiscovery[] discovery = new UnicastDiscovery[1];
+        final DatagramSocket listenerSocket = new DatagramSocket(new InetSocketAddress("127.0.0.1", PORT));
+        sockets.add(listenerSocket);
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = new byte[DiscoveryCodec.MAX_PACKET_SIZE];
+                DatagramPacket packet = new DatagramPacket(data, data.length);
+                DiscoveryCodec codec = new DiscoveryCodec();
+                try {
+                    while (true) {
+                        packet.setLength(data.length);
+                        listenerSocket.receive(packet);
+                        //The sweep also reaches the listener itself
+                        if (codec.decode(packet.getAddress(), data, 0, packet.getLength())
+                                && codec.getOperation() == DiscoveryCodec.OPERATION_RESPONSE) {
+                            discovery[0].deviceFound(packet.getAddress());
+                        }
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+
+        for (int cachedPeersCount : CACHED_PEERS_COUNTS) {
+            peersFile.delete();
+            PeerCache peerCache = new PeerCache(peersFile);
+            for (int i = 0; i < cachedPeersCount; i++) {
+                peerCache.seen(peers.get(i));
+            }
+            peerCache.save();
+
+            discovery[0] = new UnicastDiscovery(new NetworkDataProvider(), new PeerCache(peersFile), PORT,
+                    ConfigProperties.DISCOVERY_SWEEP_RATE);
+            long startTime = System.nanoTime();
+            discovery[0].discover(Collections.singleton(
+                    new Subnet((Inet4Address) InetAddress.getByName("127.0.0.1"), 24)));
+            while (discovery[0].isDiscovering()) {
+                Thread.sleep(5);
+            }
+            //Answers to the last packets may still be on their way
+            Thread.sleep(100);
+            long sweepTime = (System.nanoTime() - startTime) / 1000000;
+            assertEquals(PEERS_COUNT, discovery[0].getDevicesFound());
+            System.out.printf("%d peers, %2d cached, %d packets/s: first %4d ms, all %4d ms, sweep %4d ms%n",
+                    PEERS_COUNT, cachedPeersCount, ConfigProperties.DISCOVERY_SWEEP_RATE,
+                    discovery[0].getTimeToFirstDevice(), discovery[0].getTimeToLastDevice(), sweepTime);
+            discovery[0].stop();
+        }
+    }
+
+    private void startPeer(InetAddress address, final byte[] response) throws IOException {
+        final DatagramSocket socket = new DatagramSocket(new InetSocketAddress(address, PORT));
+        sockets.add(socket);
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = new byte[DiscoveryCodec.MAX_PACKET_SIZE];
+                DatagramPacket packet = new DatagramPacket(data, data.length);
+                try {
+                    while (true) {
+                        packet.setLength(data.length);
+                        socket.receive(packet);
+                        socket.send(new DatagramPacket(response, response.length, packet.getAddress(), PORT));
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    private static void startDaemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,78 @@
+package com.afa.devicesfiletransfer.services.discovery;
+
+import com.afa.devicesfiletransfer.ConfigProperties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+//A sweep of 127.0.0.0/30 from 127.0.0.2, heard by a listener on 127.0.0.1
+public class UnicastDiscoveryTest {
+    private static final int PORT = ConfigProperties.DISCOVERY_SERVICE_PORT;
+    private DatagramSocket listenerSocket;
+    private File peersFile;
+    private UnicastDiscovery discovery;
+    private Collection<Subnet> subnets;
+
+    @Before
+    public void setUp() throws IOException {
+        listenerSocket = new DatagramSocket(new InetSocketAddress("127.0.0.1", PORT));
+        listenerSocket.setSoTimeout(300);
+        peersFile = File.createTempFile("peers", "");
+        discovery = new UnicastDiscovery(new NetworkDataProvider(), new PeerCache(peersFile), PORT, 1000);
+        subnets = Collections.singleton(new Subnet((Inet4Address) InetAddress.getByName("127.0.0.2"), 30));
+    }
+
+    @After
+    public void tearDown() {
+        discovery.stop();
+        listenerSocket.close();
+        peersFile.delete();
+    }
+
+    @Test
+    public void leavesRecentSweepsAlone() throws Exception {
+        discovery.discover(subnets);
+        discovery.discover(subnets);
+        assertEquals(1, receiveDiscoveries());
+
+        discovery.discover(subnets);
+        assertEquals(0, receiveDiscoveries());
+
+        Thread.sleep(1000);
+        discovery.discover(subnets);
+        assertEquals(1, receiveDiscoveries());
+    }
+
+    private int receiveDiscoveries() throws IOException {
+        byte[] data = new byte[DiscoveryCodec.MAX_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        DiscoveryCodec codec = new DiscoveryCodec();
+        int discoveries = 0;
+        try {
+            while (true) {
+                packet.setLength(data.length);
+                listenerSocket.receive(packet);
+                if (codec.decode(packet.getAddress(), data, 0, packet.getLength())
+                        && codec.getOperation() == DiscoveryCodec.OPERATION_DISCOVERY) {
+                    discoveries++;
+                }
+            }
+        } catch (SocketTimeoutException ignored) {
+        }
+        return discoveries;
+    }
+}
@@ -0,0 +1,91 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BandwidthLimiterTest {
+    private static final long TOLERANCE = TimeUnit.MILLISECONDS.toNanos(50);
+
+    @Test
+    public void doesNotWaitWithoutLimit() {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        assertFalse(limiter.isLimited());
+        assertEquals(0, limiter.reserve(1000 * 1000 * 1000));
+
+        limiter.setMaxBytesPerSecond(-1);
+        assertFalse(limiter.isLimited());
+        assertEquals(0, limiter.getMaxBytesPerSecond());
+    }
+
+    @Test
+    public void allowsShortBurstAtOnce() {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        limiter.setMaxBytesPerSecond(1000 * 1000);
+        assertEquals(0, limiter.reserve(50 * 1000));
+    }
+
+    @Test
+    public void waitsForBytesOverTheLimit() {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        limiter.setMaxBytesPerSecond(1000 * 1000);
+        long waitTime = 0;
+        for (int i = 0; i < 10; i++) {
+            waitTime = limiter.reserve(100 * 1000);
+        }
+        //One second for the bytes reserved, less the burst allowed at first
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(900), waitTime, TOLERANCE);
+    }
+
+    @Test
+    public void sharesTheLimitAmongItsUsers() throws InterruptedException {
+        final BandwidthLimiter limiter = new BandwidthLimiter();
+        limiter.setMaxBytesPerSecond(1000 * 1000);
+        final long[] waitTimes = new long[2];
+        Thread[] threads = new Thread[waitTimes.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10; j++) {
+                        waitTimes[thread] = Math.max(waitTimes[thread], limiter.reserve(50 * 1000));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(900), Math.max(waitTimes[0], waitTimes[1]), TOLERANCE);
+    }
+
+    @Test
+    public void appliesNewLimitToNextBytes() {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        limiter.setMaxBytesPerSecond(1000 * 1000);
+        limiter.reserve(100 * 1000);
+        limiter.setMaxBytesPerSecond(100 * 1000);
+        assertTrue(limiter.isLimited());
+        assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.reserve(100 * 1000), TOLERANCE);
+    }
+
+    @Test
+    public void keepsOneLimiterForEachDevice() throws Exception {
+        InetAddress firstAddress = InetAddress.getByAddress(new byte[]{10, 0, 0, 1});
+        InetAddress secondAddress = InetAddress.getByAddress(new byte[]{10, 0, 0, 2});
+        assertSame(BandwidthLimiter.getInstance(firstAddress),
+                BandwidthLimiter.getInstance(InetAddress.getByAddress(new byte[]{10, 0, 0, 1})));
+        assertNotSame(BandwidthLimiter.getInstance(firstAddress), BandwidthLimiter.getInstance(secondAddress));
+        assertNotSame(BandwidthLimiter.getGlobalInstance(), BandwidthLimiter.getInstance(firstAddress));
+    }
+}
@@ -0,0 +1,112 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressionCodecTest {
+    private final byte[] text = textBytes(CompressionCodec.CHUNK_SIZE);
+    private final byte[] random = randomBytes(CompressionCodec.CHUNK_SIZE);
+
+    @Test
+    public void tellsCompressibleData() {
+        CompressionCodec codec = new CompressionCodec();
+        assertTrue(codec.isCompressible(text, text.length));
+        assertFalse(codec.isCompressible(random, random.length));
+        assertFalse(codec.isCompressible(text, 0));
+        codec.end();
+    }
+
+    @Test
+    public void decodesWhatIsEncoded() throws IOException {
+        CompressionCodec encoder = new CompressionCodec();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(wire);
+        encoder.writeChunk(outputStream, text, text.length);
+        encoder.writeChunk(outputStream, random, random.length);
+        encoder.writeChunk(outputStream, text, 100);
+        encoder.writeEnd(outputStream);
+        encoder.end();
+        assertEquals(wire.size(), encoder.getWireBytes());
+
+        CompressionCodec decoder = new CompressionCodec();
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        byte[] data = new byte[CompressionCodec.CHUNK_SIZE];
+        assertEquals(text.length, decoder.readChunk(inputStream, data));
+        assertArrayEquals(text, data);
+        assertEquals(random.length, decoder.readChunk(inputStream, data));
+        assertArrayEquals(random, data);
+        assertEquals(100, decoder.readChunk(inputStream, data));
+        assertArrayEquals(Arrays.copyOf(text, 100), Arrays.copyOf(data, 100));
+        assertEquals(-1, decoder.readChunk(inputStream, data));
+        decoder.end();
+        assertEquals(wire.size(), decoder.getWireBytes());
+    }
+
+    @Test
+    public void sendsIncompressibleDataRaw() throws IOException {
+        CompressionCodec codec = new CompressionCodec();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        codec.writeChunk(new DataOutputStream(wire), random, random.length);
+        codec.end();
+        assertEquals(9 + random.length, wire.size());
+    }
+
+    @Test
+    public void rejectsInvalidChunks() throws IOException {
+        assertCorrupted(chunk(3, 10, 10, new byte[10]));
+        assertCorrupted(chunk(1, CompressionCodec.CHUNK_SIZE + 1, 10, new byte[10]));
+        assertCorrupted(chunk(1, 10, 0, new byte[0]));
+        assertCorrupted(chunk(2, 10, 10, new byte[10]));
+    }
+
+    private static void assertCorrupted(byte[] wire) throws IOException {
+        CompressionCodec codec = new CompressionCodec();
+        try {
+            codec.readChunk(new DataInputStream(new ByteArrayInputStream(wire)),
+                    new byte[CompressionCodec.CHUNK_SIZE]);
+            fail();
+        } catch (ProtocolException expected) {
+        } finally {
+            codec.end();
+        }
+    }
+
+    private static byte[] chunk(int type, int length, int compressedLength, byte[] data) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(wire);
+        outputStream.writeByte(type);
+        outputStream.writeInt(length);
+        outputStream.writeInt(compressedLength);
+        outputStream.write(data);
+        return wire.toByteArray();
+    }
+
+    private static byte[] textBytes(int length) {
+        byte[] bytes = new byte[length];
+        byte[] line = "The quick brown fox jumps over the lazy dog\n".getBytes();
+        for (int i = 0; i < length; i++) {
+            bytes[i] = line[i % line.length];
+        }
+        return bytes;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(1).nextBytes(bytes);
+        return bytes;
+    }
+}
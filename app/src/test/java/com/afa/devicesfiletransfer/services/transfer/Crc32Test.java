@@ -0,0 +1,58 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32Test {
+    private final byte[] data = randomBytes(4096);
+
+    @Test
+    public void matchesPlatformCrcForEveryLengthAndOffset() {
+        for (int offset = 0; offset < 9; offset++) {
+            for (int length = 0; length < 100; length++) {
+                CRC32 expected = new CRC32();
+                expected.update(data, offset, length);
+                Crc32 crc = new Crc32(0);
+                crc.update(data, offset, length);
+                assertEquals(expected.getValue(), crc.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void hashesDirectBufferWithoutMovingIt() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.position(3);
+        Crc32 crc = new Crc32(0);
+        crc.update(buffer);
+
+        CRC32 expected = new CRC32();
+        expected.update(data, 3, data.length - 3);
+        assertEquals(expected.getValue(), crc.getValue());
+        assertEquals(3, buffer.position());
+    }
+
+    @Test
+    public void goesOnFromPreviousValue() {
+        CRC32 first = new CRC32();
+        first.update(data, 0, 1000);
+        Crc32 crc = new Crc32(first.getValue());
+        crc.update(data, 1000, data.length - 1000);
+
+        CRC32 expected = new CRC32();
+        expected.update(data, 0, data.length);
+        assertEquals(expected.getValue(), crc.getValue());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(1).nextBytes(bytes);
+        return bytes;
+    }
+}
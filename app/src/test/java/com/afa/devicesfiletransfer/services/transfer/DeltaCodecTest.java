@@ -0,0 +1,174 @@
+package com.afa.devicesfiletransfer.services.transfer;
+
+import com.afa.devicesfiletransfer.domain.model.TransferFileLocal;
+import com.afa.devicesfiletransfer.services.transfer.sender.FileSender;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeltaCodecTest {
+    private static final int BASIS_SIZE = 256 * 1024 + 100;
+    private final Random random = new Random(1);
+    private byte[] basis;
+    private File basisFile;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        basis = new byte[BASIS_SIZE];
+        random.nextBytes(basis);
+        basisFile = File.createTempFile("basis", ".bin");
+        file = File.createTempFile("modified", ".bin");
+        write(basisFile, basis);
+    }
+
+    @After
+    public void tearDown() {
+        basisFile.delete();
+        file.delete();
+    }
+
+    @Test
+    public void rollsTheSameChecksumAsComputingIt() {
+        int length = 2048;
+        int weakChecksum = DeltaCodec.weakChecksum(basis, 0, length);
+        for (int i = 1; i < 1000; i++) {
+            weakChecksum = DeltaCodec.rollWeakChecksum(weakChecksum, length, basis[i - 1], basis[i - 1 + length]);
+            assertEquals(DeltaCodec.weakChecksum(basis, i, length), weakChecksum);
+        }
+    }
+
+    @Test
+    public void findsOnlyTheBlocksOfTheBasis() throws IOException {
+        DeltaCodec codec = readSignatures();
+        int blockSize = codec.getBlockSize();
+        assertEquals(3, codec.findBlock(DeltaCodec.weakChecksum(basis, 3 * blockSize, blockSize),
+                basis, 3 * blockSize, blockSize));
+        assertEquals(-1, codec.findBlock(DeltaCodec.weakChecksum(basis, 1, blockSize), basis, 1, blockSize));
+
+        int lastBlockLength = BASIS_SIZE % blockSize;
+        assertTrue(codec.isLastBlockLength(lastBlockLength));
+        assertEquals(BASIS_SIZE / blockSize, codec.findBlock(DeltaCodec.weakChecksum(basis,
+                BASIS_SIZE - lastBlockLength, lastBlockLength), basis, BASIS_SIZE - lastBlockLength, lastBlockLength));
+    }
+
+    @Test
+    public void rebuildsTheModifiedFile() throws IOException {
+        byte[] modified = new byte[BASIS_SIZE + 10];
+        byte[] inserted = new byte[10];
+        random.nextBytes(inserted);
+        System.arraycopy(basis, 0, modified, 0, 1000);
+        System.arraycopy(inserted, 0, modified, 1000, inserted.length);
+        System.arraycopy(basis, 1000, modified, 1000 + inserted.length, BASIS_SIZE - 1000);
+        modified[100 * 1024] = (byte) ~modified[100 * 1024];
+        write(file, modified);
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        new FileSender(new TransferFileLocal(file)).sendDelta(delta, readSignatures());
+        assertTrue(delta.size() < BASIS_SIZE / 10);
+
+        assertArrayEquals(modified, apply(delta.toByteArray()));
+    }
+
+    @Test
+    public void sendsUnrelatedFileAsLiterals() throws IOException {
+        byte[] unrelated = new byte[BASIS_SIZE];
+        random.nextBytes(unrelated);
+        write(file, unrelated);
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        new FileSender(new TransferFileLocal(file)).sendDelta(delta, readSignatures());
+
+        assertArrayEquals(unrelated, apply(delta.toByteArray()));
+    }
+
+    @Test
+    public void rejectsInvalidOperations() throws IOException {
+        assertInvalid(operation(2, BASIS_SIZE));
+        assertInvalid(operation(2, -1));
+        assertInvalid(operation(1, DeltaCodec.LITERAL_SIZE + 1));
+        assertInvalid(operation(1, 0));
+        assertInvalid(operation(3, 0));
+    }
+
+    @Test
+    public void rejectsInvalidSignatures() throws IOException {
+        ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(signatures);
+        outputStream.writeInt(12);
+        outputStream.writeInt(1);
+        outputStream.writeLong(BASIS_SIZE);
+        try {
+            DeltaCodec.readSignatures(new DataInputStream(new ByteArrayInputStream(signatures.toByteArray())));
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    private DeltaCodec readSignatures() throws IOException {
+        DeltaCodec basisCodec = DeltaCodec.forBasis(basisFile);
+        ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+        try {
+            basisCodec.writeSignatures(new DataOutputStream(signatures));
+        } finally {
+            basisCodec.close();
+        }
+        return DeltaCodec.readSignatures(new DataInputStream(new ByteArrayInputStream(signatures.toByteArray())));
+    }
+
+    private byte[] apply(byte[] delta) throws IOException {
+        DeltaCodec codec = DeltaCodec.forBasis(basisFile);
+        try {
+            DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(delta));
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[Math.max(DeltaCodec.LITERAL_SIZE, codec.getBlockSize())];
+            int length;
+            while ((length = codec.readOperation(inputStream, buffer)) != -1) {
+                result.write(buffer, 0, length);
+            }
+            assertEquals(delta.length, codec.getWireBytes());
+            return result.toByteArray();
+        } finally {
+            codec.close();
+        }
+    }
+
+    private void assertInvalid(byte[] delta) throws IOException {
+        try {
+            apply(delta);
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    private static byte[] operation(int type, int value) throws IOException {
+        ByteArrayOutputStream operation = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(operation);
+        outputStream.writeByte(type);
+        outputStream.writeInt(value);
+        outputStream.write(new byte[16]);
+        return operation.toByteArray();
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content);
+        }
+    }
+}
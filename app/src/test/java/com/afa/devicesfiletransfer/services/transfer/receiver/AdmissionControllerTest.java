@@ -0,0 +1,114 @@
+package com.afa.devicesfiletransfer.services.transfer.receiver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest {
+    private final File directory = new File(System.getProperty("java.io.tmpdir"));
+
+    @Test
+    public void limitsSessions() {
+        AdmissionController admissionController = new AdmissionController(directory, 2, 1000, 1);
+        assertTrue(admissionController.tryAcquireSession());
+        assertTrue(admissionController.tryAcquireSession());
+        assertFalse(admissionController.tryAcquireSession());
+
+        admissionController.releaseSession();
+        assertTrue(admissionController.tryAcquireSession());
+    }
+
+    @Test
+    public void limitsStripesApartFromSessions() {
+        AdmissionController admissionController = new AdmissionController(directory, 1, 1000, 1);
+        assertTrue(admissionController.tryAcquireSession());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(admissionController.tryAcquireStripe());
+        }
+        assertFalse(admissionController.tryAcquireStripe());
+
+        admissionController.releaseStripe();
+        assertTrue(admissionController.tryAcquireStripe());
+    }
+
+    @Test
+    public void limitsBytesInFlight() {
+        AdmissionController admissionController = new AdmissionController(directory, 1, 1000, 1);
+        assertEquals(AdmissionController.ADMITTED, admissionController.admitFile(600));
+        assertEquals(AdmissionController.BUSY, admissionController.admitFile(600));
+        assertEquals(AdmissionController.ADMITTED, admissionController.admitFile(400));
+
+        admissionController.releaseFile(1000);
+        assertEquals(AdmissionController.ADMITTED, admissionController.admitFile(600));
+    }
+
+    @Test
+    public void admitsLargeFileWhenNothingElseIsInFlight() {
+        AdmissionController admissionController = new AdmissionController(directory, 1, 1000, 1);
+        assertEquals(AdmissionController.ADMITTED, admissionController.admitFile(5000));
+        assertEquals(AdmissionController.BUSY, admissionController.admitFile(1));
+    }
+
+    @Test
+    public void refusesFileLargerThanTheFreeSpace() {
+        AdmissionController admissionController = new AdmissionController(directory, 1, Long.MAX_VALUE, 1);
+        long usableSpace = directory.getUsableSpace();
+        assertEquals(AdmissionController.NO_SPACE, admissionController.admitFile(usableSpace));
+        assertFalse(admissionController.hasSpaceFor(usableSpace));
+        assertTrue(admissionController.hasSpaceFor(0));
+    }
+
+    @Test
+    public void countsAdmittedBytesAgainstTheFreeSpace() {
+        AdmissionController admissionController = new AdmissionController(directory, 1, Long.MAX_VALUE, 1);
+        long half = directory.getUsableSpace() / 2;
+        assertEquals(AdmissionController.ADMITTED, admissionController.admitFile(half / 2));
+        assertEquals(AdmissionController.NO_SPACE, admissionController.admitFile(half * 3 / 2));
+
+        admissionController.releaseFile(half / 2);
+        assertEquals(AdmissionController.ADMITTED, admissionController.admitFile(half));
+    }
+
+    @Test
+    public void holdsWritersBackUntilOneIsReleased() throws Exception {
+        final AdmissionController admissionController = new AdmissionController(directory, 1, 1000, 1);
+        admissionController.acquireWriter();
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    admissionController.acquireWriter();
+                    acquired.countDown();
+                } catch (InterruptedIOException ignored) {
+                }
+            }
+        });
+        writer.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        admissionController.releaseWriter();
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        writer.join();
+    }
+
+    @Test(expected = InterruptedIOException.class)
+    public void givesUpWaitingForWriterWhenInterrupted() throws Exception {
+        AdmissionController admissionController = new AdmissionController(directory, 1, 1000, 1);
+        admissionController.acquireWriter();
+        Thread.currentThread().interrupt();
+        try {
+            admissionController.acquireWriter();
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.afa.devicesfiletransfer.services.transfer.receiver;
+
+import com.afa.devicesfiletransfer.ConfigProperties;
+import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+import com.afa.devicesfiletransfer.domain.model.TransferFile;
+import com.afa.devicesfiletransfer.domain.model.TransferFileLocal;
+import com.afa.devicesfiletransfer.services.transfer.sender.FileSenderProtocol;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+//Files received per second when sending many small files at once over the loopback, which are received in batches
+public class BatchBenchmark {
+    private static final int FILES_COUNT = 10000;
+    private static final int FILE_SIZE = 4 * 1024;
+    private static final int ROUNDS = 3;
+    private File sourceDirectory;
+    private File downloadsDirectory;
+    private List<TransferFile> files;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+
+        sourceDirectory = createTempDirectory("source");
+        downloadsDirectory = createTempDirectory("downloads");
+        files = new ArrayList<>();
+        Random random = new Random(1);
+        byte[] content = new byte[FILE_SIZE];
+        for (int i = 0; i < FILES_COUNT; i++) {
+            File file = new File(sourceDirectory, "file" + i + ".bin");
+            random.nextBytes(content);
+            try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                outputStream.write(content);
+            }
+            files.add(new TransferFileLocal(file));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (sourceDirectory != null) {
+            delete(sourceDirectory);
+            delete(downloadsDirectory);
+        }
+    }
+
+    @Test
+    public void sendSmallFiles() throws Exception {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final CountDownLatch[] received = new CountDownLatch[1];
+        final FileReceiverProtocol.Callback receiverCallback = new ReceiverCallback() {
+            @Override
+            public void onSuccess(Transfer transfer, File file) {
+                received[0].countDown();
+            }
+        };
+        AdmissionController admissionController = new AdmissionController(downloadsDirectory,
+                ConfigProperties.MAX_RECEIVING_SESSIONS, ConfigProperties.MAX_RECEIVING_IN_FLIGHT_BYTES,
+                ConfigProperties.MAX_DISK_WRITERS);
+        final SelectorFilesReceiverListener listener = new SelectorFilesReceiverListener(
+                ConfigProperties.TRANSFER_SERVICE_PORT, admissionController,
+                new SelectorFilesReceiverListener.Callback() {
+                    @Override
+                    public void onSessionAccepted(Socket socket, byte sessionType) {
+                        new FileReceiverProtocol(downloadsDirectory, receiverCallback).receive(socket, sessionType);
+                    }
+                });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.start();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        Thread.sleep(200);
+
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                for (File file : downloadsDirectory.listFiles()) {
+                    delete(file);
+                }
+                received[0] = new CountDownLatch(FILES_COUNT);
+                long startTime = System.nanoTime();
+                new FileSenderProtocol(new Device("benchmark", "", InetAddress.getLoopbackAddress()), files,
+                        new SenderCallback()).send();
+                assertTrue(received[0].await(5, TimeUnit.MINUTES));
+                long elapsedTime = System.nanoTime() - startTime;
+                System.out.printf("%d files of %d bytes: %6.0f files/s%n", FILES_COUNT, FILE_SIZE,
+                        FILES_COUNT / (elapsedTime / 1e9));
+            }
+        } finally {
+            listener.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    private static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) throw new IOException("Cannot create " + directory);
+
+        return directory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class ReceiverCallback implements FileReceiverProtocol.Callback {
+        @Override
+        public void onInitializationFailure() {
+        }
+
+        @Override
+        public void onStart(Transfer transfer) {
+        }
+
+        @Override
+        public void onFailure(Transfer transfer, Exception e) {
+        }
+
+        @Override
+        public void onProgressUpdated(Transfer transfer) {
+        }
+
+        @Override
+        public void onSuccess(Transfer transfer, File file) {
+        }
+    }
+
+    private static class SenderCallback implements FileSenderProtocol.Callback {
+        @Override
+        public void onInitializationFailure(FileSenderProtocol fileSenderProtocol) {
+        }
+
+        @Override
+        public void onTransferInitializationFailure(Transfer transfer, Exception e) {
+        }
+
+        @Override
+        public void onStart(Transfer transfer) {
+        }
+
+        @Override
+        public void onFailure(Transfer transfer, Exception e) {
+        }
+
+        @Override
+        public void onProgressUpdated(Transfer transfer) {
+        }
+
+        @Override
+        public void onSuccess(Transfer transfer, TransferFile file) {
+        }
+    }
+}
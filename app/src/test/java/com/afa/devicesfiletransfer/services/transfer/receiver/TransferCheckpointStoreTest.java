@@ -0,0 +1,97 @@
+package com.afa.devicesfiletransfer.services.transfer.receiver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransferCheckpointStoreTest {
+    private File checkpointsDirectory;
+    private File targetDirectory;
+    private TransferCheckpointStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        checkpointsDirectory = createTempDirectory("checkpoints");
+        targetDirectory = createTempDirectory("downloads");
+        store = TransferCheckpointStore.getInstance(checkpointsDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        delete(checkpointsDirectory);
+        delete(targetDirectory);
+    }
+
+    @Test
+    public void keepsCheckpointsOutOfTheTargetDirectory() throws IOException {
+        TransferCheckpoint checkpoint = createCheckpoint("device/file", "file.bin", 1000, 400);
+        store.save(checkpoint);
+
+        TransferCheckpoint found = store.find("device/file", 1000);
+        assertEquals(400, found.getCommittedBytes());
+        assertEquals(checkpoint.getTargetFile().getAbsolutePath(), found.getTargetFile().getAbsolutePath());
+        assertEquals(1, targetDirectory.listFiles().length);
+        assertNull(store.find("device/file", 2000));
+    }
+
+    @Test
+    public void removesStaleCheckpointsAndPartialFiles() throws IOException {
+        long staleTime = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30);
+        TransferCheckpoint staleCheckpoint = createCheckpoint("device/stale", "stale.bin", 1000, 400);
+        store.save(staleCheckpoint);
+        for (File checkpointFile : checkpointsDirectory.listFiles()) {
+            assertTrue(checkpointFile.setLastModified(staleTime));
+        }
+        assertTrue(staleCheckpoint.getPartialFile().setLastModified(staleTime));
+        TransferCheckpoint checkpoint = createCheckpoint("device/recent", "recent.bin", 1000, 400);
+        store.save(checkpoint);
+        File leftPartialFile = TransferCheckpoint.getPartialFile(new File(targetDirectory, "left.bin"));
+        assertTrue(leftPartialFile.createNewFile());
+        assertTrue(leftPartialFile.setLastModified(staleTime));
+
+        store.removeStale(targetDirectory);
+
+        assertNull(store.find("device/stale", 1000));
+        assertFalse(staleCheckpoint.getPartialFile().exists());
+        assertFalse(leftPartialFile.exists());
+        assertEquals(400, store.find("device/recent", 1000).getCommittedBytes());
+        assertTrue(checkpoint.getPartialFile().exists());
+    }
+
+    private TransferCheckpoint createCheckpoint(String key, String name, long fileSize, long committedBytes)
+            throws IOException {
+        TransferCheckpoint checkpoint = new TransferCheckpoint(key, new File(targetDirectory, name), fileSize,
+                committedBytes);
+        try (RandomAccessFile partialFile = new RandomAccessFile(checkpoint.getPartialFile(), "rw")) {
+            partialFile.setLength(fileSize);
+        }
+        return checkpoint;
+    }
+
+    private static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) throw new IOException("Cannot create " + directory);
+
+        return directory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,109 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import com.afa.devicesfiletransfer.domain.model.TransferFileLocal;
+import com.afa.devicesfiletransfer.services.transfer.DeltaCodec;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+//Time to send a modified file as a delta against sending it whole, by the fraction of the file changed. The time of
+//a delta is the longest of encoding it and sending its bytes, as both go on at once
+public class DeltaBenchmark {
+    private static final int FILE_SIZE = 32 * 1024 * 1024;
+    private static final int CHANGE_SIZE = 16 * 1024;
+    private static final long LINK_BYTES_PER_SECOND = 20 * 1000 * 1000;
+    private static final double[] CHANGED_FRACTIONS = {0, 0.01, 0.1, 0.5, 1};
+    private File basisFile;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+
+        basisFile = File.createTempFile("basis", ".bin");
+        file = File.createTempFile("modified", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        if (basisFile != null) {
+            basisFile.delete();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void compareWithWholeFile() throws IOException {
+        Random random = new Random(1);
+        byte[] basis = new byte[FILE_SIZE];
+        random.nextBytes(basis);
+        write(basisFile, basis);
+        double wholeTime = FILE_SIZE * 1000.0 / LINK_BYTES_PER_SECOND;
+        for (double changedFraction : CHANGED_FRACTIONS) {
+            byte[] modified = basis.clone();
+            int changes = (int) (changedFraction * FILE_SIZE / CHANGE_SIZE);
+            for (int i = 0; i < changes; i++) {
+                int position = random.nextInt(FILE_SIZE / CHANGE_SIZE) * CHANGE_SIZE;
+                byte[] change = new byte[CHANGE_SIZE];
+                random.nextBytes(change);
+                System.arraycopy(change, 0, modified, position, CHANGE_SIZE);
+            }
+            if (changedFraction == 1) {
+                random.nextBytes(modified);
+            }
+            write(file, modified);
+
+            long startTime = System.nanoTime();
+            DeltaCodec codec = readSignatures(DeltaCodec.forBasis(basisFile));
+            CountingOutputStream outputStream = new CountingOutputStream();
+            new FileSender(new TransferFileLocal(file)).sendDelta(outputStream, codec);
+            double encodingTime = (System.nanoTime() - startTime) / 1e6;
+            double deltaTime = Math.max(encodingTime, outputStream.count * 1000.0 / LINK_BYTES_PER_SECOND);
+            System.out.printf("changed %3.0f%%: delta %8d bytes, %5.0f ms encoding, %5.0f ms at 20 MB/s;"
+                            + " whole file %5.0f ms%n", changedFraction * 100, outputStream.count, encodingTime,
+                    deltaTime, wholeTime);
+        }
+    }
+
+    private static DeltaCodec readSignatures(DeltaCodec basisCodec) throws IOException {
+        ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+        try {
+            basisCodec.writeSignatures(new DataOutputStream(signatures));
+        } finally {
+            basisCodec.close();
+        }
+        return DeltaCodec.readSignatures(new DataInputStream(new ByteArrayInputStream(signatures.toByteArray())));
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content);
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import com.afa.devicesfiletransfer.domain.model.TransferFile;
+import com.afa.devicesfiletransfer.domain.model.TransferFileLocal;
+import com.afa.devicesfiletransfer.services.transfer.TransferChecksum;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+//Cost of verifying the files sent, against sending them unverified straight from the disk, over the loopback
+public class FileSenderBenchmark {
+    private static final int FILE_SIZE = 256 * 1024 * 1024;
+    private static final int ROUNDS = 5;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+
+        file = File.createTempFile("benchmark", ".bin");
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(1).nextBytes(chunk);
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            for (int i = 0; i < FILE_SIZE / chunk.length; i++) {
+                outputStream.write(chunk);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void compareChecksums() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            send("unverified", null);
+            send("crc32", TransferChecksum.create(TransferChecksum.CRC32));
+            send("sha-256", TransferChecksum.create(TransferChecksum.SHA256));
+        }
+    }
+
+    private void send(String name, TransferChecksum checksum) throws Exception {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread receiver = startDiscarding(serverChannel);
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            TransferFile transferFile = new TransferFileLocal(file);
+            FileSender fileSender = new FileSender(transferFile);
+            fileSender.setChecksum(checksum);
+            try (SocketChannel socketChannel = SocketChannel.open(serverChannel.getLocalAddress())) {
+                long cpuTime = threads.getCurrentThreadCpuTime();
+                long startTime = System.nanoTime();
+                fileSender.send(socketChannel);
+                long elapsedTime = System.nanoTime() - startTime;
+                cpuTime = threads.getCurrentThreadCpuTime() - cpuTime;
+                assertEquals(FILE_SIZE, fileSender.getTransferredBytes());
+                System.out.printf("%-10s %6.0f MB/s, %4d ms of sender CPU%n", name,
+                        FILE_SIZE / 1e6 / (elapsedTime / 1e9), cpuTime / 1000000);
+            }
+            receiver.join();
+        }
+    }
+
+    private Thread startDiscarding(final ServerSocketChannel serverChannel) {
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                try (SocketChannel socketChannel = serverChannel.accept()) {
+                    while (socketChannel.read(buffer) != -1) {
+                        buffer.clear();
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        receiver.start();
+        return receiver;
+    }
+}
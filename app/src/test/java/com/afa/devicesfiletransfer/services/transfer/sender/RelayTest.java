@@ -0,0 +1,217 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import com.afa.devicesfiletransfer.ConfigProperties;
+import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+import com.afa.devicesfiletransfer.domain.model.TransferFile;
+import com.afa.devicesfiletransfer.domain.model.TransferFileLocal;
+import com.afa.devicesfiletransfer.services.transfer.receiver.FileReceiverProtocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+//Files relayed down a tree of receivers, each one listening on its own loopback address, which are only routed
+//like this on Linux
+public class RelayTest {
+    private static final int DEVICES_COUNT = 6;
+    private static final int BRANCHES_COUNT = 2;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Device> devices = new ArrayList<>();
+    private final List<File> downloadsDirectories = new ArrayList<>();
+    private final List<ServerSocketChannel> receiverChannels = new ArrayList<>();
+    private final List<File> files = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < DEVICES_COUNT; i++) {
+            InetAddress address = InetAddress.getByName("127.0.0." + (i + 2));
+            devices.add(new Device("device" + i, "", address));
+            File downloadsDirectory = createTempDirectory("downloads");
+            downloadsDirectories.add(downloadsDirectory);
+            startReceiver(address, downloadsDirectory);
+        }
+        //A file sent on its own and two small ones sent in a batch
+        files.add(createFile(1, 1024 * 1024));
+        files.add(createFile(2, 16 * 1024));
+        files.add(createFile(3, 16 * 1024));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        for (ServerSocketChannel receiverChannel : receiverChannels) {
+            receiverChannel.close();
+        }
+        for (File downloadsDirectory : downloadsDirectories) {
+            delete(downloadsDirectory);
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void reachesEveryDeviceThroughTheRelays() throws IOException {
+        List<TransferFile> transferFiles = new ArrayList<>();
+        for (File file : files) {
+            transferFiles.add(new TransferFileLocal(file));
+        }
+        RecordingCallback callback = new RecordingCallback();
+        FileSenderProtocol fileSenderProtocol = new FileSenderProtocol(devices.get(0), transferFiles, callback);
+        fileSenderProtocol.setRelayDevices(new ArrayList<>(devices.subList(1, DEVICES_COUNT)), BRANCHES_COUNT);
+        assertEquals(DEVICES_COUNT * files.size(), fileSenderProtocol.getTransfersCount());
+
+        fileSenderProtocol.send();
+
+        assertEquals(Collections.emptyList(), callback.failures);
+        assertEquals(DEVICES_COUNT * files.size(), callback.succeededTransfers.size());
+        for (File downloadsDirectory : downloadsDirectories) {
+            for (File file : files) {
+                File receivedFile = new File(downloadsDirectory, file.getName());
+                assertTrue(receivedFile.getPath(), receivedFile.isFile());
+                assertArrayEquals(readFile(file), readFile(receivedFile));
+            }
+        }
+    }
+
+    private void startReceiver(InetAddress address, final File downloadsDirectory) throws IOException {
+        final ServerSocketChannel receiverChannel = ServerSocketChannel.open();
+        receiverChannel.socket().setReuseAddress(true);
+        receiverChannel.bind(new InetSocketAddress(address, ConfigProperties.TRANSFER_SERVICE_PORT));
+        receiverChannels.add(receiverChannel);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = receiverChannel.accept().socket();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                FileReceiverProtocol fileReceiverProtocol = new FileReceiverProtocol(
+                                        downloadsDirectory, new ReceiverCallback());
+                                fileReceiverProtocol.setRelayEnabled(true);
+                                fileReceiverProtocol.receive(socket);
+                                try {
+                                    socket.close();
+                                } catch (IOException ignored) {
+                                }
+                            }
+                        });
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    private static File createFile(int seed, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        File file = File.createTempFile("relay", ".bin");
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content);
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            byte[] content = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(content);
+            return content;
+        }
+    }
+
+    private static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) throw new IOException("Cannot create " + directory);
+
+        return directory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class RecordingCallback implements FileSenderProtocol.Callback {
+        private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        private final List<Transfer> succeededTransfers = Collections.synchronizedList(new ArrayList<Transfer>());
+
+        @Override
+        public void onInitializationFailure(FileSenderProtocol fileSenderProtocol) {
+            failures.add("not initialized");
+        }
+
+        @Override
+        public void onTransferInitializationFailure(Transfer transfer, Exception e) {
+            failures.add(transfer.getDeviceIpAddress() + " " + e.getMessage());
+        }
+
+        @Override
+        public void onStart(Transfer transfer) {
+        }
+
+        @Override
+        public void onFailure(Transfer transfer, Exception e) {
+            failures.add(transfer.getDeviceIpAddress() + " " + e.getMessage());
+        }
+
+        @Override
+        public void onProgressUpdated(Transfer transfer) {
+        }
+
+        @Override
+        public void onSuccess(Transfer transfer, TransferFile file) {
+            succeededTransfers.add(transfer);
+        }
+    }
+
+    private static class ReceiverCallback implements FileReceiverProtocol.Callback {
+        @Override
+        public void onInitializationFailure() {
+        }
+
+        @Override
+        public void onStart(Transfer transfer) {
+        }
+
+        @Override
+        public void onFailure(Transfer transfer, Exception e) {
+        }
+
+        @Override
+        public void onProgressUpdated(Transfer transfer) {
+        }
+
+        @Override
+        public void onSuccess(Transfer transfer, File file) {
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import com.afa.devicesfiletransfer.domain.model.TransferFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+//A source that can only be streamed, larger than the ring, shared among several streams
+public class SharedTransferFileTest {
+    private static final int SOURCE_SIZE = 8 * 1024 * 1024;
+    private final byte[] content = new byte[SOURCE_SIZE];
+    private final AtomicInteger sourceOpens = new AtomicInteger();
+    private File spillDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(content);
+        spillDirectory = File.createTempFile("spill", "");
+        if (!spillDirectory.delete() || !spillDirectory.mkdir()) {
+            throw new IOException("Cannot create " + spillDirectory);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = spillDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spillDirectory.delete();
+    }
+
+    @Test
+    public void servesConcurrentSlowLateAndSkippingStreams() throws Exception {
+        final SharedTransferFile file = new SharedTransferFile(new StreamOnlyFile(), spillDirectory);
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final boolean slow = i == 7;
+            readers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!Arrays.equals(content, read(file.getInputStream(), slow))) {
+                            failures.add("different content");
+                        }
+                    } catch (Exception e) {
+                        failures.add(e.toString());
+                    }
+                }
+            }));
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(Collections.emptyList(), failures);
+        assertArrayEquals(content, read(file.getInputStream(), false));
+        InputStream skippingStream = file.getInputStream();
+        assertEquals(5000000, skippingStream.skip(5000000));
+        assertArrayEquals(Arrays.copyOfRange(content, 5000000, SOURCE_SIZE), read(skippingStream, false));
+        file.close();
+        assertEquals(0, spillDirectory.listFiles().length);
+    }
+
+    @Test
+    public void spillsOnlyOnceAStreamFallsBehind() throws IOException {
+        SharedTransferFile file = new SharedTransferFile(new StreamOnlyFile(), spillDirectory);
+        assertArrayEquals(content, read(file.getInputStream(), false));
+        assertEquals(0, spillDirectory.listFiles().length);
+        file.close();
+
+        file = new SharedTransferFile(new StreamOnlyFile(), spillDirectory);
+        InputStream aheadStream = file.getInputStream();
+        InputStream behindStream = file.getInputStream();
+        assertArrayEquals(content, read(aheadStream, false));
+        assertEquals(1, spillDirectory.listFiles().length);
+        assertArrayEquals(content, read(behindStream, false));
+        //The stream behind the ring reads the spill file instead of the source
+        assertEquals(2, sourceOpens.get());
+        file.close();
+        assertEquals(0, spillDirectory.listFiles().length);
+    }
+
+    @Test
+    public void readsTheSourceAgainWhenSpillingFails() throws IOException {
+        SharedTransferFile file = new SharedTransferFile(new StreamOnlyFile(), new File(spillDirectory, "missing"));
+        InputStream aheadStream = file.getInputStream();
+        InputStream behindStream = file.getInputStream();
+        assertArrayEquals(content, read(aheadStream, false));
+        assertArrayEquals(content, read(behindStream, false));
+        assertEquals(2, sourceOpens.get());
+        file.close();
+    }
+
+    private static byte[] read(InputStream inputStream, boolean slow) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        try {
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+                if (slow && outputStream.size() % (256 * 1024) < buffer.length) {
+                    Thread.sleep(5);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            inputStream.close();
+        }
+        return outputStream.toByteArray();
+    }
+
+    private class StreamOnlyFile implements TransferFile {
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public String getName() {
+            return "shared.bin";
+        }
+
+        @Override
+        public String getPath() {
+            return "content://shared.bin";
+        }
+
+        @Override
+        public long length() {
+            return content.length;
+        }
+
+        @Override
+        public long lastModified() {
+            return 0;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            sourceOpens.incrementAndGet();
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public FileChannel getChannel() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import com.afa.devicesfiletransfer.ConfigProperties;
+import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+import com.afa.devicesfiletransfer.domain.model.TransferFile;
+import com.afa.devicesfiletransfer.domain.model.TransferFileLocal;
+import com.afa.devicesfiletransfer.services.transfer.BandwidthLimiter;
+import com.afa.devicesfiletransfer.services.transfer.receiver.FileReceiverProtocol;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+//Throughput of a large file by the number of stripes it is sent in, through a proxy that limits every connection
+//on its own and all of them together, as a network where a single connection cannot fill the link. The receiver
+//and the proxy listen on their own loopback addresses, which are only routed like this on Linux
+public class StripingBenchmark {
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final long CONNECTION_BYTES_PER_SECOND = 16 * 1000 * 1000;
+    private static final long LINK_BYTES_PER_SECOND = 64 * 1000 * 1000;
+    private static final int ROUNDS = 6;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final BandwidthLimiter linkLimiter = new BandwidthLimiter();
+    private InetAddress proxyAddress;
+    private InetAddress receiverAddress;
+    private File file;
+    private File downloadsDirectory;
+    private ServerSocket proxySocket;
+    private ServerSocketChannel receiverChannel;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+
+        proxyAddress = InetAddress.getByName("127.0.0.2");
+        receiverAddress = InetAddress.getByName("127.0.0.3");
+        linkLimiter.setMaxBytesPerSecond(LINK_BYTES_PER_SECOND);
+        file = File.createTempFile("striping", ".bin");
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(1).nextBytes(chunk);
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            for (int i = 0; i < FILE_SIZE / chunk.length; i++) {
+                outputStream.write(chunk);
+            }
+        }
+        downloadsDirectory = File.createTempFile("downloads", "");
+        if (!downloadsDirectory.delete() || !downloadsDirectory.mkdir()) {
+            throw new IOException("Cannot create " + downloadsDirectory);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        if (proxySocket != null) proxySocket.close();
+        if (receiverChannel != null) receiverChannel.close();
+        if (file != null) {
+            file.delete();
+            deleteFiles(downloadsDirectory);
+            downloadsDirectory.delete();
+        }
+    }
+
+    @Test
+    public void compareStripes() throws Exception {
+        final CountDownLatch[] received = new CountDownLatch[1];
+        startReceiver(new ReceiverCallback() {
+            @Override
+            public void onSuccess(Transfer transfer, File file) {
+                received[0].countDown();
+            }
+        });
+        startProxy();
+
+        send("1 connection", false, received);
+        for (int round = 0; round < ROUNDS; round++) {
+            int stripes = StripeTuner.getInstance(proxyAddress).getStripesCount();
+            send(stripes + " stripes", true, received);
+        }
+    }
+
+    private void send(String name, boolean striped, CountDownLatch[] received) throws InterruptedException {
+        deleteFiles(downloadsDirectory);
+        received[0] = new CountDownLatch(1);
+        FileSenderProtocol fileSenderProtocol = new FileSenderProtocol(new Device("benchmark", "", proxyAddress),
+                Collections.<TransferFile>singletonList(new TransferFileLocal(file)), new SenderCallback());
+        fileSenderProtocol.setStripingEnabled(striped);
+        long startTime = System.nanoTime();
+        fileSenderProtocol.send();
+        assertTrue(received[0].await(1, TimeUnit.MINUTES));
+        long elapsedTime = System.nanoTime() - startTime;
+        System.out.printf("%-13s %5.1f MB/s%n", name, FILE_SIZE / 1e6 / (elapsedTime / 1e9));
+    }
+
+    private void startReceiver(final FileReceiverProtocol.Callback callback) throws IOException {
+        receiverChannel = ServerSocketChannel.open();
+        receiverChannel.bind(new InetSocketAddress(receiverAddress, ConfigProperties.TRANSFER_SERVICE_PORT));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = receiverChannel.accept().socket();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                new FileReceiverProtocol(downloadsDirectory, callback).receive(socket);
+                            }
+                        });
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    private void startProxy() throws IOException {
+        proxySocket = new ServerSocket();
+        proxySocket.bind(new InetSocketAddress(proxyAddress, ConfigProperties.TRANSFER_SERVICE_PORT));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket clientSocket = proxySocket.accept();
+                        Socket serverSocket = new Socket(receiverAddress, ConfigProperties.TRANSFER_SERVICE_PORT);
+                        BandwidthLimiter connectionLimiter = new BandwidthLimiter();
+                        connectionLimiter.setMaxBytesPerSecond(CONNECTION_BYTES_PER_SECOND);
+                        pipe(clientSocket, serverSocket, connectionLimiter);
+                        pipe(serverSocket, clientSocket, null);
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    //Only the bytes sent to the receiver are limited, the answers go back at once
+    private void pipe(final Socket from, final Socket to, final BandwidthLimiter connectionLimiter) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try (InputStream inputStream = from.getInputStream()) {
+                    OutputStream outputStream = to.getOutputStream();
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        if (connectionLimiter != null) {
+                            long waitTime = Math.max(connectionLimiter.reserve(read), linkLimiter.reserve(read));
+                            TimeUnit.NANOSECONDS.sleep(waitTime);
+                        }
+                        outputStream.write(buffer, 0, read);
+                    }
+                    to.shutdownOutput();
+                } catch (IOException | InterruptedException ignored) {
+                    try {
+                        to.close();
+                    } catch (IOException ignoredToo) {
+                    }
+                }
+            }
+        });
+    }
+
+    private static void deleteFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            deleteFiles(file);
+            file.delete();
+        }
+    }
+
+    private static class ReceiverCallback implements FileReceiverProtocol.Callback {
+        @Override
+        public void onInitializationFailure() {
+        }
+
+        @Override
+        public void onStart(Transfer transfer) {
+        }
+
+        @Override
+        public void onFailure(Transfer transfer, Exception e) {
+        }
+
+        @Override
+        public void onProgressUpdated(Transfer transfer) {
+        }
+
+        @Override
+        public void onSuccess(Transfer transfer, File file) {
+        }
+    }
+
+    private static class SenderCallback implements FileSenderProtocol.Callback {
+        @Override
+        public void onInitializationFailure(FileSenderProtocol fileSenderProtocol) {
+        }
+
+        @Override
+        public void onTransferInitializationFailure(Transfer transfer, Exception e) {
+        }
+
+        @Override
+        public void onStart(Transfer transfer) {
+        }
+
+        @Override
+        public void onFailure(Transfer transfer, Exception e) {
+        }
+
+        @Override
+        public void onProgressUpdated(Transfer transfer) {
+        }
+
+        @Override
+        public void onSuccess(Transfer transfer, TransferFile file) {
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.afa.devicesfiletransfer.services.transfer.sender;
+
+import com.afa.devicesfiletransfer.domain.model.Device;
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+import com.afa.devicesfiletransfer.domain.model.TransferFileLocal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TransferSchedulerTest {
+    private static final long MEGABYTE = 1024 * 1024;
+    private final List<File> files = new ArrayList<>();
+    private Device firstDevice;
+    private Device secondDevice;
+
+    @Before
+    public void setUp() throws IOException {
+        firstDevice = new Device("first", "", InetAddress.getByAddress(new byte[]{10, 0, 0, 1}));
+        secondDevice = new Device("second", "", InetAddress.getByAddress(new byte[]{10, 0, 0, 2}));
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void takesSmallerFilesFirst() throws IOException {
+        TransferScheduler scheduler = new TransferScheduler(1, 1);
+        List<Transfer> transfers = transfers(firstDevice, 300, 100, 200);
+        TransferScheduler.TransferQueue queue = scheduler.createQueue(firstDevice, transfers,
+                TransferScheduler.Priority.USER);
+
+        assertSame(transfers.get(1), queue.poll());
+        queue.release(100);
+        assertSame(transfers.get(2), queue.poll());
+        queue.release(200);
+        assertSame(transfers.get(0), queue.poll());
+        queue.release(300);
+        assertNull(queue.poll());
+        assertFalse(queue.hasPending());
+    }
+
+    @Test
+    public void limitsTransfersAtOnce() throws IOException {
+        TransferScheduler scheduler = new TransferScheduler(2, 2);
+        TransferScheduler.TransferQueue queue = scheduler.createQueue(firstDevice,
+                transfers(firstDevice, 1, 2, 3), TransferScheduler.Priority.USER);
+
+        queue.poll();
+        queue.poll();
+        assertNull(queue.poll());
+        assertEquals(2, scheduler.getStatistics().getRunningTransfersCount());
+        assertEquals(1, scheduler.getStatistics().getQueuedTransfersCount());
+
+        queue.release(1);
+        assertEquals(3, queue.poll().getFile().length());
+    }
+
+    @Test
+    public void sendsUserFilesBeforeBackgroundOnes() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(1, 1);
+        TransferScheduler.TransferQueue backgroundQueue = scheduler.createQueue(firstDevice,
+                transfers(firstDevice, 1, 2), TransferScheduler.Priority.BACKGROUND);
+        backgroundQueue.poll();
+        List<Transfer> userTransfers = transfers(firstDevice, 3);
+        TransferScheduler.TransferQueue userQueue = scheduler.createQueue(firstDevice, userTransfers,
+                TransferScheduler.Priority.USER);
+
+        Taker backgroundTaker = new Taker(backgroundQueue);
+        Taker userTaker = new Taker(userQueue);
+        backgroundTaker.start();
+        userTaker.start();
+        Thread.sleep(200);
+        backgroundQueue.release(1);
+
+        userTaker.join(1000);
+        assertSame(userTransfers.get(0), userTaker.transfer);
+        assertTrue(backgroundTaker.isAlive());
+        userQueue.release(3);
+        backgroundTaker.join(1000);
+        assertEquals(2, backgroundTaker.transfer.getFile().length());
+    }
+
+    @Test
+    public void devicesTakeTurnsByBytes() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(1, 1);
+        TransferScheduler.TransferQueue largeFilesQueue = scheduler.createQueue(firstDevice,
+                transfers(firstDevice, 8 * MEGABYTE, 8 * MEGABYTE), TransferScheduler.Priority.USER);
+        List<Transfer> smallTransfers = transfers(secondDevice, MEGABYTE);
+        TransferScheduler.TransferQueue smallFilesQueue = scheduler.createQueue(secondDevice, smallTransfers,
+                TransferScheduler.Priority.USER);
+        Device thirdDevice = new Device("third", "", InetAddress.getByAddress(new byte[]{10, 0, 0, 3}));
+        TransferScheduler.TransferQueue otherQueue = scheduler.createQueue(thirdDevice,
+                transfers(thirdDevice, 1), TransferScheduler.Priority.USER);
+        otherQueue.poll();
+
+        Taker largeFilesTaker = new Taker(largeFilesQueue);
+        Taker smallFilesTaker = new Taker(smallFilesQueue);
+        largeFilesTaker.start();
+        smallFilesTaker.start();
+        Thread.sleep(200);
+        otherQueue.release(1);
+
+        smallFilesTaker.join(1000);
+        assertSame(smallTransfers.get(0), smallFilesTaker.transfer);
+        assertTrue(largeFilesTaker.isAlive());
+        smallFilesQueue.release(MEGABYTE);
+        largeFilesTaker.join(1000);
+        assertEquals(8 * MEGABYTE, largeFilesTaker.transfer.getFile().length());
+    }
+
+    @Test
+    public void letsSmallFilesTravelAlong() throws IOException {
+        TransferScheduler scheduler = new TransferScheduler(1, 1);
+        TransferScheduler.TransferQueue queue = scheduler.createQueue(firstDevice,
+                transfers(firstDevice, 10, 20, 30), TransferScheduler.Priority.USER);
+
+        queue.poll();
+        assertNull(queue.pollNotLongerThan(19));
+        assertEquals(20, queue.pollNotLongerThan(20).getFile().length());
+        assertEquals(1, scheduler.getStatistics().getQueuedTransfersCount());
+    }
+
+    @Test
+    public void putsBackAndDrainsTransfers() throws IOException {
+        TransferScheduler scheduler = new TransferScheduler(1, 1);
+        List<Transfer> transfers = transfers(firstDevice, 10, 20);
+        TransferScheduler.TransferQueue queue = scheduler.createQueue(firstDevice, transfers,
+                TransferScheduler.Priority.USER);
+
+        Transfer transfer = queue.poll();
+        queue.putBack(transfer);
+        assertEquals(2, scheduler.getStatistics().getQueuedTransfersCount());
+        assertEquals(Integer.valueOf(2), scheduler.getStatistics().getQueuedTransfersByDevice().get(firstDevice));
+
+        assertEquals(transfers, queue.close());
+        assertEquals(1, scheduler.getStatistics().getRunningTransfersCount());
+        queue.release(0);
+        assertEquals(0, scheduler.getStatistics().getRunningTransfersCount());
+        assertTrue(scheduler.getStatistics().getQueuedTransfersByDevice().isEmpty());
+    }
+
+    private List<Transfer> transfers(Device device, long... lengths) throws IOException {
+        Transfer[] transfers = new Transfer[lengths.length];
+        for (int i = 0; i < lengths.length; i++) {
+            File file = File.createTempFile("scheduler", ".bin");
+            files.add(file);
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(lengths[i]);
+            }
+            transfers[i] = new Transfer(device, new TransferFileLocal(file), 0, false);
+        }
+        return Arrays.asList(transfers);
+    }
+
+    private static class Taker extends Thread {
+        private final TransferScheduler.TransferQueue queue;
+        private volatile Transfer transfer;
+
+        private Taker(TransferScheduler.TransferQueue queue) {
+            this.queue = queue;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                transfer = queue.take();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+}
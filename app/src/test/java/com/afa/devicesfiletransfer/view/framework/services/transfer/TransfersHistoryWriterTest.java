@@ -0,0 +1,101 @@
+package com.afa.devicesfiletransfer.view.framework.services.transfer;
+
+import com.afa.devicesfiletransfer.domain.model.Transfer;
+import com.afa.devicesfiletransfer.domain.repository.TransfersRepository;
+import com.afa.devicesfiletransfer.usecases.SaveTransfersUseCase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransfersHistoryWriterTest {
+    private final RecordingRepository repository = new RecordingRepository();
+
+    @Test
+    public void savesTransfersInBatches() throws InterruptedException {
+        RecordingCallback callback = new RecordingCallback(600);
+        TransfersHistoryWriter writer = new TransfersHistoryWriter(new SaveTransfersUseCase(repository), callback);
+        for (int i = 0; i < 600; i++) {
+            writer.write(new Transfer());
+        }
+
+        assertTrue(callback.saved.await(5, TimeUnit.SECONDS));
+        assertTrue(repository.batchSizes.size() <= 3);
+        for (int batchSize : repository.batchSizes) {
+            assertTrue(batchSize <= 250);
+        }
+        writer.close();
+    }
+
+    @Test
+    public void savesTheTransfersLeftOnceClosedWithoutWaitingForThem() throws InterruptedException {
+        repository.saveTime = 200;
+        RecordingCallback callback = new RecordingCallback(2);
+        TransfersHistoryWriter writer = new TransfersHistoryWriter(new SaveTransfersUseCase(repository), callback);
+        writer.write(new Transfer());
+        writer.write(new Transfer());
+        long startTime = System.nanoTime();
+        writer.close();
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) < 100);
+        //Saved without waiting for the batch delay
+        assertTrue(callback.saved.await(450, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList(2), repository.batchSizes);
+    }
+
+    private static class RecordingRepository implements TransfersRepository {
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        private volatile long saveTime;
+
+        @Override
+        public void getTransfers(GetTransfersCallback callback) {
+        }
+
+        @Override
+        public void getLastTransfers(int max, GetTransfersCallback callback) {
+        }
+
+        @Override
+        public void saveTransfer(Transfer transfer, AddTransferCallback callback) {
+            saveTransfers(Collections.singletonList(transfer), callback);
+        }
+
+        @Override
+        public void saveTransfers(List<Transfer> transfers, AddTransferCallback callback) {
+            try {
+                Thread.sleep(saveTime);
+            } catch (InterruptedException e) {
+                callback.onError(e);
+                return;
+            }
+            batchSizes.add(transfers.size());
+            callback.onSuccess();
+        }
+    }
+
+    private static class RecordingCallback implements TransfersHistoryWriter.Callback {
+        private final CountDownLatch saved;
+
+        private RecordingCallback(int transfersCount) {
+            saved = new CountDownLatch(transfersCount);
+        }
+
+        @Override
+        public void onSaved(List<Transfer> transfers) {
+            for (int i = 0; i < transfers.size(); i++) {
+                saved.countDown();
+            }
+        }
+
+        @Override
+        public void onError(List<Transfer> transfers, Exception e) {
+        }
+    }
+}